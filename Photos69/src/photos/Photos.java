@@ -5,6 +5,7 @@ import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
 import photos.model.DataStore;
+import photos.search.LibraryIndex;
 
 /**
  * Main application class for the Photos application.
@@ -25,14 +26,20 @@ public class Photos extends Application {
     public void start(Stage stage) throws Exception {
         primaryStage = stage;
 
+        // Keep search and duplicate indexes for every user who logs in
+        LibraryIndex.install();
+
         // Load existing users or create defaults (admin + stock)
         DataStore.loadOrInit();
 
         switchScene("/photos/view/login.fxml", "Photos - Login");
         stage.setResizable(false);
 
-        // Safe quit: save user data on window close
-        stage.setOnCloseRequest(e -> DataStore.saveUsers());
+        // Safe quit: flush pending writes and save user data on window close
+        stage.setOnCloseRequest(e -> {
+            DataStore.close();
+            LibraryIndex.saveAll();
+        });
 
         stage.show();
     }
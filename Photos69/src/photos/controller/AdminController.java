@@ -7,6 +7,7 @@ import javafx.scene.control.*;
 import photos.Photos;
 import photos.model.AppState;
 import photos.model.DataStore;
+import photos.model.Mutation;
 import photos.model.User;
 
 /**
@@ -48,9 +49,8 @@ public class AdminController {
             }
 
             User user = new User(u);
-            AppState.get().users.add(user);
+            DataStore.apply(Mutation.addUser(user));   // persist user list
             data.add(user);
-            DataStore.saveUsers();   // persist user list
         });
     }
 
@@ -66,9 +66,8 @@ public class AdminController {
         }
 
         if (confirm("Delete user '" + sel.username + "'?")) {
-            AppState.get().users.remove(sel);
+            DataStore.apply(Mutation.deleteUser(sel));   // persist user list
             data.remove(sel);
-            DataStore.saveUsers();   // persist user list
         }
     }
 
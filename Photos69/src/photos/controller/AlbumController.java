@@ -1,13 +1,21 @@
 package photos.controller;
 
+import javafx.application.Platform;
+import javafx.concurrent.Task;
 import javafx.fxml.FXML;
 import javafx.scene.control.*;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import photos.Photos;
 import photos.model.*;
+import photos.search.DuplicateIndex;
+import photos.search.LibraryIndex;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Controller for the album screen.
@@ -19,6 +27,9 @@ public class AlbumController {
     @FXML private Label albumNameLabel;
     @FXML private ListView<Photo> photosList;
     @FXML private Button addBtn;
+    @FXML private Button importBtn;
+    @FXML private ProgressBar importProgress;
+    @FXML private Label importStatus;
     @FXML private Button removeBtn;
     @FXML private Button captionBtn;
     @FXML private Button viewBtn;
@@ -28,6 +39,7 @@ public class AlbumController {
     @FXML private Button backBtn;
 
     private static Album currentAlbum;
+    private AtomicBoolean importCancelled;   // set when leaving the screen during an import
 
     /**
      * Sets the current album to be displayed and managed.
@@ -50,6 +62,15 @@ public class AlbumController {
         albumNameLabel.setText(currentAlbum.name);
         photosList.getItems().setAll(currentAlbum.photos);
         photosList.setCellFactory(list -> new PhotoCell());
+        if (currentAlbum instanceof SmartAlbum) {
+            // the query decides which photos are in it
+            albumNameLabel.setText(currentAlbum.name + "  (smart: " + ((SmartAlbum) currentAlbum).query + ")");
+            addBtn.setDisable(true);
+            importBtn.setDisable(true);
+            removeBtn.setDisable(true);
+            moveBtn.setDisable(true);
+        }
+        LibraryMonitor.setOnChange(photosList::refresh);
     }
 
     /**
@@ -65,17 +86,108 @@ public class AlbumController {
         if (f == null) return;
 
         String path = f.getAbsolutePath();
-        boolean exists = currentAlbum.photos.stream()
-                .anyMatch(p -> p.path.equals(path));
-        if (exists) {
-            new Alert(Alert.AlertType.ERROR, "This photo is already in this album.").showAndWait();
+        Photo existing = LibraryIndex.of(user()).duplicates.findInAlbum(currentAlbum, path);
+        if (existing != null) {
+            new Alert(Alert.AlertType.ERROR, existing.path.equals(path)
+                    ? "This photo is already in this album."
+                    : "The same picture is already in this album as " + existing + ".").showAndWait();
             return;
         }
 
         Photo p = new Photo(path);
-        currentAlbum.photos.add(p);
+        DataStore.apply(Mutation.addPhoto(user(), currentAlbum, p));   // persist new photo
         photosList.getItems().add(p);
-        DataStore.saveUsers();   // persist new photo
+    }
+
+    /**
+     * Handles importing every image in a folder and its subfolders into the album.
+     * The folder is scanned in the background with {@link PhotoImporter}; the photos
+     * found are checked against the album's contents, so pictures it already holds
+     * under another name are skipped, then added in one batch, and their thumbnails
+     * are generated afterwards. Leaving the screen stops the import.
+     */
+    @FXML
+    private void handleImportFolder() {
+        DirectoryChooser dc = new DirectoryChooser();
+        dc.setTitle("Import Folder");
+        File dir = dc.showDialog(Photos.getPrimaryStage());
+        if (dir == null) return;
+
+        final Album album = currentAlbum;
+        final User owner = user();
+        final DuplicateIndex duplicates = LibraryIndex.of(owner).duplicates;
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        importCancelled = cancelled;
+        Task<List<Photo>> scan = new Task<>() {
+            @Override
+            protected List<Photo> call() throws Exception {
+                List<Photo> found = PhotoImporter.scan(dir.toPath(), true, (done, total) -> {
+                    updateProgress(done, total);
+                    updateMessage("Reading " + done + " of " + total + " photos...");
+                }, cancelled);
+                if (cancelled.get()) return Collections.emptyList();
+                updateProgress(-1, 1);
+                updateMessage("Checking " + found.size() + " photos for duplicates...");
+                return duplicates.newTo(album, found);
+            }
+        };
+        scan.setOnSucceeded(e -> {
+            if (cancelled.get()) return;   // nothing found so far is added
+            List<Photo> added = PhotoImporter.commit(owner, album, scan.getValue());
+            if (album == currentAlbum) photosList.getItems().addAll(added);
+            importStatus.setText("Imported " + added.size() + " photos");
+            generateThumbnails(added, cancelled);
+        });
+        scan.setOnFailed(e -> {
+            endImport();
+            new Alert(Alert.AlertType.ERROR, "Failed to import folder: "
+                    + scan.getException().getMessage()).showAndWait();
+        });
+
+        importBtn.setDisable(true);
+        importProgress.setVisible(true);
+        importProgress.setManaged(true);
+        importProgress.progressProperty().bind(scan.progressProperty());
+        importStatus.textProperty().bind(scan.messageProperty());
+        Thread t = new Thread(scan, "photos-import");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Second stage of a folder import: fills the thumbnail pack for the new photos
+     * while reporting progress under the list.
+     */
+    private void generateThumbnails(List<Photo> photos, AtomicBoolean cancelled) {
+        importStatus.textProperty().unbind();
+        importProgress.progressProperty().unbind();
+        if (photos.isEmpty()) {
+            endImport();
+            return;
+        }
+        PhotoImporter.generateThumbnails(photos, (done, total) -> Platform.runLater(() -> {
+            importProgress.setProgress((double) done / total);
+            importStatus.setText("Generating thumbnails " + done + " of " + total + "...");
+        }), cancelled).whenComplete((v, ex) -> Platform.runLater(() -> {
+            endImport();
+            importStatus.setText("Imported " + photos.size() + " photos");
+        }));
+    }
+
+    /**
+     * Stops a running folder import; called when leaving the screen. Thumbnails not
+     * generated yet are made when the photos are first shown.
+     */
+    private void cancelImport() {
+        if (importCancelled != null) importCancelled.set(true);
+    }
+
+    private void endImport() {
+        importStatus.textProperty().unbind();
+        importProgress.progressProperty().unbind();
+        importProgress.setVisible(false);
+        importProgress.setManaged(false);
+        importBtn.setDisable(false);
     }
 
     /**
@@ -88,9 +200,8 @@ public class AlbumController {
         if (sel == null) return;
 
         if (confirm("Remove this photo from album?")) {
-            currentAlbum.photos.remove(sel);
+            DataStore.apply(Mutation.removePhoto(user(), currentAlbum, sel));   // persist removal
             photosList.getItems().remove(sel);
-            DataStore.saveUsers();   // persist removal
         }
     }
 
@@ -107,9 +218,8 @@ public class AlbumController {
         d.setHeaderText("Set Caption");
         d.setContentText("Caption:");
         d.showAndWait().ifPresent(c -> {
-            sel.caption = c.trim();
-            photosList.refresh();
-            DataStore.saveUsers();   // persist caption change
+            DataStore.apply(Mutation.setCaption(user(), holderOf(currentAlbum, sel), sel, c.trim()));   // persist caption change
+            reload();
         });
     }
 
@@ -125,6 +235,7 @@ public class AlbumController {
 
         // open dedicated photo viewer with slideshow controls
         PhotoViewerController.setStartIndex(idx);
+        cancelImport();
         Photos.switchScene("/photos/view/viewer.fxml", "Photo Viewer - " + currentAlbum.name);
     }
 
@@ -171,18 +282,18 @@ public class AlbumController {
         if (res.isEmpty()) return;
 
         Album dest = res.get();
-        boolean dup = dest.photos.stream().anyMatch(p -> p.path.equals(sel.path));
+        boolean dup = LibraryIndex.of(user()).duplicates.findInAlbum(dest, sel) != null;
         if (dup) {
             new Alert(Alert.AlertType.ERROR, "Destination already contains this photo.").showAndWait();
             return;
         }
 
-        dest.photos.add(sel);
+        DataStore.apply(Mutation.copyPhoto(user(), holderOf(currentAlbum, sel), sel, dest));   // persist copy/move
+        reload();
         if (move) {
-            currentAlbum.photos.remove(sel);
+            DataStore.apply(Mutation.removePhoto(user(), currentAlbum, sel));
             photosList.getItems().remove(sel);
         }
-        DataStore.saveUsers();   // persist copy/move
     }
 
     @FXML
@@ -199,6 +310,7 @@ public class AlbumController {
             TextInputDialog t1 = new TextInputDialog();
             t1.setHeaderText("Add Tag");
             t1.setContentText("name=value (e.g., person=alice):");
+            TagSuggestions.forTag(t1.getEditor(), user());
             t1.showAndWait().ifPresent(s -> {
                 String[] parts = s.split("=", 2);
                 if (parts.length == 2) {
@@ -207,8 +319,8 @@ public class AlbumController {
                             .anyMatch(x -> x.name.equalsIgnoreCase(tag.name)
                                     && x.value.equalsIgnoreCase(tag.value));
                     if (!exists) {
-                        sel.tags.add(tag);
-                        DataStore.saveUsers();   // persist new tag
+                        DataStore.apply(Mutation.addTag(user(), holderOf(currentAlbum, sel), sel, tag));   // persist new tag
+                        reload();
                     }
                 }
             });
@@ -222,8 +334,8 @@ public class AlbumController {
             del.setHeaderText("Delete Tag");
             del.getItems().addAll(sel.tags);
             del.showAndWait().ifPresent(t -> {
-                sel.tags.remove(t);
-                DataStore.saveUsers();   // persist tag removal
+                DataStore.apply(Mutation.removeTag(user(), holderOf(currentAlbum, sel), sel, t));   // persist tag removal
+                reload();
             });
         }
     }
@@ -233,9 +345,46 @@ public class AlbumController {
      */
     @FXML
     private void handleBack() {
+        cancelImport();
         Photos.switchScene("/photos/view/user_home.fxml", "Photos - Albums");
     }
 
+    /**
+     * Returns the album to address an edit of a photo through: the album shown, or
+     * for a smart album, an ordinary album holding the photo.
+     *
+     * @param shown the album being shown
+     * @param p a photo in it
+     * @return the album
+     */
+    static Album holderOf(Album shown, Photo p) {
+        if (!(shown instanceof SmartAlbum)) return shown;
+        List<Album> holders = LibraryIndex.of(AppState.get().currentUser).duplicates.albumsOf(p);
+        if (holders.isEmpty()) throw new IllegalStateException("Photo is in no album: " + p);
+        return holders.get(0);
+    }
+
+    /**
+     * Shows the photos again after an edit, which may have moved photos into or out
+     * of a smart album.
+     */
+    private void reload() {
+        if (currentAlbum instanceof SmartAlbum) {
+            photosList.getItems().setAll(currentAlbum.photos);
+        } else {
+            photosList.refresh();
+        }
+    }
+
+    /**
+     * Returns the user who owns the current album.
+     * 
+     * @return the logged-in user
+     */
+    private User user() {
+        return AppState.get().currentUser;
+    }
+
     /**
      * Displays a confirmation dialog with the specified message.
      * 
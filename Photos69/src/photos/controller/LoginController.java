@@ -6,6 +6,8 @@ import javafx.scene.control.PasswordField;
 import javafx.scene.control.TextField;
 import photos.Photos;
 import photos.model.AppState;
+import photos.model.DataStore;
+import photos.model.LibraryMonitor;
 import photos.model.User;
 
 /**
@@ -47,7 +49,9 @@ public class LoginController {
             return;
         }
 
+        DataStore.load(user);   // read this user's albums from disk
         AppState.get().currentUser = user;
+        LibraryMonitor.start(user);   // pick up edits made to the files from now on
         Photos.switchScene("/photos/view/user_home.fxml", "Photos - " + u + " (Albums)");
     }
 }
@@ -5,37 +5,83 @@ import javafx.scene.control.Label;
 import javafx.scene.control.ListCell;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.HBox;
+import javafx.scene.layout.StackPane;
+import javafx.scene.image.Image;
+import photos.image.ImageCache;
+import photos.image.ThumbnailLoader;
 import photos.model.Photo;
 
 /**
  * A custom {@code ListCell} used to render {@code Photo} items in list views.
  *
- * <p>Shows a thumbnail image and a caption or filename next to it.</p>
+ * <p>Shows a thumbnail image and a caption or filename next to it. Thumbnails are
+ * loaded in the background by {@link ThumbnailLoader}; a grey placeholder is shown
+ * until the image arrives, and the request is cancelled if the cell is reused for
+ * another photo first. Thumbnails already in {@link ImageCache} are shown at once,
+ * and reloaded when the {@link photos.model.LibraryMonitor} sees the file change.</p>
  *
  * <p>Authors: Wilmer Joya, Kenneth Yan</p>
  */
 public class PhotoCell extends ListCell<Photo> {
+    private static final String PLACEHOLDER_STYLE = "-fx-background-color: #e4e4e4;";
+
     private final HBox root = new HBox(10);
+    private final StackPane thumb = new StackPane();
     private final ImageView iv = new ImageView();
     private final Label lbl = new Label();
 
+    private Photo shown;                      // photo whose thumbnail is in iv
+    private int shownRevision;                // its file revision at the time
+    private ThumbnailLoader.Request pending;  // thumbnail still being loaded
+
     public PhotoCell() {
-        iv.setFitWidth(140);
-        iv.setFitHeight(140);
+        iv.setFitWidth(Photo.THUMB_SIZE);
+        iv.setFitHeight(Photo.THUMB_SIZE);
         iv.setPreserveRatio(true);
+        thumb.setMinSize(Photo.THUMB_SIZE, Photo.THUMB_SIZE);
+        thumb.setPrefSize(Photo.THUMB_SIZE, Photo.THUMB_SIZE);
+        thumb.getChildren().add(iv);
         root.setPadding(new Insets(6));
-        root.getChildren().addAll(iv, lbl);
+        root.getChildren().addAll(thumb, lbl);
     }
 
     @Override
     protected void updateItem(Photo item, boolean empty) {
         super.updateItem(item, empty);
         if (empty || item == null) {
+            cancelPending();
+            shown = null;
+            iv.setImage(null);
             setGraphic(null);
-        } else {
-            iv.setImage(item.loadThumb());
-            lbl.setText(item.toString());
-            setGraphic(root);
+            return;
+        }
+
+        lbl.setText(item.missing ? item + " (file missing)" : item.toString());
+        setGraphic(root);
+        if (item == shown && item.revision == shownRevision) return;   // e.g. a refresh after a caption change
+
+        cancelPending();
+        shown = item;
+        shownRevision = item.revision;
+        Image cached = ImageCache.get().peek(item.path, Photo.THUMB_SIZE, Photo.THUMB_SIZE);
+        if (cached != null) {
+            iv.setImage(cached);
+            thumb.setStyle(null);
+            return;
+        }
+        iv.setImage(null);
+        thumb.setStyle(PLACEHOLDER_STYLE);
+        pending = ThumbnailLoader.request(item, img -> {
+            pending = null;
+            iv.setImage(img);
+            thumb.setStyle(null);
+        });
+    }
+
+    private void cancelPending() {
+        if (pending != null) {
+            pending.cancel();
+            pending = null;
         }
     }
 }
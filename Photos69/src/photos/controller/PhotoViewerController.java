@@ -6,10 +6,12 @@ import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.control.ScrollPane;
 import photos.Photos;
+import photos.image.ViewerPrefetcher;
 import photos.model.*;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -19,10 +21,16 @@ import java.util.List;
  * Provides manual slideshow controls (Next/Previous) and allows editing captions and tags.
  * Changes are persisted immediately using {@code DataStore}.</p>
  *
+ * <p>The photos next to the current one are decoded ahead by a {@link ViewerPrefetcher};
+ * while a photo is still being decoded its thumbnail is shown in its place.</p>
+ *
  * <p>Authors: Wilmer Joya, Kenneth Yan</p>
  */
 public class PhotoViewerController {
 
+    /** Number of photos decoded ahead on each side of the one shown. */
+    private static final int PREFETCH_RADIUS = Integer.getInteger("photos.prefetchRadius", 2);
+
     private static int startIndex = 0;
     public static void setStartIndex(int i) { startIndex = i; }
 
@@ -40,6 +48,7 @@ public class PhotoViewerController {
     private Album album;
     private List<Photo> photos;
     private int index;
+    private final ViewerPrefetcher prefetcher = new ViewerPrefetcher(PREFETCH_RADIUS);
     private final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm");
 
     @FXML
@@ -50,7 +59,8 @@ public class PhotoViewerController {
             return;
         }
 
-        photos = album.photos;
+        // a smart album's photos can change under the viewer as tags are edited
+        photos = album instanceof SmartAlbum ? new ArrayList<>(album.photos) : album.photos;
         if (photos.isEmpty()) {
             // nothing to show, just go back
             Photos.switchScene("/photos/view/album.fxml", "Album - " + album.name);
@@ -90,17 +100,12 @@ public class PhotoViewerController {
         }
 
         Photo p = photos.get(index);
-        try {
-            // Limit the loaded image size so it doesn't blow up the stage
-            Image img = new Image(
-                    new File(p.path).toURI().toString(),
-                    1600, 900,      // max width / height for display
-                    true, true      // preserveRatio, smooth
-            );
-            imageView.setImage(img);
-        } catch (Exception e) {
-            imageView.setImage(null);
-        }
+        // Usually already decoded in the background. If not, show the cached
+        // thumbnail scaled up to the viewport until the full image is ready.
+        Image img = prefetcher.request(photos, index, full -> {
+            if (full != null) imageView.setImage(full);
+        });
+        imageView.setImage(img != null ? img : p.cachedThumb());
 
         captionLabel.setText(
                 (p.caption == null || p.caption.isEmpty())
@@ -143,9 +148,8 @@ public class PhotoViewerController {
         d.setHeaderText("Edit Caption");
         d.setContentText("Caption:");
         d.showAndWait().ifPresent(s -> {
-            p.caption = s.trim();
+            DataStore.apply(Mutation.setCaption(AppState.get().currentUser, AlbumController.holderOf(album, p), p, s.trim()));
             showPhoto();
-            DataStore.saveUsers();
         });
     }
 
@@ -161,6 +165,7 @@ public class PhotoViewerController {
             TextInputDialog t1 = new TextInputDialog();
             t1.setHeaderText("Add Tag");
             t1.setContentText("name=value (e.g., person=alice):");
+            TagSuggestions.forTag(t1.getEditor(), AppState.get().currentUser);
             t1.showAndWait().ifPresent(s -> {
                 String[] parts = s.split("=", 2);
                 if (parts.length == 2) {
@@ -169,8 +174,7 @@ public class PhotoViewerController {
                             .anyMatch(x -> x.name.equalsIgnoreCase(tag.name)
                                     && x.value.equalsIgnoreCase(tag.value));
                     if (!exists) {
-                        p.tags.add(tag);
-                        DataStore.saveUsers();
+                        DataStore.apply(Mutation.addTag(AppState.get().currentUser, AlbumController.holderOf(album, p), p, tag));
                         showPhoto();
                     }
                 }
@@ -184,8 +188,7 @@ public class PhotoViewerController {
             del.setHeaderText("Delete Tag");
             del.getItems().addAll(p.tags);
             del.showAndWait().ifPresent(t -> {
-                p.tags.remove(t);
-                DataStore.saveUsers();
+                DataStore.apply(Mutation.removeTag(AppState.get().currentUser, AlbumController.holderOf(album, p), p, t));
                 showPhoto();
             });
         }
@@ -193,6 +196,7 @@ public class PhotoViewerController {
 
     @FXML
     private void handleClose() {
+        prefetcher.close();
         Photos.switchScene("/photos/view/album.fxml", "Album - " + album.name);
     }
 }
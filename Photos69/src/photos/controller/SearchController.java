@@ -1,28 +1,63 @@
 package photos.controller;
 
+import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
 import javafx.scene.control.*;
+import javafx.stage.FileChooser;
 import photos.Photos;
 import photos.model.*;
+import photos.search.LibraryIndex;
+import photos.search.Query;
+import photos.search.SearchStream;
+import photos.search.SimilarityIndex;
+import photos.search.TagIndex;
 
+import java.io.File;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
 
 /**
  * Controller for the search screen.
- * Handles searching photos by date range or tags and creating albums from search results.
+ * Handles searching photos with a query, by date range, tags or similarity to an
+ * image, and creating albums from search results.
+ *
+ * <p>Searches run on a background thread and their results are shown in batches as
+ * they are found, so the first page appears without waiting for the rest. Starting
+ * another search or leaving the screen cancels the one running. Once a search is
+ * done, the tags most common among its results are listed next to them; picking
+ * one narrows the search down to the photos with that tag.</p>
  * 
  * <p>Authors: Wilmer Joya, Kenneth Yan</p>
  */
 public class SearchController {
+    private static final Logger LOG = Logger.getLogger(SearchController.class.getName());
+
+    /** Runs one search at a time, off the FX thread. */
+    private static final ExecutorService SEARCHES = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "photos-search");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final int FIRST_PAGE = 100;   // small, to show something quickly
+    private static final int BATCH = 1000;
+    private static final int FACETS = 15;        // common tags shown next to the results
+
     @FXML private ToggleGroup modeGroup;
     @FXML private RadioButton byDateRadio;
     @FXML private RadioButton byTagRadio;
 
+    // by query
+    @FXML private RadioButton byQueryRadio;
+    @FXML private TextField queryField;
+    @FXML private CheckBox explainCheck;
+
     // by date
     @FXML private TextField fromField;
     @FXML private TextField toField;
@@ -34,12 +69,26 @@ public class SearchController {
     @FXML private TextField tag2Value;
     @FXML private ChoiceBox<String> opChoice;
 
+    // by similarity
+    @FXML private RadioButton bySimilarRadio;
+    @FXML private TextField similarPath;
+    @FXML private TextField similarRadius;
+    @FXML private CheckBox similarGroups;
+
     @FXML private ListView<Photo> resultsList;
+    @FXML private ListView<TagIndex.Facet> facetList;
     @FXML private Button runBtn;
     @FXML private Button createAlbumBtn;
+    @FXML private Button createSmartBtn;
     @FXML private Button backBtn;
+    @FXML private Label statusLabel;
 
     private final ObservableList<Photo> results = FXCollections.observableArrayList();
+    private Future<?> running;
+    private int generation;          // bumped per search; results of older ones are dropped
+    private long started;            // System.nanoTime() when the search started
+    private long firstResultNanos;   // time to the first result shown, or -1
+    private Query lastQuery;         // the query shown, to narrow down; null for similarity
     private final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
 
     /**
@@ -51,33 +100,36 @@ public class SearchController {
         opChoice.setValue("AND");
         resultsList.setItems(results);
         resultsList.setCellFactory(l -> new PhotoCell());
+        User u = AppState.get().currentUser;
+        TagSuggestions.forName(tag1Name, u);
+        TagSuggestions.forValue(tag1Value, tag1Name::getText, u);
+        TagSuggestions.forName(tag2Name, u);
+        TagSuggestions.forValue(tag2Value, tag2Name::getText, u);
+        LibraryMonitor.setOnChange(resultsList::refresh);
+        facetList.setPlaceholder(new Label("Tags common among\nthe results show here.\nDouble-click one to\nnarrow the search."));
+        facetList.setOnMouseClicked(e -> {
+            if (e.getClickCount() == 2) narrow(facetList.getSelectionModel().getSelectedItem());
+        });
     }
 
     /**
-     * Handles the search operation based on the selected mode (date range or tags).
+     * Handles the search operation based on the selected mode (query, date range, tags or similarity).
      * Filters photos and displays the results in the list view.
      */
     @FXML
     private void handleSearch() {
-        results.clear();
-        List<Photo> allPhotos = allUserPhotos();
-
-        if (byDateRadio.isSelected()) {
+        if (byQueryRadio.isSelected()) {
+            searchQuery();
+        } else if (byDateRadio.isSelected()) {
             Date lo = parseDate(fromField.getText());
             Date hi = parseDate(toField.getText());
             if (lo == null || hi == null) {
                 alert("Enter dates as yyyy-MM-dd.");
                 return;
             }
-                // Make the 'hi' date inclusive for the whole day (end of day)
-                long hiEnd = hi.getTime() + 24L * 60 * 60 * 1000 - 1;
-                long loTime = lo.getTime();
-                results.addAll(allPhotos.stream()
-                    .filter(p -> {
-                    long t = p.date.getTime();
-                    return t >= loTime && t <= hiEnd;
-                    })
-                    .collect(Collectors.toList()));
+            stream(Query.dates(lo, hi));   // whole days, 'hi' included
+        } else if (bySimilarRadio.isSelected()) {
+            searchSimilar();
         } else {
             String n1 = tag1Name.getText().trim();
             String v1 = tag1Value.getText().trim();
@@ -91,35 +143,242 @@ public class SearchController {
                 return;
             }
 
-            if (has1 && !has2) {
-                results.addAll(allPhotos.stream()
-                        .filter(p -> hasTag(p, n1, v1))
-                        .collect(Collectors.toList()));
-            } else if (!has1) {
-                results.addAll(allPhotos.stream()
-                        .filter(p -> hasTag(p, n2, v2))
-                        .collect(Collectors.toList()));
-            } else {
-                String op = opChoice.getValue();
-                if ("AND".equals(op)) {
-                    results.addAll(allPhotos.stream()
-                            .filter(p -> hasTag(p, n1, v1) && hasTag(p, n2, v2))
-                            .collect(Collectors.toList()));
+            List<Tag> query = new ArrayList<>(2);
+            if (has1) query.add(new Tag(n1, v1));
+            if (has2) query.add(new Tag(n2, v2));
+            stream(Query.tags(query, "AND".equals(opChoice.getValue())));
+        }
+    }
+
+    /**
+     * Runs the query typed by the user, and shows how it was evaluated if
+     * "Explain" is checked.
+     */
+    private void searchQuery() {
+        String text = queryField.getText().trim();
+        if (text.isEmpty()) {
+            alert("Enter a query, e.g. person=alice AND date:2024-01-01..2024-12-31");
+            return;
+        }
+        Query q;
+        try {
+            q = Query.parse(text);
+        } catch (ParseException e) {
+            alert(e.getMessage() + " (at character " + (e.getErrorOffset() + 1) + ")");
+            return;
+        }
+
+        stream(q);
+        if (explainCheck.isSelected()) {
+            LibraryIndex index = LibraryIndex.of(AppState.get().currentUser);
+            Alert a = new Alert(Alert.AlertType.INFORMATION, q.toString());
+            a.setHeaderText("Query Plan");
+            TextArea ta = new TextArea(index.explain(q));
+            ta.setEditable(false);
+            ta.setStyle("-fx-font-family: monospace;");
+            ta.setPrefSize(640, 320);
+            a.getDialogPane().setExpandableContent(ta);
+            a.getDialogPane().setExpanded(true);
+            a.showAndWait();
+        }
+    }
+
+    /**
+     * Starts streaming the photos matching a query into the results list: a first
+     * page as soon as it is found, then the rest in batches.
+     *
+     * @param q the query
+     */
+    private void stream(Query q) {
+        LibraryIndex index = LibraryIndex.of(AppState.get().currentUser);
+        SearchStream matches = index.stream(q);
+        int gen = startSearch();
+        lastQuery = q;
+        running = SEARCHES.submit(() -> {
+            try {
+                int page = FIRST_PAGE;
+                while (!matches.isDone() && !Thread.currentThread().isInterrupted()) {
+                    List<Photo> batch = new ArrayList<>(page);
+                    matches.next(batch, page);
+                    if (!batch.isEmpty()) Platform.runLater(() -> publish(gen, batch));
+                    page = BATCH;
+                }
+                if (matches.isDone()) {
+                    Platform.runLater(() -> finish(gen));
+                    List<TagIndex.Facet> facets = index.facets(q, FACETS);
+                    Platform.runLater(() -> showFacets(gen, facets));
+                }
+            } catch (RuntimeException e) {
+                Platform.runLater(() -> fail(gen, e));
+            }
+        });
+    }
+
+    /**
+     * Lets the user pick the image to find similar photos of.
+     */
+    @FXML
+    private void handleChooseSimilar() {
+        FileChooser fc = new FileChooser();
+        fc.setTitle("Find Photos That Look Like");
+        fc.getExtensionFilters().add(new FileChooser.ExtensionFilter(
+                "Images", "*.png", "*.jpg", "*.jpeg", "*.gif", "*.bmp"));
+        File f = fc.showOpenDialog(resultsList.getScene().getWindow());
+        if (f != null) {
+            similarPath.setText(f.getAbsolutePath());
+            bySimilarRadio.setSelected(true);
+        }
+    }
+
+    /**
+     * Finds the photos that look like the chosen image, closest first, or all groups
+     * of photos that look alike. Runs off the FX thread since the image has to be
+     * decoded and grouping queries the index once per photo.
+     */
+    private void searchSimilar() {
+        int radius = SimilarityIndex.DEFAULT_RADIUS;
+        String r = similarRadius.getText().trim();
+        if (!r.isEmpty()) {
+            try {
+                radius = Integer.parseInt(r);
+            } catch (NumberFormatException e) {
+                radius = -1;
+            }
+            if (radius < 0 || radius > 64) {
+                alert("Max. difference must be a number from 0 to 64.");
+                return;
+            }
+        }
+        String path = similarPath.getText().trim();
+        boolean groups = similarGroups.isSelected();
+        if (!groups && path.isEmpty()) {
+            alert("Choose an image, or search the whole library for groups.");
+            return;
+        }
+
+        LibraryIndex library = LibraryIndex.of(AppState.get().currentUser);
+        SimilarityIndex index = library.similar;
+        final int maxDistance = radius;
+        int gen = startSearch();
+        running = SEARCHES.submit(() -> {
+            try {
+                List<Photo> found;
+                if (!groups) {
+                    found = index.similar(path, maxDistance);
                 } else {
-                    results.addAll(allPhotos.stream()
-                            .filter(p -> hasTag(p, n1, v1) || hasTag(p, n2, v2))
-                            .collect(Collectors.toList()));
+                    found = new ArrayList<>();
+                    for (List<Photo> group : index.clusters(maxDistance)) found.addAll(group);
                 }
+                List<TagIndex.Facet> facets = library.facets(found, FACETS);
+                Platform.runLater(() -> {
+                    publish(gen, found);
+                    finish(gen);
+                    showFacets(gen, facets);
+                    int pending = index.pending();
+                    if (gen == generation && pending > 0) {
+                        alert(pending + " photos are still being analyzed and may be missing from the results.");
+                    }
+                });
+            } catch (RuntimeException e) {
+                Platform.runLater(() -> fail(gen, e));
             }
+        });
+    }
+
+    /**
+     * Cancels the running search, if any, and clears the results for a new one.
+     *
+     * @return the new search's generation, to tell its results from stale ones
+     */
+    private int startSearch() {
+        cancelSearch();
+        results.clear();
+        facetList.getItems().clear();
+        lastQuery = null;
+        started = System.nanoTime();
+        firstResultNanos = -1;
+        statusLabel.setText("Searching...");
+        return generation;
+    }
+
+    /**
+     * Stops the running search. Results it already handed to the FX thread are
+     * dropped when they arrive.
+     */
+    private void cancelSearch() {
+        generation++;
+        if (running != null) {
+            running.cancel(true);
+            running = null;
         }
     }
 
+    /**
+     * Shows a batch of results, unless they belong to a search that was cancelled.
+     */
+    private void publish(int gen, List<Photo> batch) {
+        if (gen != generation) return;
+        if (firstResultNanos < 0 && !batch.isEmpty()) firstResultNanos = System.nanoTime() - started;
+        results.addAll(batch);
+        statusLabel.setText(String.format("%d photos so far (first after %.1f ms)...",
+                results.size(), firstResultNanos / 1e6));
+    }
+
+    /**
+     * Reports a finished search: how many photos it found, how long the first took
+     * to show and how long all of them took.
+     */
+    private void finish(int gen) {
+        if (gen != generation) return;
+        running = null;
+        double total = (System.nanoTime() - started) / 1e6;
+        String status = firstResultNanos < 0
+                ? String.format("No photos found (%.1f ms)", total)
+                : String.format("%d photos in %.1f ms (first after %.1f ms)",
+                        results.size(), total, firstResultNanos / 1e6);
+        statusLabel.setText(status);
+        LOG.fine(() -> status + "; " + LibraryIndex.of(AppState.get().currentUser).cacheStats());
+    }
+
+    /**
+     * Shows the tags most common among the results, unless they belong to a search
+     * that was cancelled.
+     */
+    private void showFacets(int gen, List<TagIndex.Facet> facets) {
+        if (gen == generation) facetList.getItems().setAll(facets);
+    }
+
+    /**
+     * Narrows the last search down to the photos with a tag picked from the facets,
+     * by running it again as a query with the tag added.
+     *
+     * @param f the picked tag
+     */
+    private void narrow(TagIndex.Facet f) {
+        if (f == null || lastQuery == null) return;
+        Query q = lastQuery.and(Query.tags(Collections.singletonList(f.tag), true));
+        queryField.setText(q.toString());
+        byQueryRadio.setSelected(true);
+        handleSearch();
+    }
+
+    private void fail(int gen, RuntimeException e) {
+        if (gen != generation) return;
+        running = null;
+        statusLabel.setText("");
+        alert("Search failed: " + e.getMessage());
+    }
+
     /**
      * Handles creating a new album from the search results.
      * Prompts the user for an album name and saves the results as a new album.
      */
     @FXML
     private void handleCreateAlbum() {
+        if (running != null) {
+            alert("Wait for the search to finish.");
+            return;
+        }
         if (results.isEmpty()) {
             alert("No results to save.");
             return;
@@ -133,41 +392,72 @@ public class SearchController {
             if (n.isEmpty()) return;
 
             User u = AppState.get().currentUser;
-            boolean exists = u.albums.stream()
-                    .anyMatch(a -> a.name.equalsIgnoreCase(n));
-            if (exists) {
+            if (u.findAlbum(n) != null) {
                 alert("Album already exists.");
                 return;
             }
 
+            // remember one album holding each photo, and where, so the copies can be journaled
+            Map<Photo, Album> source = new IdentityHashMap<>();
+            Map<Photo, Integer> position = new IdentityHashMap<>();
+            for (Album al : u.albums) {
+                for (int i = 0; i < al.photos.size(); i++) {
+                    Photo p = al.photos.get(i);
+                    if (source.putIfAbsent(p, al) == null) position.put(p, i);
+                }
+            }
+
             Album a = new Album(n);
-            a.photos.addAll(results);   // same physical photos
-            u.albums.add(a);
-            DataStore.saveUsers();      // persist new album
-            alert("Created album '" + n + "' with " + results.size() + " photos.");
+            DataStore.apply(Mutation.addAlbum(u, a));   // persist new album
+            int copied = 0;
+            for (Photo p : results) {                   // same physical photos
+                Album from = source.get(p);
+                if (from == null) continue;             // removed since the search ran
+                DataStore.apply(Mutation.copyPhoto(u, from, position.get(p), a));
+                copied++;
+            }
+            alert("Created album '" + n + "' with " + copied + " photos.");
         });
     }
 
     /**
-     * Handles navigating back to the user home screen.
+     * Handles saving the search as a smart album, which keeps showing the photos
+     * matching the query as the library changes.
      */
     @FXML
-    private void handleBack() {
-        Photos.switchScene("/photos/view/user_home.fxml", "Photos - Albums");
+    private void handleCreateSmartAlbum() {
+        if (lastQuery == null) {
+            alert("Search by query, dates or tags first.");
+            return;
+        }
+        Query q = lastQuery;
+
+        TextInputDialog d = new TextInputDialog("Saved Search");
+        d.setHeaderText("Save Search as Smart Album\n" + q);
+        d.setContentText("Album name:");
+        d.showAndWait().ifPresent(name -> {
+            String n = name.trim();
+            if (n.isEmpty()) return;
+
+            User u = AppState.get().currentUser;
+            if (u.findAlbum(n) != null) {
+                alert("Album already exists.");
+                return;
+            }
+
+            SmartAlbum a = new SmartAlbum(n, q.toString());
+            DataStore.apply(Mutation.addSmartAlbum(u, a));   // persist the query; the photos follow it
+            alert("Created smart album '" + n + "' with " + a.size() + " photos.");
+        });
     }
 
     /**
-     * Checks if a photo has a specific tag.
-     * 
-     * @param p the photo
-     * @param name the tag name
-     * @param value the tag value
-     * @return true if the photo has the tag, false otherwise
+     * Handles navigating back to the user home screen.
      */
-    private boolean hasTag(Photo p, String name, String value) {
-        return p.tags.stream()
-                .anyMatch(t -> t.name.equalsIgnoreCase(name)
-                        && t.value.equalsIgnoreCase(value));
+    @FXML
+    private void handleBack() {
+        cancelSearch();
+        Photos.switchScene("/photos/view/user_home.fxml", "Photos - Albums");
     }
 
     /**
@@ -184,18 +474,6 @@ public class SearchController {
         }
     }
 
-    /**
-     * Retrieves all photos from all albums of the current user.
-     * 
-     * @return a list of all photos
-     */
-    private List<Photo> allUserPhotos() {
-        User u = AppState.get().currentUser;
-        Set<Photo> set = new LinkedHashSet<>();
-        u.albums.forEach(a -> set.addAll(a.photos));
-        return new ArrayList<>(set);
-    }
-
     /**
      * Displays an alert dialog with the specified message.
      * 
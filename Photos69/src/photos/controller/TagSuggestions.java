@@ -0,0 +1,118 @@
+package photos.controller;
+
+import javafx.geometry.Side;
+import javafx.scene.control.ContextMenu;
+import javafx.scene.control.MenuItem;
+import javafx.scene.control.TextField;
+import photos.model.User;
+import photos.search.LibraryIndex;
+import photos.search.TagCompleter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Shows a drop-down of the user's most used tag names or values under a text field
+ * while it is being typed in, taken from the {@link TagCompleter} of the user's
+ * {@link LibraryIndex}. Picking one fills it in.
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+final class TagSuggestions {
+    private static final int MAX = 8;
+
+    private TagSuggestions() {
+    }
+
+    /**
+     * Suggests completions in a field holding a whole tag, {@code name=value}: names
+     * until the '=' is typed, then values of that name.
+     *
+     * @param f the field
+     * @param u the user whose tags to suggest
+     */
+    static void forTag(TextField f, User u) {
+        TagCompleter c = completer(u);
+        if (c == null) return;
+        attach(f, text -> {
+            int eq = text.indexOf('=');
+            if (eq < 0) return c.names(text.trim(), MAX);
+            return c.values(text.substring(0, eq).trim(), text.substring(eq + 1).trim(), MAX);
+        }, (text, pick) -> {
+            int eq = text.indexOf('=');
+            return eq < 0 ? pick + "=" : text.substring(0, eq + 1) + pick;
+        });
+    }
+
+    /**
+     * Suggests tag names in a field.
+     *
+     * @param f the field
+     * @param u the user whose tags to suggest
+     */
+    static void forName(TextField f, User u) {
+        TagCompleter c = completer(u);
+        if (c == null) return;
+        attach(f, text -> c.names(text.trim(), MAX), (text, pick) -> pick);
+    }
+
+    /**
+     * Suggests values of a tag name in a field.
+     *
+     * @param f the field
+     * @param name gives the name whose values to suggest, e.g. from another field
+     * @param u the user whose tags to suggest
+     */
+    static void forValue(TextField f, Supplier<String> name, User u) {
+        TagCompleter c = completer(u);
+        if (c == null) return;
+        attach(f, text -> {
+            String n = name.get().trim();
+            return n.isEmpty() ? Collections.emptyList() : c.values(n, text.trim(), MAX);
+        }, (text, pick) -> pick);
+    }
+
+    private static TagCompleter completer(User u) {
+        LibraryIndex index = u == null ? null : LibraryIndex.of(u);
+        return index == null ? null : index.completions;
+    }
+
+    /**
+     * Updates the drop-down whenever the text changes while the field has focus.
+     *
+     * @param f the field
+     * @param complete gives the suggestions for the current text
+     * @param apply gives the new text when a suggestion is picked
+     */
+    private static void attach(TextField f, Function<String, List<String>> complete,
+                               BiFunction<String, String, String> apply) {
+        ContextMenu menu = new ContextMenu();
+        f.textProperty().addListener((obs, old, text) -> {
+            List<String> picks = f.isFocused() ? complete.apply(text) : Collections.<String>emptyList();
+            // nothing to offer once the text is exactly the only suggestion
+            if (picks.isEmpty() || (picks.size() == 1 && apply.apply(text, picks.get(0)).equalsIgnoreCase(text))) {
+                menu.hide();
+                return;
+            }
+            List<MenuItem> items = new ArrayList<>(picks.size());
+            for (String pick : picks) {
+                MenuItem item = new MenuItem(pick);
+                item.setMnemonicParsing(false);
+                item.setOnAction(e -> {
+                    f.setText(apply.apply(f.getText(), pick));
+                    f.positionCaret(f.getText().length());
+                });
+                items.add(item);
+            }
+            menu.getItems().setAll(items);
+            if (!menu.isShowing()) menu.show(f, Side.BOTTOM, 0, 0);
+        });
+        f.focusedProperty().addListener((obs, was, is) -> {
+            if (!is) menu.hide();
+        });
+    }
+}
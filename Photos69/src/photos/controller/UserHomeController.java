@@ -9,10 +9,17 @@ import photos.Photos;
 import photos.model.Album;
 import photos.model.AppState;
 import photos.model.DataStore;
+import photos.model.LibraryMonitor;
+import photos.model.Mutation;
+import photos.model.Photo;
+import photos.model.SmartAlbum;
 import photos.model.User;
+import photos.search.DuplicateIndex;
+import photos.search.LibraryIndex;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 
 /**
  * Controller for the user home screen.
@@ -37,21 +44,34 @@ public class UserHomeController {
     private final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm");
 
     /**
-     * Initializes the controller by populating the album table with the user's albums.
+     * Initializes the controller by populating the album table with the user's albums,
+     * followed by their smart albums.
      */
     @FXML
     private void initialize() {
         User user = AppState.get().currentUser;
         data.setAll(user.albums);
+        data.addAll(user.smartAlbums);
         albumsTable.setItems(data);
 
-        nameCol.setCellValueFactory(c -> new SimpleStringProperty(c.getValue().name));
+        nameCol.setCellValueFactory(c -> new SimpleStringProperty(name(c.getValue())));
         countCol.setCellValueFactory(c -> new SimpleStringProperty(String.valueOf(c.getValue().size())));
         rangeCol.setCellValueFactory(c -> new SimpleStringProperty(range(c.getValue())));
     }
 
     /**
-     * Computes the date range of an album.
+     * Formats the name of an album, with the query of a smart album.
+     *
+     * @param a the album
+     * @return the name to show
+     */
+    private String name(Album a) {
+        if (!(a instanceof SmartAlbum)) return a.name;
+        return a.name + "  (smart: " + ((SmartAlbum) a).query + ")";
+    }
+
+    /**
+     * Formats the date range of an album.
      * 
      * @param a the album
      * @return the date range as a string, or "-" if the album is empty
@@ -76,17 +96,14 @@ public class UserHomeController {
             String name = n.trim();
             if (name.isEmpty()) return;
 
-            boolean exists = AppState.get().currentUser.albums.stream()
-                    .anyMatch(a -> a.name.equalsIgnoreCase(name));
-            if (exists) {
+            if (AppState.get().currentUser.findAlbum(name) != null) {
                 new Alert(Alert.AlertType.ERROR, "Album already exists").showAndWait();
                 return;
             }
 
             Album a = new Album(name);
-            AppState.get().currentUser.albums.add(a);
+            DataStore.apply(Mutation.addAlbum(AppState.get().currentUser, a));   // persist albums
             data.add(a);
-            DataStore.saveUsers();   // persist albums
         });
     }
 
@@ -106,16 +123,17 @@ public class UserHomeController {
             String name = n.trim();
             if (name.isEmpty()) return;
 
-            boolean exists = AppState.get().currentUser.albums.stream()
-                    .anyMatch(a -> a != sel && a.name.equalsIgnoreCase(name));
-            if (exists) {
+            Album other = AppState.get().currentUser.findAlbum(name);
+            if (other != null && other != sel) {
                 new Alert(Alert.AlertType.ERROR, "Album already exists").showAndWait();
                 return;
             }
 
-            sel.name = name;
+            User u = AppState.get().currentUser;
+            DataStore.apply(sel instanceof SmartAlbum
+                    ? Mutation.renameSmartAlbum(u, (SmartAlbum) sel, name)
+                    : Mutation.renameAlbum(u, sel, name));   // persist rename
             albumsTable.refresh();
-            DataStore.saveUsers();   // persist rename
         });
     }
 
@@ -129,9 +147,11 @@ public class UserHomeController {
         if (sel == null) return;
 
         if (confirm("Delete album '" + sel.name + "'?")) {
-            AppState.get().currentUser.albums.remove(sel);
+            User u = AppState.get().currentUser;
+            DataStore.apply(sel instanceof SmartAlbum
+                    ? Mutation.deleteSmartAlbum(u, (SmartAlbum) sel)
+                    : Mutation.deleteAlbum(u, sel));   // persist delete
             data.remove(sel);
-            DataStore.saveUsers();   // persist delete
         }
     }
 
@@ -157,12 +177,55 @@ public class UserHomeController {
         Photos.switchScene("/photos/view/search.fxml", "Search Photos");
     }
 
+    /**
+     * Handles the duplicates report.
+     * Lists every picture that is stored more than once in the user's library,
+     * under the same or a different path, with the albums holding each copy.
+     */
+    @FXML
+    private void handleDuplicates() {
+        DuplicateIndex index = LibraryIndex.of(AppState.get().currentUser).duplicates;
+        List<List<Photo>> groups = index.duplicates();
+
+        StringBuilder sb = new StringBuilder();
+        for (List<Photo> group : groups) {
+            for (Photo p : group) {
+                sb.append(p.path).append("  (");
+                List<Album> albums = index.albumsOf(p);
+                for (int i = 0; i < albums.size(); i++) {
+                    if (i > 0) sb.append(", ");
+                    sb.append(albums.get(i).name);
+                }
+                sb.append(")\n");
+            }
+            sb.append('\n');
+        }
+
+        int pending = index.pending();
+        String header = groups.isEmpty() ? "No duplicate photos found." : groups.size() + " pictures are stored more than once.";
+        if (pending > 0) header += "\n" + pending + " photos are still being checked.";
+
+        Alert a = new Alert(Alert.AlertType.INFORMATION, header);
+        a.setHeaderText("Duplicate Photos");
+        if (!groups.isEmpty()) {
+            TextArea ta = new TextArea(sb.toString());
+            ta.setEditable(false);
+            ta.setPrefSize(640, 320);
+            a.getDialogPane().setExpandableContent(ta);
+            a.getDialogPane().setExpanded(true);
+        }
+        a.showAndWait();
+    }
+
     /**
      * Handles logging out.
      * Clears the current user session and switches to the login view.
      */
     @FXML
     private void handleLogout() {
+        LibraryMonitor.stop();
+        LibraryIndex index = LibraryIndex.of(AppState.get().currentUser);
+        if (index != null) index.captions.save();
         AppState.get().currentUser = null;
         Photos.switchScene("/photos/view/login.fxml", "Photos - Login");
     }
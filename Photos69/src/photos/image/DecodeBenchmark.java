@@ -0,0 +1,109 @@
+package photos.image;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * Compares decoding a full image and scaling it down with decoding it subsampled
+ * by {@link ImageDecoder}, in time and peak heap.
+ *
+ * <p>Usage: {@code java photos.image.DecodeBenchmark [image file] [runs]}. Without
+ * a file, a 48 megapixel JPEG is generated in the temporary directory. Each path is
+ * decoded to the thumbnail and viewer sizes. Peak heap is the highest heap usage
+ * the JVM recorded during the runs, after a GC beforehand, so it includes the
+ * transient full-size bitmap where there is one.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+public final class DecodeBenchmark {
+    private DecodeBenchmark() {}
+
+    public static void main(String[] args) throws Exception {
+        File file = args.length > 0 ? new File(args[0]) : generate(8000, 6000);
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        System.out.printf("%s (%d KB), %d runs%n", file, file.length() >> 10, runs);
+
+        int[][] sizes = { { 140, 140 }, { 1600, 900 } };
+        for (int[] size : sizes) {
+            final int w = size[0];
+            final int h = size[1];
+            measure("full decode + scale  " + w + "x" + h, runs,
+                    () -> scale(ImageIO.read(file), w, h));
+            measure("subsampled decode    " + w + "x" + h, runs,
+                    () -> ImageDecoder.decodeScaled(file, w, h));
+        }
+    }
+
+    private static void measure(String name, int runs, Callable<BufferedImage> decode) throws Exception {
+        decode.call();   // warm up
+        List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+        System.gc();
+        long base = heapUsed(pools);
+        for (MemoryPoolMXBean p : pools) p.resetPeakUsage();
+
+        long start = System.nanoTime();
+        BufferedImage last = null;
+        for (int i = 0; i < runs; i++) last = decode.call();
+        long elapsed = System.nanoTime() - start;
+
+        long peak = 0;
+        for (MemoryPoolMXBean p : pools) {
+            if (p.getType() == MemoryType.HEAP) peak += p.getPeakUsage().getUsed();
+        }
+        System.out.printf("%s: %7.1f ms/image, peak heap +%4d MB, result %dx%d%n",
+                name, elapsed / 1e6 / runs, Math.max(0, peak - base) >> 20,
+                last.getWidth(), last.getHeight());
+    }
+
+    private static long heapUsed(List<MemoryPoolMXBean> pools) {
+        long used = 0;
+        for (MemoryPoolMXBean p : pools) {
+            if (p.getType() == MemoryType.HEAP) used += p.getUsage().getUsed();
+        }
+        return used;
+    }
+
+    /**
+     * Scales a fully decoded image down, as JavaFX does, for comparison.
+     */
+    private static BufferedImage scale(BufferedImage src, int maxW, int maxH) {
+        double s = Math.min(1.0, Math.min((double) maxW / src.getWidth(), (double) maxH / src.getHeight()));
+        int w = Math.max(1, (int) Math.round(src.getWidth() * s));
+        int h = Math.max(1, (int) Math.round(src.getHeight() * s));
+        BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = dst.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(src, 0, 0, w, h, null);
+        g.dispose();
+        return dst;
+    }
+
+    private static File generate(int w, int h) throws IOException {
+        File f = new File(System.getProperty("java.io.tmpdir"), "photos-bench-" + w + "x" + h + ".jpg");
+        if (f.exists()) return f;
+        BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = bi.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.ORANGE, w, h, Color.BLUE));
+        g.fillRect(0, 0, w, h);
+        Random rnd = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            g.setColor(new Color(rnd.nextInt()));
+            g.fillOval(rnd.nextInt(w), rnd.nextInt(h), 20 + rnd.nextInt(400), 20 + rnd.nextInt(400));
+        }
+        g.dispose();
+        ImageIO.write(bi, "jpg", f);
+        return f;
+    }
+}
@@ -0,0 +1,211 @@
+package photos.image;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Minimal reader for the EXIF block of JPEG files.
+ *
+ * <p>Only the segment headers at the start of the file are read: the reader walks
+ * the JPEG markers until it finds the APP1 "Exif" segment (reading just four bytes
+ * for every other segment it skips) and stops at the first frame or scan marker.
+ * From the EXIF data it takes the capture time and the embedded thumbnail most
+ * cameras store there, so neither needs the image itself to be decoded.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+public final class ExifReader {
+    private static final int TAG_DATE_TIME = 0x0132;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    private static final int TAG_PIXEL_WIDTH = 0xA002;
+    private static final int TAG_PIXEL_HEIGHT = 0xA003;
+    private static final int TAG_THUMB_OFFSET = 0x0201;
+    private static final int TAG_THUMB_LENGTH = 0x0202;
+
+    /** Markers are not searched for past this point. */
+    private static final long MAX_HEADER = 256 * 1024;
+
+    private ExifReader() {}
+
+    /**
+     * The values read from a file's EXIF block. Missing values are null or 0.
+     */
+    public static final class Exif {
+        /** When the photo was taken (DateTimeOriginal, else DateTime), in local time. */
+        public Date captureDate;
+        /** The embedded JPEG thumbnail. */
+        public byte[] thumbnail;
+        /** Size of the main image as recorded by the camera. */
+        public int width, height;
+
+        /**
+         * Decodes the embedded thumbnail if it can stand in for the photo: at least
+         * {@code size} pixels across and, when the photo's size is recorded, with the
+         * photo's aspect ratio (some cameras pad it to 4:3 with black bars).
+         *
+         * @param size the bounding box to decode into, in pixels
+         * @return the thumbnail, or null if there is no suitable one
+         * @throws IOException if the thumbnail cannot be decoded
+         */
+        public BufferedImage usableThumbnail(int size) throws IOException {
+            if (thumbnail == null) return null;
+            BufferedImage bi = ImageDecoder.decodeScaled(thumbnail, size, size);
+            if (bi == null || Math.max(bi.getWidth(), bi.getHeight()) < size) return null;
+            if (width > 0 && height > 0) {
+                double photo = (double) width / height;
+                double thumb = (double) bi.getWidth() / bi.getHeight();
+                if (Math.abs(photo - thumb) > 0.05 * photo) return null;
+            }
+            return bi;
+        }
+    }
+
+    /**
+     * Reads the EXIF block of a JPEG file.
+     *
+     * @param file the file
+     * @return what was found, or null if the file is not a JPEG or has no EXIF block
+     * @throws IOException if the file cannot be read
+     */
+    public static Exif read(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate(4);
+            long pos = 2;
+            if (read(ch, head, 0, 2) < 2 || head.getShort(0) != (short) 0xFFD8) return null;
+
+            while (pos < MAX_HEADER && read(ch, head, pos, 4) == 4) {
+                if ((head.get(0) & 0xff) != 0xFF) return null;
+                int marker = head.get(1) & 0xff;
+                int length = head.getShort(2) & 0xffff;
+                if (marker == 0xDA || (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC)) {
+                    return null;   // reached the image data without finding EXIF
+                }
+                if (marker == 0xE1 && length > 8) {
+                    ByteBuffer seg = ByteBuffer.allocate(length - 2);
+                    if (read(ch, seg, pos + 4, seg.capacity()) == seg.capacity()
+                            && startsWithExif(seg)) {
+                        return parse(seg.position(6).slice());
+                    }
+                }
+                pos += 2 + length;
+            }
+            return null;
+        }
+    }
+
+    private static int read(FileChannel ch, ByteBuffer buf, long at, int n) throws IOException {
+        buf.clear().limit(n);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, at + buf.position()) < 0) break;
+        }
+        return buf.position();
+    }
+
+    private static boolean startsWithExif(ByteBuffer seg) {
+        byte[] id = new byte[6];
+        seg.get(0, id);
+        return Arrays.equals(id, "Exif\0\0".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Parses the TIFF structure inside the APP1 segment.
+     *
+     * @param tiff the segment after the "Exif" identifier; offsets are relative to its start
+     */
+    private static Exif parse(ByteBuffer tiff) {
+        try {
+            char order = (char) tiff.get(0);
+            if (order == 'I') tiff.order(ByteOrder.LITTLE_ENDIAN);
+            else if (order != 'M') return null;
+            if (tiff.getShort(2) != 42) return null;
+
+            Exif exif = new Exif();
+            int ifd0 = tiff.getInt(4);
+            String dateTime = null;
+            String original = null;
+            int exifIfd = 0;
+            int n = tiff.getShort(ifd0) & 0xffff;
+            for (int i = 0; i < n; i++) {
+                int e = ifd0 + 2 + i * 12;
+                int tag = tiff.getShort(e) & 0xffff;
+                if (tag == TAG_DATE_TIME) dateTime = ascii(tiff, e);
+                else if (tag == TAG_EXIF_IFD) exifIfd = tiff.getInt(e + 8);
+            }
+            int ifd1 = tiff.getInt(ifd0 + 2 + n * 12);
+
+            if (exifIfd > 0) {
+                int m = tiff.getShort(exifIfd) & 0xffff;
+                for (int i = 0; i < m; i++) {
+                    int e = exifIfd + 2 + i * 12;
+                    int tag = tiff.getShort(e) & 0xffff;
+                    if (tag == TAG_DATE_TIME_ORIGINAL) original = ascii(tiff, e);
+                    else if (tag == TAG_PIXEL_WIDTH) exif.width = number(tiff, e);
+                    else if (tag == TAG_PIXEL_HEIGHT) exif.height = number(tiff, e);
+                }
+            }
+
+            if (ifd1 > 0) {
+                int offset = 0;
+                int length = 0;
+                int m = tiff.getShort(ifd1) & 0xffff;
+                for (int i = 0; i < m; i++) {
+                    int e = ifd1 + 2 + i * 12;
+                    int tag = tiff.getShort(e) & 0xffff;
+                    if (tag == TAG_THUMB_OFFSET) offset = tiff.getInt(e + 8);
+                    else if (tag == TAG_THUMB_LENGTH) length = tiff.getInt(e + 8);
+                }
+                if (offset > 0 && length > 0 && length <= tiff.limit() - offset) {   // no int overflow
+                    exif.thumbnail = new byte[length];
+                    tiff.get(offset, exif.thumbnail);
+                }
+            }
+
+            exif.captureDate = date(original != null ? original : dateTime);
+            return exif;
+        } catch (IndexOutOfBoundsException e) {
+            return null;   // truncated or malformed block
+        }
+    }
+
+    /**
+     * Reads an ASCII value, stored inline if it fits in four bytes and at an offset otherwise.
+     */
+    private static String ascii(ByteBuffer tiff, int entry) {
+        int count = tiff.getInt(entry + 4);
+        if (count <= 0 || count > 256) return null;
+        int at = count <= 4 ? entry + 8 : tiff.getInt(entry + 8);
+        byte[] b = new byte[count];
+        tiff.get(at, b);
+        int len = 0;
+        while (len < b.length && b[len] != 0) len++;
+        return new String(b, 0, len, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Reads a SHORT or LONG value stored inline.
+     */
+    private static int number(ByteBuffer tiff, int entry) {
+        int type = tiff.getShort(entry + 2);
+        return type == 3 ? tiff.getShort(entry + 8) & 0xffff : tiff.getInt(entry + 8);
+    }
+
+    private static Date date(String s) {
+        if (s == null || s.isBlank() || s.startsWith("0000")) return null;
+        try {
+            return new SimpleDateFormat("yyyy:MM:dd HH:mm:ss").parse(s.trim());
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package photos.image;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persistent cache of values computed from the contents of image files, such as
+ * content digests, stored in {@code data/fingerprints.dat}.
+ *
+ * <p>Like the {@link ThumbnailStore}, the file is an append-only sequence of
+ * records, each holding the kind of value, the source path, the source file's size
+ * and modification time, and the value itself. It is read into memory on first use;
+ * a value is only returned while the file still has the size and modification time
+ * it was computed from.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+public final class FingerprintStore {
+    /** Kind of a SHA-256 digest of the whole file. */
+    public static final int SHA256 = 1;
+    /** Kind of a 64-bit {@link PerceptualHash}. */
+    public static final int DHASH = 3;   // 2 is retired; do not reuse
+
+    private static final Path STORE_FILE = Paths.get("data", "fingerprints.dat");
+    private static final int RECORD_MAGIC = 0x46505254;   // "FPRT"
+
+    /** Files are hashed through mappings of at most this many bytes. */
+    private static final long MAP_CHUNK = 64L << 20;
+
+    private static FingerprintStore instance;
+
+    /**
+     * Gets the shared fingerprint store, reading its file on first use.
+     *
+     * @return the store
+     */
+    public static synchronized FingerprintStore get() {
+        if (instance == null) {
+            instance = new FingerprintStore(STORE_FILE);
+        }
+        return instance;
+    }
+
+    /**
+     * Computes a fingerprint of a file.
+     */
+    public interface Fingerprinter {
+        /**
+         * @param file the file
+         * @return the fingerprint
+         * @throws IOException if the file cannot be read
+         */
+        byte[] compute(Path file) throws IOException;
+    }
+
+    private static final class Entry {
+        final long size;
+        final long modified;
+        final byte[] value;
+
+        Entry(long size, long modified, byte[] value) {
+            this.size = size;
+            this.modified = modified;
+            this.value = value;
+        }
+    }
+
+    private final Path file;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private DataOutputStream out;   // null if the store cannot be written
+    private int unflushed;
+
+    private FingerprintStore(Path file) {
+        this.file = file;
+        try {
+            Files.createDirectories(file.getParent());
+            int records = read();
+            if (records > 2 * entries.size() + 1024) rewrite();
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+            Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "photos-fingerprints"));
+        } catch (IOException e) {
+            out = null;   // values are still computed, just not remembered
+        }
+    }
+
+    /**
+     * Returns a fingerprint of a file, computing and remembering it unless a value
+     * computed from the file's current contents is already stored.
+     *
+     * @param kind the kind of fingerprint, e.g. {@link #SHA256}
+     * @param path the file
+     * @param f computes the fingerprint on a miss
+     * @return the fingerprint
+     * @throws IOException if the file cannot be read
+     */
+    public byte[] fingerprint(int kind, Path path, Fingerprinter f) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        long size = attrs.size();
+        long modified = attrs.lastModifiedTime().toMillis();
+        String key = kind + ":" + path.toAbsolutePath();
+        synchronized (this) {
+            Entry e = entries.get(key);
+            if (e != null && e.size == size && e.modified == modified) return e.value;
+        }
+
+        byte[] value = f.compute(path);
+        synchronized (this) {
+            entries.put(key, new Entry(size, modified, value));
+            if (out != null) {
+                try {
+                    writeRecord(out, key, size, modified, value);
+                    if (++unflushed >= 64) {   // losing a few cached values in a crash is harmless
+                        out.flush();
+                        unflushed = 0;
+                    }
+                } catch (IOException ex) {
+                    out = null;
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Writes out records that are still buffered.
+     */
+    public synchronized void flush() {
+        if (out == null) return;
+        try {
+            out.flush();
+            unflushed = 0;
+        } catch (IOException e) {
+            out = null;
+        }
+    }
+
+    /**
+     * Computes the SHA-256 digest of a file, reading it through memory mappings so
+     * that the contents are hashed straight from the page cache.
+     *
+     * @param path the file
+     * @return the 32-byte digest
+     * @throws IOException if the file cannot be read
+     */
+    public static byte[] sha256(Path path) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+            for (long pos = 0; pos < size; pos += MAP_CHUNK) {
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_CHUNK, size - pos));
+                md.update(buf);
+            }
+        }
+        return md.digest();
+    }
+
+    /**
+     * Reads all records, keeping the last one for each key. A torn record at the
+     * end is cut off.
+     *
+     * @return the number of records read
+     */
+    private int read() throws IOException {
+        if (!Files.exists(file)) return 0;
+        int records = 0;
+        long good = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                if (in.readInt() != RECORD_MAGIC) break;
+                byte[] key = new byte[in.readUnsignedShort()];
+                in.readFully(key);
+                long size = in.readLong();
+                long modified = in.readLong();
+                byte[] value = new byte[in.readUnsignedShort()];
+                in.readFully(value);
+                entries.put(new String(key, StandardCharsets.UTF_8), new Entry(size, modified, value));
+                good += 4 + 2 + key.length + 8 + 8 + 2 + value.length;
+                records++;
+            }
+        } catch (EOFException e) {
+            // end of file, or a torn record
+        }
+        if (good < Files.size(file)) {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ch.truncate(good);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Rewrites the file with only the current record of each key.
+     */
+    private void rewrite() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream o = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            for (Map.Entry<String, Entry> me : entries.entrySet()) {
+                Entry e = me.getValue();
+                writeRecord(o, me.getKey(), e.size, e.modified, e.value);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeRecord(DataOutputStream o, String key, long size, long modified, byte[] value)
+            throws IOException {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        if (k.length > 0xffff || value.length > 0xffff) return;
+        o.writeInt(RECORD_MAGIC);
+        o.writeShort(k.length);
+        o.write(k);
+        o.writeLong(size);
+        o.writeLong(modified);
+        o.writeShort(value.length);
+        o.write(value);
+    }
+
+    /**
+     * Wraps a fingerprint so it can be used as a hash map key.
+     *
+     * @param value the fingerprint
+     * @return a key comparing by content
+     */
+    public static ByteBuffer key(byte[] value) {
+        return ByteBuffer.wrap(value).asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,181 @@
+package photos.image;
+
+import javafx.scene.image.Image;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide cache of decoded images, shared by the album list, search results
+ * and the photo viewer.
+ *
+ * <p>Images are keyed by file path and the box they were scaled to fit, and the
+ * cache is bounded by the memory their pixels take up (four bytes per pixel) rather
+ * than by the number of entries, so a few full-size viewer images count for as much
+ * as hundreds of thumbnails. When the budget is exceeded the least recently used
+ * images are dropped.</p>
+ *
+ * <p>The budget defaults to a quarter of the heap, at most 256 MB, and can be set
+ * with the {@code photos.imageCacheBytes} system property.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+public final class ImageCache {
+    private static final Logger LOG = Logger.getLogger(ImageCache.class.getName());
+
+    private static final long DEFAULT_BUDGET =
+            Math.min(256L << 20, Runtime.getRuntime().maxMemory() / 4);
+
+    private static final ImageCache INSTANCE =
+            new ImageCache(Long.getLong("photos.imageCacheBytes", DEFAULT_BUDGET));
+
+    /**
+     * Gets the shared image cache.
+     *
+     * @return the cache
+     */
+    public static ImageCache get() {
+        return INSTANCE;
+    }
+
+    private final long budget;
+    private final LinkedHashMap<String, Image> images = new LinkedHashMap<>(256, 0.75f, true);
+    private long bytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private ImageCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Returns an image from the cache, loading and adding it on a miss. The loader
+     * runs outside the cache lock, so two threads missing on the same image at once
+     * may both decode it; the second result simply replaces the first.
+     *
+     * @param path the absolute path of the image file
+     * @param width the width of the box the image is scaled to fit
+     * @param height the height of the box the image is scaled to fit
+     * @param loader decodes the image on a miss; may return null
+     * @return the image, or null if the loader returned null
+     */
+    public Image image(String path, int width, int height, Supplier<Image> loader) {
+        String key = key(path, width, height);
+        synchronized (this) {
+            Image img = images.get(key);
+            if (img != null) {
+                hits++;
+                return img;
+            }
+            misses++;
+        }
+        Image img = loader.get();
+        if (img != null && !img.isError()) {
+            put(key, img);
+        }
+        return img;
+    }
+
+    /**
+     * Returns an image if it is already cached, without loading it.
+     *
+     * @param path the absolute path of the image file
+     * @param width the width of the box the image was scaled to fit
+     * @param height the height of the box the image was scaled to fit
+     * @return the image, or null if it is not cached
+     */
+    public synchronized Image peek(String path, int width, int height) {
+        Image img = images.get(key(path, width, height));
+        if (img != null) hits++;
+        return img;
+    }
+
+    /**
+     * Drops every cached size of an image, e.g. after the file has changed on disk.
+     *
+     * @param path the absolute path of the image file
+     */
+    public synchronized void invalidate(String path) {
+        String prefix = path + "@";
+        Iterator<Map.Entry<String, Image>> it = images.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Image> e = it.next();
+            if (e.getKey().startsWith(prefix)) {
+                bytes -= sizeOf(e.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Describes the cache's size and hit rate, for logging.
+     *
+     * @return the statistics
+     */
+    public synchronized String stats() {
+        long lookups = hits + misses;
+        return String.format("%d images, %d of %d KB, %d hits, %d misses (%.0f%% hit rate), %d evictions",
+                images.size(), bytes >> 10, budget >> 10, hits, misses,
+                lookups == 0 ? 0.0 : 100.0 * hits / lookups, evictions);
+    }
+
+    /**
+     * Returns the number of lookups that found their image in the cache.
+     *
+     * @return the hits so far
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that had to load their image.
+     *
+     * @return the misses so far
+     */
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of images dropped to stay within the memory budget.
+     *
+     * @return the evictions so far
+     */
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    private synchronized void put(String key, Image img) {
+        long size = sizeOf(img);
+        if (size > budget) return;   // would evict everything else for one image
+        Image old = images.put(key, img);
+        if (old != null) bytes -= sizeOf(old);
+        bytes += size;
+
+        Iterator<Image> it = images.values().iterator();
+        int evicted = 0;
+        while (bytes > budget && it.hasNext()) {
+            bytes -= sizeOf(it.next());
+            it.remove();
+            evicted++;
+        }
+        if (evicted > 0) {
+            evictions += evicted;
+            LOG.fine(this::stats);
+        }
+    }
+
+    private static long sizeOf(Image img) {
+        return 4L * Math.max(1, (long) img.getWidth()) * Math.max(1, (long) img.getHeight());
+    }
+
+    private static String key(String path, int width, int height) {
+        return path + "@" + width + "x" + height;
+    }
+}
@@ -0,0 +1,144 @@
+package photos.image;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Decodes images straight to the size they are displayed at.
+ *
+ * <p>JavaFX decodes the whole source bitmap before scaling it down, so a 100
+ * megapixel panorama briefly takes 400 MB of heap even when it is shown as a 140
+ * pixel thumbnail. This decoder asks the ImageIO reader to subsample the source
+ * while reading, skipping every n-th row and column, where n is the largest step
+ * that still leaves at least the target resolution. Peak memory therefore follows
+ * the target size rather than the source size. The remaining factor (less than
+ * two) is scaled away with bilinear filtering.</p>
+ *
+ * <p>Formats ImageIO cannot read (or files it fails on, such as CMYK JPEGs) fall
+ * back to JavaFX's own decoder. Images smaller than the target are never enlarged.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+public final class ImageDecoder {
+    private ImageDecoder() {}
+
+    /**
+     * Decodes an image file scaled to fit a box, preserving its aspect ratio.
+     *
+     * @param file the image file
+     * @param maxWidth the width of the box, in pixels
+     * @param maxHeight the height of the box, in pixels
+     * @return the image, or null if the file cannot be read
+     */
+    public static Image decode(File file, int maxWidth, int maxHeight) {
+        BufferedImage bi;
+        try {
+            bi = decodeScaled(file, maxWidth, maxHeight);
+        } catch (IOException | RuntimeException e) {
+            bi = null;
+        }
+        if (bi == null) {
+            Image img = new Image(file.toURI().toString(), maxWidth, maxHeight, true, true);
+            return img.isError() ? null : img;
+        }
+        return toFxImage(bi);
+    }
+
+    /**
+     * Decodes an image file with ImageIO, subsampling while reading, and scales the
+     * result to fit a box.
+     *
+     * @param file the image file
+     * @param maxWidth the width of the box, in pixels
+     * @param maxHeight the height of the box, in pixels
+     * @return the image, or null if no ImageIO reader understands the file
+     * @throws IOException if the file cannot be read
+     */
+    public static BufferedImage decodeScaled(File file, int maxWidth, int maxHeight) throws IOException {
+        return decodeScaled((Object) file, maxWidth, maxHeight);
+    }
+
+    /**
+     * Decodes an encoded image held in memory, such as an embedded EXIF thumbnail,
+     * scaled to fit a box.
+     *
+     * @param data the encoded image
+     * @param maxWidth the width of the box, in pixels
+     * @param maxHeight the height of the box, in pixels
+     * @return the image, or null if no ImageIO reader understands the data
+     * @throws IOException if the data cannot be decoded
+     */
+    public static BufferedImage decodeScaled(byte[] data, int maxWidth, int maxHeight) throws IOException {
+        return decodeScaled(new ByteArrayInputStream(data), maxWidth, maxHeight);
+    }
+
+    private static BufferedImage decodeScaled(Object source, int maxWidth, int maxHeight) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(source)) {
+            if (in == null) throw new IOException("Cannot open " + source);
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int w = reader.getWidth(0);
+                int h = reader.getHeight(0);
+                double scale = Math.min(1.0, Math.min((double) maxWidth / w, (double) maxHeight / h));
+                int targetW = Math.max(1, (int) Math.round(w * scale));
+                int targetH = Math.max(1, (int) Math.round(h * scale));
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                int step = Math.max(1, Math.min(w / targetW, h / targetH));
+                if (step > 1) {
+                    param.setSourceSubsampling(step, step, 0, 0);
+                }
+                BufferedImage read = reader.read(0, param);
+                return read.getWidth() == targetW && read.getHeight() == targetH
+                        ? read : resize(read, targetW, targetH);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Copies the pixels of a {@code BufferedImage} into a JavaFX image.
+     *
+     * @param bi the image to copy
+     * @return the JavaFX image
+     */
+    static WritableImage toFxImage(BufferedImage bi) {
+        int w = bi.getWidth();
+        int h = bi.getHeight();
+        int[] argb = bi.getRGB(0, 0, w, h, null, 0, w);
+        WritableImage img = new WritableImage(w, h);
+        img.getPixelWriter().setPixels(0, 0, w, h, PixelFormat.getIntArgbInstance(), argb, 0, w);
+        return img;
+    }
+
+    private static BufferedImage resize(BufferedImage src, int w, int h) {
+        BufferedImage dst = new BufferedImage(w, h,
+                src.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = dst.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(src, 0, 0, w, h, null);
+        } finally {
+            g.dispose();
+        }
+        return dst;
+    }
+}
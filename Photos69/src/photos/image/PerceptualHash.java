@@ -0,0 +1,100 @@
+package photos.image;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Perceptual "difference hash" of an image: 64 bits that stay almost the same when
+ * a picture is resized, re-encoded or slightly edited, so that similar pictures can
+ * be found by comparing hashes bit by bit.
+ *
+ * <p>The image is reduced to 9x8 grey levels by averaging blocks of pixels, and bit
+ * {@code 8 * y + x} is set when cell {@code (x, y)} is brighter than its right-hand
+ * neighbour. The reduction starts from the same small images the thumbnail
+ * pipeline uses: the embedded EXIF thumbnail when it has the photo's shape, otherwise a
+ * {@link ImageDecoder subsampled decode}, so hashing never decodes a full-size
+ * image. Hashes are remembered in the {@link FingerprintStore}.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+public final class PerceptualHash {
+    /** Size of the image the hash is computed from. */
+    private static final int SOURCE_SIZE = 64;
+
+    private PerceptualHash() {}
+
+    /**
+     * Returns the difference hash of an image file, from the fingerprint store if
+     * it has been computed before.
+     *
+     * @param file the image file
+     * @return the hash
+     * @throws IOException if the file cannot be read or decoded
+     */
+    public static long of(Path file) throws IOException {
+        byte[] v = FingerprintStore.get().fingerprint(FingerprintStore.DHASH, file,
+                f -> ByteBuffer.allocate(8).putLong(compute(f)).array());
+        return ByteBuffer.wrap(v).getLong();
+    }
+
+    /**
+     * Computes the difference hash of an image file.
+     *
+     * @param file the image file
+     * @return the hash
+     * @throws IOException if the file cannot be read or decoded
+     */
+    public static long compute(Path file) throws IOException {
+        // a padded thumbnail would hash differently from the picture itself
+        ExifReader.Exif exif = ExifReader.read(file);
+        BufferedImage small = exif == null ? null : exif.usableThumbnail(SOURCE_SIZE);
+        if (small == null) {
+            small = ImageDecoder.decodeScaled(file.toFile(), SOURCE_SIZE, SOURCE_SIZE);
+        }
+        if (small == null) throw new IOException("Unsupported image " + file);
+        return hash(small);
+    }
+
+    /**
+     * Computes the difference hash of a decoded image.
+     *
+     * @param img the image
+     * @return the hash
+     */
+    public static long hash(BufferedImage img) {
+        int w = img.getWidth();
+        int h = img.getHeight();
+        int[] argb = img.getRGB(0, 0, w, h, null, 0, w);
+
+        // average grey level of each of the 9x8 cells
+        double[] grey = new double[9 * 8];
+        for (int cy = 0; cy < 8; cy++) {
+            int y0 = cy * h / 8;
+            int y1 = Math.max(y0 + 1, (cy + 1) * h / 8);
+            for (int cx = 0; cx < 9; cx++) {
+                int x0 = cx * w / 9;
+                int x1 = Math.max(x0 + 1, (cx + 1) * w / 9);
+                long sum = 0;
+                int n = 0;
+                for (int y = y0; y < y1 && y < h; y++) {
+                    for (int x = x0; x < x1 && x < w; x++) {
+                        int px = argb[y * w + x];
+                        sum += 299 * ((px >> 16) & 0xff) + 587 * ((px >> 8) & 0xff) + 114 * (px & 0xff);
+                        n++;
+                    }
+                }
+                grey[cy * 9 + cx] = n == 0 ? 0 : (double) sum / n;
+            }
+        }
+
+        long bits = 0;
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                if (grey[y * 9 + x] > grey[y * 9 + x + 1]) bits |= 1L << (8 * y + x);
+            }
+        }
+        return bits;
+    }
+}
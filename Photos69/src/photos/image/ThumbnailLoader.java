@@ -0,0 +1,98 @@
+package photos.image;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import photos.model.Photo;
+
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Loads photo thumbnails on a small pool of background threads.
+ *
+ * <p>At most {@link #THREADS} thumbnails are decoded at once and at most
+ * {@link #MAX_QUEUED} requests wait behind them. When the queue is full the oldest
+ * waiting request is dropped: while scrolling quickly, those belong to cells that
+ * have long since been reused for other photos.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+public final class ThumbnailLoader {
+    /** Number of thumbnails decoded in parallel. */
+    static final int THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+    /** Number of requests that may wait for a decode thread. */
+    static final int MAX_QUEUED = 64;
+
+    private static final ThreadPoolExecutor POOL = new ThreadPoolExecutor(
+            THREADS, THREADS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(MAX_QUEUED),
+            r -> {
+                Thread t = new Thread(r, "photos-thumbnails");
+                t.setDaemon(true);
+                return t;
+            },
+            (r, pool) -> {
+                // drop the oldest waiting request to make room for the newest
+                Runnable oldest = pool.getQueue().poll();
+                if (oldest instanceof Future) ((Future<?>) oldest).cancel(false);
+                pool.execute(r);
+            });
+
+    static {
+        POOL.allowCoreThreadTimeOut(true);
+    }
+
+    private ThumbnailLoader() {}
+
+    /**
+     * A pending thumbnail request, which can be cancelled when the cell showing it is reused.
+     */
+    public static final class Request {
+        private final FutureTask<Image> task;
+        private volatile boolean cancelled;
+
+        private Request(Photo photo, Consumer<Image> onReady) {
+            task = new FutureTask<>(photo::loadThumb) {
+                @Override
+                protected void done() {
+                    if (isCancelled()) return;
+                    Image img;
+                    try {
+                        img = get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        img = null;
+                    }
+                    final Image result = img;
+                    Platform.runLater(() -> {
+                        if (!cancelled) onReady.accept(result);
+                    });
+                }
+            };
+        }
+
+        /**
+         * Cancels the request. If the thumbnail has not been decoded yet, it never will be;
+         * if it has, it is not delivered. Must be called on the JavaFX thread.
+         */
+        public void cancel() {
+            cancelled = true;
+            task.cancel(false);
+            POOL.remove(task);
+        }
+    }
+
+    /**
+     * Starts loading a photo's thumbnail in the background.
+     *
+     * @param photo the photo
+     * @param onReady called on the JavaFX thread with the thumbnail (or null if the
+     *                file cannot be read), unless the request was cancelled first
+     * @return a handle that cancels the request
+     */
+    public static Request request(Photo photo, Consumer<Image> onReady) {
+        Request r = new Request(photo, onReady);
+        POOL.execute(r.task);
+        return r;
+    }
+}
@@ -0,0 +1,384 @@
+package photos.image;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persistent cache of pre-scaled thumbnails, stored in a single pack file under {@code data/}.
+ *
+ * <p>The pack is a sequence of records, each holding the source path, the thumbnail
+ * size, the source file's size and last-modified time, and the encoded thumbnail
+ * (JPEG, or PNG for images with transparency). Records are only ever appended; an
+ * index from path and size to record offset is rebuilt by skimming the record headers
+ * when the store is opened. The pack is memory-mapped for reading, so a cache hit is
+ * a hash lookup, one {@code stat} of the source file and the decode of a few KB.</p>
+ *
+ * <p>On a miss the thumbnail embedded in the file's EXIF block is used when there is
+ * a suitable one, so most camera JPEGs cost a few KB of reading rather than a decode
+ * of the whole image.</p>
+ *
+ * <p>A record is only used if the source file still has the size and modification
+ * time it had when the thumbnail was made; otherwise the thumbnail is regenerated
+ * and the old record becomes garbage, which is dropped when the pack is compacted
+ * on open.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+public final class ThumbnailStore {
+    private static final Path PACK_FILE = Paths.get("data", "thumbs.pack");
+    private static final int RECORD_MAGIC = 0x54484D42;   // "THMB"
+    private static final int HEADER_FIXED = 4 + 2 + 4 + 8 + 8 + 4;
+
+    private static ThumbnailStore instance;
+
+    /**
+     * Gets the shared thumbnail store, opening the pack file on first use.
+     *
+     * @return the store
+     */
+    public static synchronized ThumbnailStore get() {
+        if (instance == null) {
+            instance = new ThumbnailStore(PACK_FILE);
+        }
+        return instance;
+    }
+
+    /**
+     * Location of one thumbnail in the pack, and the source file state it was made from.
+     */
+    private static final class Entry {
+        final long offset;   // of the encoded image
+        final int length;
+        final long fileSize;
+        final long modified;
+
+        Entry(long offset, int length, long fileSize, long modified) {
+            this.offset = offset;
+            this.length = length;
+            this.fileSize = fileSize;
+            this.modified = modified;
+        }
+    }
+
+    private final Path file;
+    private final Map<String, Entry> index = new HashMap<>();
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private long garbage;   // bytes taken up by superseded records
+
+    private ThumbnailStore(Path file) {
+        this.file = file;
+        try {
+            Files.createDirectories(file.getParent());
+            open();
+            if (garbage > (1 << 20) && garbage > channel.size() / 2) {
+                compact();
+            }
+        } catch (IOException e) {
+            // without a pack, every request simply decodes the original
+            channel = null;
+            index.clear();
+        }
+    }
+
+    /**
+     * Returns the thumbnail of an image file, from the pack if it is still valid,
+     * otherwise by decoding the original once and adding the result to the pack.
+     *
+     * @param path the absolute path of the image
+     * @param size the bounding box of the thumbnail, in pixels
+     * @return the thumbnail, or null if the image cannot be read
+     */
+    public Image thumbnail(String path, int size) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(Paths.get(path), BasicFileAttributes.class);
+        } catch (IOException | InvalidPathException e) {
+            return null;
+        }
+        long fileSize = attrs.size();
+        long modified = attrs.lastModifiedTime().toMillis();
+
+        Image cached = lookup(path, size, fileSize, modified);
+        if (cached != null) return cached;
+
+        Image img = fromExif(path, size);
+        if (img == null) img = ImageDecoder.decode(new File(path), size, size);
+        if (img == null) return null;
+        store(path, size, fileSize, modified, img);
+        return img;
+    }
+
+    /**
+     * Uses the thumbnail a camera embedded in the file's EXIF block, if there is one
+     * that is at least {@code size} pixels across and has the photo's aspect ratio
+     * (some cameras pad it to 4:3 with black bars).
+     *
+     * @return the thumbnail, or null if there is no suitable one
+     */
+    private static Image fromExif(String path, int size) {
+        try {
+            ExifReader.Exif exif = ExifReader.read(Paths.get(path));
+            BufferedImage bi = exif == null ? null : exif.usableThumbnail(size);
+            return bi == null ? null : ImageDecoder.toFxImage(bi);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the thumbnail of an image file only if the pack already holds a valid
+     * one; never decodes the original.
+     *
+     * @param path the absolute path of the image
+     * @param size the bounding box of the thumbnail, in pixels
+     * @return the thumbnail, or null if it is not in the pack
+     */
+    public Image cached(String path, int size) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(Paths.get(path), BasicFileAttributes.class);
+        } catch (IOException | InvalidPathException e) {
+            return null;
+        }
+        return lookup(path, size, attrs.size(), attrs.lastModifiedTime().toMillis());
+    }
+
+    /**
+     * Returns the cached thumbnail if its record matches the file's current state.
+     *
+     * @param path the absolute path of the image
+     * @param size the bounding box of the thumbnail
+     * @param fileSize the current size of the file
+     * @param modified the current modification time of the file
+     * @return the thumbnail, or null on a miss
+     */
+    private Image lookup(String path, int size, long fileSize, long modified) {
+        ByteBuffer data;
+        synchronized (this) {
+            Entry e = index.get(key(path, size));
+            if (e == null || e.fileSize != fileSize || e.modified != modified) return null;
+            try {
+                data = slice(e.offset, e.length);
+            } catch (IOException ex) {
+                return null;
+            }
+        }
+        Image img = new Image(new ByteBufferInputStream(data));
+        return img.isError() ? null : img;
+    }
+
+    /**
+     * Encodes a thumbnail and appends it to the pack.
+     */
+    private void store(String path, int size, long fileSize, long modified, Image img) {
+        if (channel == null) return;
+        byte[] encoded;
+        try {
+            encoded = encode(img);
+        } catch (IOException e) {
+            return;
+        }
+        byte[] key = path.getBytes(StandardCharsets.UTF_8);
+        if (key.length > Short.MAX_VALUE) return;
+
+        ByteBuffer rec = ByteBuffer.allocate(HEADER_FIXED + key.length + encoded.length);
+        rec.putInt(RECORD_MAGIC).putShort((short) key.length).put(key)
+                .putInt(size).putLong(fileSize).putLong(modified)
+                .putInt(encoded.length).put(encoded).flip();
+
+        synchronized (this) {
+            long at = -1;
+            try {
+                at = channel.size();
+                for (long pos = at; rec.hasRemaining(); ) {   // write may be short
+                    pos += channel.write(rec, pos);
+                }
+                Entry old = index.put(key(path, size),
+                        new Entry(at + rec.capacity() - encoded.length, encoded.length, fileSize, modified));
+                if (old != null) garbage += HEADER_FIXED + key.length + old.length;
+            } catch (IOException e) {
+                // the thumbnail is still returned, just not cached; cut off what was written
+                try {
+                    if (at >= 0) channel.truncate(at);
+                } catch (IOException ignored) {
+                    // the torn record is cut off when the pack is next opened
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a read-only view of part of the pack, remapping it if it has grown.
+     * A mapping is indexed by int, so only the first 2 GB are mapped; records past
+     * that are read into a buffer of their own.
+     */
+    private ByteBuffer slice(long offset, int length) throws IOException {
+        long end = offset + length;
+        if (end > Integer.MAX_VALUE) {
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, offset + buf.position()) < 0) {
+                    throw new EOFException("Thumbnail pack is shorter than its index");
+                }
+            }
+            return buf.flip();
+        }
+        if (mapped == null || end > mapped.capacity()) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(channel.size(), Integer.MAX_VALUE));
+        }
+        ByteBuffer view = mapped.duplicate();
+        view.position((int) offset).limit((int) end);
+        return view.slice();
+    }
+
+    /**
+     * Opens the pack and rebuilds the index from the record headers.
+     * A torn record at the end is cut off.
+     */
+    private void open() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        long pos = 0;
+        ByteBuffer head = ByteBuffer.allocate(HEADER_FIXED + Short.MAX_VALUE);
+        while (pos + HEADER_FIXED <= size) {
+            head.clear().limit(6);
+            channel.read(head, pos);
+            head.flip();
+            if (head.getInt() != RECORD_MAGIC) break;
+            int keyLen = head.getShort();
+            if (keyLen < 0 || pos + HEADER_FIXED + keyLen > size) break;
+
+            head.clear().limit(keyLen + HEADER_FIXED - 6);
+            channel.read(head, pos + 6);
+            head.flip();
+            byte[] key = new byte[keyLen];
+            head.get(key);
+            int thumbSize = head.getInt();
+            long fileSize = head.getLong();
+            long modified = head.getLong();
+            int length = head.getInt();
+            long data = pos + HEADER_FIXED + keyLen;
+            if (length < 0 || data + length > size) break;
+
+            Entry old = index.put(key(new String(key, StandardCharsets.UTF_8), thumbSize),
+                    new Entry(data, length, fileSize, modified));
+            if (old != null) garbage += HEADER_FIXED + keyLen + old.length;
+            pos = data + length;
+        }
+        if (pos < size) {
+            channel.truncate(pos);
+        }
+    }
+
+    /**
+     * Rewrites the pack with only the current record of each thumbnail.
+     */
+    private void compact() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Map.Entry<String, Entry> me : index.entrySet()) {
+                Entry e = me.getValue();
+                int cut = me.getKey().lastIndexOf('@');
+                byte[] key = me.getKey().substring(0, cut).getBytes(StandardCharsets.UTF_8);
+                int thumbSize = Integer.parseInt(me.getKey().substring(cut + 1));
+
+                ByteBuffer rec = ByteBuffer.allocate(HEADER_FIXED + key.length);
+                rec.putInt(RECORD_MAGIC).putShort((short) key.length).put(key)
+                        .putInt(thumbSize).putLong(e.fileSize).putLong(e.modified)
+                        .putInt(e.length).flip();
+                out.write(rec);
+                // transferTo may copy less than asked
+                for (long done = 0; done < e.length; ) {
+                    long n = channel.transferTo(e.offset + done, e.length - done, out);
+                    if (n <= 0) throw new EOFException("Thumbnail pack is shorter than its index");
+                    done += n;
+                }
+            }
+        }
+        channel.close();
+        mapped = null;
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index.clear();
+        garbage = 0;
+        open();
+    }
+
+    private static String key(String path, int size) {
+        return path + "@" + size;
+    }
+
+    /**
+     * Encodes a thumbnail as JPEG, or as PNG if it has transparent pixels.
+     */
+    private static byte[] encode(Image img) throws IOException {
+        int w = (int) img.getWidth();
+        int h = (int) img.getHeight();
+        int[] argb = new int[w * h];
+        PixelReader pr = img.getPixelReader();
+        if (pr == null) throw new IOException("Image has no pixels");
+        pr.getPixels(0, 0, w, h, PixelFormat.getIntArgbInstance(), argb, 0, w);
+
+        boolean alpha = false;
+        for (int px : argb) {
+            if ((px >>> 24) != 0xff) {
+                alpha = true;
+                break;
+            }
+        }
+        BufferedImage bi = new BufferedImage(w, h,
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        bi.setRGB(0, 0, w, h, argb, 0, w);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        if (!ImageIO.write(bi, alpha ? "png" : "jpg", out)) {
+            throw new IOException("No image writer available");
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads a slice of the memory-mapped pack without copying it first.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buf.hasRemaining()) return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package photos.image;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import photos.model.Photo;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Decodes the photos around the one shown in the viewer ahead of time, so that
+ * stepping to the next or previous photo only swaps in an image that is already
+ * decoded.
+ *
+ * <p>The window covers {@code radius} photos on each side of the current one and is
+ * held in a ring buffer of {@code 2 * radius + 1} slots: photo {@code i} always
+ * lives in slot {@code i mod size}, so moving the window by one replaces exactly one
+ * slot. Moving it further (or to another list) cancels every decode that fell out of
+ * the window and queues the new ones, nearest first.</p>
+ *
+ * <p>All methods must be called on the JavaFX thread.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+public final class ViewerPrefetcher {
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "photos-prefetch");
+        t.setDaemon(true);
+        t.setPriority(Thread.NORM_PRIORITY - 1);
+        return t;
+    });
+
+    /**
+     * One decoded (or decoding) photo in the window.
+     */
+    private final class Slot {
+        final int index;
+        final Photo photo;
+        final FutureTask<Image> task;
+
+        Slot(int index, Photo photo) {
+            this.index = index;
+            this.photo = photo;
+            this.task = new FutureTask<>(photo::loadImage) {
+                @Override
+                protected void done() {
+                    if (!isCancelled()) Platform.runLater(() -> decoded(Slot.this));
+                }
+            };
+        }
+
+        Image result() {
+            try {
+                return task.get();
+            } catch (InterruptedException | ExecutionException | CancellationException e) {
+                return null;
+            }
+        }
+    }
+
+    private final int radius;
+    private final Slot[] ring;
+
+    private Slot wanted;                 // slot the viewer is waiting for
+    private Consumer<Image> onWanted;
+
+    /**
+     * Creates a prefetcher.
+     *
+     * @param radius the number of photos to decode ahead on each side
+     */
+    public ViewerPrefetcher(int radius) {
+        this.radius = Math.max(0, radius);
+        this.ring = new Slot[2 * this.radius + 1];
+    }
+
+    /**
+     * Moves the prefetch window to a photo and returns its viewer image if it has
+     * already been decoded. Otherwise returns null and hands the image to
+     * {@code onReady} once its decode finishes, unless another photo has been
+     * requested in the meantime.
+     *
+     * @param photos the photos being browsed
+     * @param index the index of the photo to show
+     * @param onReady receives the image later if it is not ready yet; may receive null
+     *                if the photo cannot be loaded
+     * @return the image, or null if it is not decoded yet
+     */
+    public Image request(List<Photo> photos, int index, Consumer<Image> onReady) {
+        retarget(photos, index);
+        Slot s = ring[slot(index)];
+        if (s.task.isDone()) {
+            wanted = null;
+            onWanted = null;
+            return s.result();
+        }
+        wanted = s;
+        onWanted = onReady;
+        return null;
+    }
+
+    /**
+     * Centers the window on a photo: slots outside the window are cancelled and
+     * the photos around {@code center} are queued for decoding, nearest first.
+     *
+     * @param photos the photos being browsed
+     * @param center the index of the photo being shown
+     */
+    public void retarget(List<Photo> photos, int center) {
+        int lo = Math.max(0, center - radius);
+        int hi = Math.min(photos.size() - 1, center + radius);
+        for (int i = 0; i < ring.length; i++) {
+            Slot s = ring[i];
+            if (s != null && (s.index < lo || s.index > hi || photos.get(s.index) != s.photo)) {
+                cancel(s);
+                ring[i] = null;
+            }
+        }
+        for (int d = 0; d <= radius; d++) {
+            fill(photos, center + d, lo, hi);
+            if (d > 0) fill(photos, center - d, lo, hi);
+        }
+    }
+
+    /**
+     * Cancels all outstanding decodes and drops the window, e.g. when leaving the viewer.
+     */
+    public void close() {
+        wanted = null;
+        onWanted = null;
+        for (int i = 0; i < ring.length; i++) {
+            if (ring[i] != null) {
+                cancel(ring[i]);
+                ring[i] = null;
+            }
+        }
+    }
+
+    private void decoded(Slot s) {
+        if (s != wanted) return;
+        Consumer<Image> callback = onWanted;
+        wanted = null;
+        onWanted = null;
+        callback.accept(s.result());
+    }
+
+    private void fill(List<Photo> photos, int index, int lo, int hi) {
+        if (index < lo || index > hi) return;
+        int at = slot(index);
+        if (ring[at] != null) return;   // already holds this index after the sweep above
+        Slot s = new Slot(index, photos.get(index));
+        ring[at] = s;
+        POOL.execute(s.task);
+    }
+
+    private int slot(int index) {
+        return Math.floorMod(index, ring.length);
+    }
+
+    private static void cancel(Slot s) {
+        s.task.cancel(false);
+    }
+}
@@ -2,12 +2,19 @@ package photos.model;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
 /**
  * Represents an album in the Photos application.
  * Each album has a name and a list of photos.
+ *
+ * <p>The album remembers the date range of its photos so the albums table does not
+ * look at every photo each time it is drawn. Photos added with {@link #add} and
+ * {@link #addAll} widen the range as they come; after a removal or a date change the
+ * range is found again the next time it is asked for. Photos added to the list
+ * directly, as when loading, are noticed by the list's size changing.</p>
  * 
  * <p>Authors: Wilmer Joya, Kenneth Yan</p>
  */
@@ -17,6 +24,11 @@ public class Album implements Serializable {
     public String name;
     public final List<Photo> photos = new ArrayList<>();
 
+    // Date range of the photos, valid while rangeCount equals the number of photos
+    private transient long earliest;
+    private transient long latest;
+    private transient int rangeCount = -1;
+
     /**
      * Constructs a new Album with the specified name.
      * 
@@ -35,16 +47,58 @@ public class Album implements Serializable {
         return photos.size();
     }
 
+    /**
+     * Adds a photo to the end of the album.
+     *
+     * @param p the photo
+     */
+    public void add(Photo p) {
+        boolean known = rangeKnown();
+        photos.add(p);
+        if (known) widen(p);
+    }
+
+    /**
+     * Adds photos to the end of the album.
+     *
+     * @param ps the photos
+     */
+    public void addAll(Collection<Photo> ps) {
+        boolean known = rangeKnown();
+        photos.addAll(ps);
+        if (known) {
+            for (Photo p : ps) widen(p);
+        }
+    }
+
+    /**
+     * Removes the photo at a position in the album.
+     *
+     * @param index the position
+     * @return the photo removed
+     */
+    public Photo remove(int index) {
+        Photo p = photos.remove(index);
+        rangeCount = -1;
+        return p;
+    }
+
+    /**
+     * Notes that the dates of some of the album's photos have changed.
+     */
+    public void datesChanged() {
+        rangeCount = -1;
+    }
+
     /**
      * Returns the earliest date of the photos in the album.
      * 
      * @return the earliest date, or null if the album is empty
      */
     public Date earliestDate() {
-        return photos.stream()
-                .map(p -> p.date)
-                .min(Date::compareTo)
-                .orElse(null);
+        if (photos.isEmpty()) return null;
+        findRange();
+        return new Date(earliest);
     }
 
     /**
@@ -53,10 +107,29 @@ public class Album implements Serializable {
      * @return the latest date, or null if the album is empty
      */
     public Date latestDate() {
-        return photos.stream()
-                .map(p -> p.date)
-                .max(Date::compareTo)
-                .orElse(null);
+        if (photos.isEmpty()) return null;
+        findRange();
+        return new Date(latest);
+    }
+
+    private boolean rangeKnown() {
+        return rangeCount == photos.size();
+    }
+
+    private void widen(Photo p) {
+        if (rangeCount == 0) {
+            earliest = latest = p.date.getTime();
+        } else {
+            earliest = Math.min(earliest, p.date.getTime());
+            latest = Math.max(latest, p.date.getTime());
+        }
+        rangeCount++;
+    }
+
+    private void findRange() {
+        if (rangeKnown()) return;
+        rangeCount = 0;
+        for (Photo p : photos) widen(p);
     }
 
     /**
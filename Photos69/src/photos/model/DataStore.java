@@ -3,27 +3,130 @@ package photos.model;
 import java.io.*;
 import java.nio.file.*;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 import javafx.application.Platform;
 import javafx.scene.control.Alert;
 
 /**
  * Handles data persistence for the Photos application.
  * Manages saving and loading user data, as well as initializing default data.
+ *
+ * <p>Data is stored under {@code data/users/} in the binary {@link LibraryCodec} format:
+ * a small {@code index.dat} listing the usernames, plus one {@link Shard} per user. Only the index is read at startup; a
+ * user's albums are read by {@link #load(User)} when they log in.</p>
+ *
+ * <p>Edits are not written by re-serializing the whole user. Instead each
+ * {@link Mutation} is appended to a small journal next to the user's snapshot, which
+ * is replayed on load and folded into a fresh snapshot once it grows past
+ * {@link #COMPACT_THRESHOLD} bytes. All writing happens on a background
+ * {@link PersistenceWorker}, never on the JavaFX thread.</p>
  * 
  * <p>Authors: Wilmer Joya, Kenneth Yan</p>
  */
 public class DataStore {
+    private static final Logger LOG = Logger.getLogger(DataStore.class.getName());
     private static final String DATA_DIR = "data";
-    private static final String USERS_FILE = "users.dat";
+    private static final String USERS_DIR = "users";
+    private static final String INDEX_FILE = "index.dat";
     private static final String STOCK_DIR = "stock";
 
+    // single-file storage used before users were split into shards
+    private static final String LEGACY_USERS_FILE = "users.dat";
+    private static final String LEGACY_JOURNAL_FILE = "users.journal";
+
+    /** Journal size in bytes after which it is compacted into a new snapshot. */
+    static final long COMPACT_THRESHOLD = 1L << 20;
+
+    /** How long edits are collected before they are written, in milliseconds. */
+    static final long DEBOUNCE_MILLIS = Long.getLong("photos.saveDebounceMillis", 250);
+
+    private static ScheduledExecutorService executor;
+
+    // username -> shard file stem, for every user
+    private static final Map<String, String> stems = new LinkedHashMap<>();
+    private static int nextStem;
+
+    // username -> shard, for users whose albums are loaded
+    private static final Map<String, Shard> shards = new HashMap<>();
+
+    private static final List<LibraryListener> listeners = new CopyOnWriteArrayList<>();
+
+    // forwards every change to all registered listeners
+    private static final LibraryListener dispatch = new LibraryListener() {
+        @Override
+        public void userLoaded(User u) {
+            for (LibraryListener l : listeners) l.userLoaded(u);
+        }
+
+        @Override
+        public void userDeleted(User u) {
+            for (LibraryListener l : listeners) l.userDeleted(u);
+        }
+
+        @Override
+        public void albumAdded(User u, Album a) {
+            for (LibraryListener l : listeners) l.albumAdded(u, a);
+        }
+
+        @Override
+        public void albumRenamed(User u, Album a, String oldName) {
+            for (LibraryListener l : listeners) l.albumRenamed(u, a, oldName);
+        }
+
+        @Override
+        public void albumDeleted(User u, Album a) {
+            for (LibraryListener l : listeners) l.albumDeleted(u, a);
+        }
+
+        @Override
+        public void photoFileChanged(User u, Photo p) {
+            for (LibraryListener l : listeners) l.photoFileChanged(u, p);
+        }
+
+        @Override
+        public void smartAlbumAdded(User u, SmartAlbum a) {
+            for (LibraryListener l : listeners) l.smartAlbumAdded(u, a);
+        }
+
+        @Override
+        public void smartAlbumDeleted(User u, SmartAlbum a) {
+            for (LibraryListener l : listeners) l.smartAlbumDeleted(u, a);
+        }
+
+        @Override
+        public void photoAdded(User u, Album a, Photo p) {
+            for (LibraryListener l : listeners) l.photoAdded(u, a, p);
+        }
+
+        @Override
+        public void photoRemoved(User u, Album a, Photo p) {
+            for (LibraryListener l : listeners) l.photoRemoved(u, a, p);
+        }
+
+        @Override
+        public void photoChanged(User u, Photo p) {
+            for (LibraryListener l : listeners) l.photoChanged(u, p);
+        }
+    };
+
     private static Path dataDir() {
         return Paths.get(DATA_DIR);
     }
 
-    private static Path usersFile() {
-        return dataDir().resolve(USERS_FILE);
+    private static Path usersDir() {
+        return dataDir().resolve(USERS_DIR);
+    }
+
+    private static Path indexFile() {
+        return usersDir().resolve(INDEX_FILE);
     }
 
     private static Path stockDir() {
@@ -31,58 +134,313 @@ public class DataStore {
     }
 
     /**
-     * Initializes the data store by loading users from disk if present,
-     * or creating default users and albums if no data exists.
+     * Initializes the data store by loading the user index from disk if present,
+     * or creating default users and albums if no data exists. Data saved in the
+     * old single-file format is converted on first start.
      */
     public static void loadOrInit() {
         try {
-            Files.createDirectories(dataDir());
+            Files.createDirectories(usersDir());
         } catch (IOException e) {
             final String msg = "Failed to create data directory: " + e.getMessage();
             Platform.runLater(() -> new Alert(Alert.AlertType.ERROR, msg).showAndWait());
         }
 
-        if (Files.exists(usersFile())) {
-            loadUsers();
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "photos-persistence");
+            t.setDaemon(true);
+            return t;
+        });
+
+        if (Files.exists(indexFile())) {
+            loadIndex();
+        } else if (Files.exists(dataDir().resolve(LEGACY_USERS_FILE))) {
+            migrateLegacy();
         } else {
             createDefaultUsers();
-            saveUsers();
+            writeAllNow();
+        }
+    }
+
+    /**
+     * Registers a listener to be told about every change to a loaded user's library.
+     * Users that are already loaded are reported to it right away.
+     *
+     * @param l the listener
+     */
+    public static void addListener(LibraryListener l) {
+        listeners.add(l);
+        for (Shard shard : shards.values()) l.userLoaded(shard.user);
+    }
+
+    /**
+     * Removes a listener registered with {@link #addListener}.
+     *
+     * @param l the listener
+     */
+    public static void removeListener(LibraryListener l) {
+        listeners.remove(l);
+    }
+
+    /**
+     * Loads the albums of a user, unless they are loaded already.
+     * Must be called before the user's albums are shown or edited.
+     *
+     * @param u the user, as listed in {@code AppState.users}
+     */
+    public static void load(User u) {
+        if (shards.containsKey(u.username)) return;
+
+        Shard shard = new Shard(u, usersDir(), stemOf(u.username));
+        try {
+            shard.load(executor);
+        } catch (IOException | RuntimeException e) {
+            final String msg = "Some of " + u.username + "'s albums could not be restored: " + e.getMessage();
+            Platform.runLater(() -> new Alert(Alert.AlertType.ERROR, msg).showAndWait());
+            // keep what could be read and start over with a consistent snapshot
+            try {
+                shard.backUp();
+                shard.writeNow();
+                shard.attach(executor);
+            } catch (IOException e2) {
+                final String msg2 = "Failed to save user data: " + e2.getMessage();
+                Platform.runLater(() -> new Alert(Alert.AlertType.ERROR, msg2).showAndWait());
+                return;
+            }
         }
+        shards.put(u.username, shard);
+        dispatch.userLoaded(u);
+    }
+
+    /**
+     * Reports that the file of a photo has changed on disk. Nothing is saved; the
+     * listeners recompute what they derived from the old contents.
+     *
+     * @param u the owning user
+     * @param p the photo
+     */
+    static void fileChanged(User u, Photo p) {
+        dispatch.photoFileChanged(u, p);
     }
 
     /**
-     * Saves the current list of users to disk.
+     * Applies an edit to the application state and queues it for writing.
+     * Album and photo edits go to the journal of the user they belong to, which
+     * must be loaded; adding or deleting a user rewrites only the small index.
+     *
+     * @param m the edit to apply
+     */
+    public static void apply(Mutation m) {
+        if (!m.isUserListChange()) {
+            Shard shard = shards.get(m.user);
+            if (shard == null) {
+                throw new IllegalStateException("User not loaded: " + m.user);
+            }
+            shard.apply(m, dispatch);
+            return;
+        }
+
+        AppState state = AppState.get();
+        m.apply(state);
+        if (m.kind == Mutation.Kind.ADD_USER) {
+            User u = state.users.get(state.users.size() - 1);
+            Shard shard = new Shard(u, usersDir(), stemOf(u.username));
+            try {
+                shard.attach(executor);
+                shards.put(u.username, shard);
+                dispatch.userLoaded(u);
+            } catch (IOException e) {
+                final String msg = "Failed to create storage for " + u.username + ": " + e.getMessage();
+                Platform.runLater(() -> new Alert(Alert.AlertType.ERROR, msg).showAndWait());
+            }
+        } else {
+            Shard shard = shards.remove(m.user);
+            if (shard == null) {
+                shard = new Shard(new User(m.user), usersDir(), stemOf(m.user));
+            }
+            stems.remove(m.user);
+            shard.delete();
+            dispatch.userDeleted(shard.user);
+        }
+        saveIndex();
+    }
+
+    /**
+     * Marks all loaded user data as changed so that full snapshots are written in
+     * the background. Repeated calls within the debounce window result in a single write.
      */
     public static void saveUsers() {
-        try (ObjectOutputStream oos =
-                     new ObjectOutputStream(Files.newOutputStream(usersFile()))) {
+        shards.values().forEach(Shard::requestSnapshot);
+    }
+
+    /**
+     * Writes final snapshots of all loaded users and waits for all pending writes
+     * to finish. Called when the main window is closed.
+     */
+    public static void close() {
+        if (executor == null) return;
+        shards.values().forEach(Shard::close);
+        shards.clear();
+        saveIndex();
+
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                LOG.warning("Timed out waiting for pending writes");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+    }
+
+    /**
+     * Returns the path of a file kept next to a user's albums, for data derived from
+     * them such as search indexes.
+     *
+     * @param u the user
+     * @param suffix the file name suffix, e.g. {@code ".captions"}
+     * @return the path
+     */
+    public static Path sidecar(User u, String suffix) {
+        return usersDir().resolve(stemOf(u.username) + suffix);
+    }
+
+    /**
+     * Returns the shard file stem of a user, assigning a new one if needed.
+     *
+     * @param username the user
+     * @return the file stem
+     */
+    private static String stemOf(String username) {
+        return stems.computeIfAbsent(username, k -> "u" + (nextStem++));
+    }
+
+    /**
+     * Reads the list of users. Their albums stay on disk until {@link #load(User)}.
+     * If the index is corrupted, default users are created.
+     */
+    @SuppressWarnings("unchecked")
+    private static void loadIndex() {
+        try {
+            byte[] data = Files.readAllBytes(indexFile());
+            stems.clear();
+            boolean legacy = (LibraryCodec.magicOf(data) >>> 16) == LibraryCodec.SERIALIZED_MAGIC;
+            if (legacy) {
+                try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data))) {
+                    stems.putAll((Map<String, String>) ois.readObject());
+                    nextStem = ois.readInt();
+                }
+            } else {
+                nextStem = LibraryCodec.decodeIndex(data, stems);
+            }
+
+            List<User> users = new ArrayList<>();
+            stems.keySet().forEach(name -> users.add(new User(name)));
+            AppState.get().setUsers(users);
+            if (legacy) saveIndex();
+
+        } catch (Exception e) {
+            final String msg = "Failed to load user data (using defaults): " + e.getMessage();
+            Platform.runLater(() -> new Alert(Alert.AlertType.ERROR, msg).showAndWait());
+            // If something is badly corrupted, fall back to defaults.
+            createDefaultUsers();
+            writeAllNow();
+        }
+    }
 
-            oos.writeObject(new ArrayList<>(AppState.get().users));
+    /**
+     * Writes the list of users in the background.
+     */
+    private static void saveIndex() {
+        final Map<String, String> copy = new LinkedHashMap<>(stems);
+        final int next = nextStem;
+        executor.execute(() -> {
+            try {
+                writeIndex(copy, next);
+            } catch (IOException e) {
+                final String msg = "Failed to save user list: " + e.getMessage();
+                Platform.runLater(() -> new Alert(Alert.AlertType.ERROR, msg).showAndWait());
+            }
+        });
+    }
 
+    private static void writeIndex(Map<String, String> index, int next) throws IOException {
+        Path tmp = indexFile().resolveSibling(INDEX_FILE + ".tmp");
+        Files.write(tmp, LibraryCodec.encodeIndex(index, next));
+        Files.move(tmp, indexFile(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes every user in {@code AppState.users} to its own shard plus the index,
+     * on the calling thread. Used on first start, when all users are in memory.
+     *
+     * @return true if everything was written
+     */
+    private static boolean writeAllNow() {
+        stems.clear();
+        nextStem = 0;
+        shards.clear();
+        try {
+            for (User u : AppState.get().users) {
+                Shard shard = new Shard(u, usersDir(), stemOf(u.username));
+                shard.writeNow();
+                shard.attach(executor);
+                shards.put(u.username, shard);
+                dispatch.userLoaded(u);
+            }
+            writeIndex(stems, nextStem);
+            return true;
         } catch (IOException e) {
             final String msg = "Failed to save user data: " + e.getMessage();
             Platform.runLater(() -> new Alert(Alert.AlertType.ERROR, msg).showAndWait());
+            return false;
         }
     }
 
     /**
-     * Loads the list of users from disk.
-     * If the data is corrupted, default users are created.
+     * Converts data saved as a single {@code users.dat} snapshot (plus journal) into
+     * per-user shards. The old snapshot is kept as {@code users.dat.bak}.
      */
     @SuppressWarnings("unchecked")
-    private static void loadUsers() {
+    private static void migrateLegacy() {
+        Path legacy = dataDir().resolve(LEGACY_USERS_FILE);
+        long seq;
         try (ObjectInputStream ois =
-                     new ObjectInputStream(Files.newInputStream(usersFile()))) {
+                     new ObjectInputStream(Files.newInputStream(legacy))) {
 
             List<User> loaded = (List<User>) ois.readObject();
             AppState.get().setUsers(loaded);
+            try {
+                seq = ois.readLong();
+            } catch (EOFException oldFormat) {
+                seq = 0;   // snapshot written before the journal existed
+            }
 
         } catch (Exception e) {
             final String msg = "Failed to load user data (using defaults): " + e.getMessage();
             Platform.runLater(() -> new Alert(Alert.AlertType.ERROR, msg).showAndWait());
-            // If something is badly corrupted, fall back to defaults.
             createDefaultUsers();
-            saveUsers();
+            writeAllNow();
+            return;
+        }
+
+        try {
+            Journal.replay(dataDir().resolve(LEGACY_JOURNAL_FILE), seq, m -> m.apply(AppState.get()));
+        } catch (IOException | RuntimeException e) {
+            final String msg = "Some recent changes could not be restored: " + e.getMessage();
+            Platform.runLater(() -> new Alert(Alert.AlertType.ERROR, msg).showAndWait());
+        }
+
+        if (!writeAllNow()) return;   // keep the old files until the shards exist
+        try {
+            Files.move(legacy, legacy.resolveSibling(LEGACY_USERS_FILE + ".bak"),
+                    StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(dataDir().resolve(LEGACY_JOURNAL_FILE));
+        } catch (IOException e) {
+            final String msg = "Failed to remove old user data: " + e.getMessage();
+            Platform.runLater(() -> new Alert(Alert.AlertType.ERROR, msg).showAndWait());
         }
     }
 
@@ -107,22 +465,8 @@ public class DataStore {
         // load all BMP, GIF, JPEG, PNG from data/stock dir
         try {
             Files.createDirectories(stockDir());
-            DirectoryStream.Filter<Path> filter = entry -> {
-                String name = entry.getFileName().toString().toLowerCase();
-                return Files.isRegularFile(entry) &&
-                        (name.endsWith(".png") ||
-                         name.endsWith(".jpg") ||
-                         name.endsWith(".jpeg") ||
-                         name.endsWith(".gif") ||
-                         name.endsWith(".bmp"));
-            };
-
-            try (DirectoryStream<Path> stream = Files.newDirectoryStream(stockDir(), filter)) {
-                for (Path p : stream) {
-                    // store absolute path; physical file remains in data/stock in the project
-                    stockAlbum.photos.add(new Photo(p.toAbsolutePath().toString()));
-                }
-            }
+            // store absolute paths; physical files remain in data/stock in the project
+            stockAlbum.photos.addAll(PhotoImporter.scan(stockDir(), false, null, null));
         } catch (IOException e) {
             final String msg = "Error initializing stock photos: " + e.getMessage();
             Platform.runLater(() -> new Alert(Alert.AlertType.ERROR, msg).showAndWait());
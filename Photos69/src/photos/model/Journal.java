@@ -0,0 +1,177 @@
+package photos.model;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of {@link Mutation} records written next to the user snapshot.
+ *
+ * <p>Each record is framed as {@code [length][sequence][mutation][crc32]}. The sequence
+ * number lets the loader skip records that are already contained in the snapshot, and
+ * the checksum lets it detect a record that was only partially written when the
+ * application was killed. Replay stops at the first bad record and truncates the
+ * file there so later appends start from a clean position.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+final class Journal implements Closeable {
+    /** Largest record replay accepts; larger ones are refused when appending. */
+    static final int MAX_RECORD = 1 << 26;
+
+    private final FileChannel channel;
+
+    /**
+     * Opens (creating if necessary) the journal at the given path for appending.
+     *
+     * @param file the journal file
+     * @throws IOException if the file cannot be opened
+     */
+    Journal(Path file) throws IOException {
+        this.channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * A mutation together with its sequence number, as stored in the journal.
+     */
+    static final class Entry {
+        final long seq;
+        final Mutation mutation;
+
+        Entry(long seq, Mutation mutation) {
+            this.seq = seq;
+            this.mutation = mutation;
+        }
+    }
+
+    /**
+     * Appends a batch of mutation records to the end of the journal with a single write.
+     *
+     * @param entries the records to append, in sequence order
+     * @throws IOException if writing fails
+     */
+    void append(List<Entry> entries) throws IOException {
+        if (entries.isEmpty()) return;
+
+        ByteArrayOutputStream frames = new ByteArrayOutputStream(64 * entries.size());
+        DataOutputStream out = new DataOutputStream(frames);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream body = new DataOutputStream(bytes);
+        CRC32 crc = new CRC32();
+
+        for (Entry e : entries) {
+            bytes.reset();
+            body.writeLong(e.seq);
+            e.mutation.write(body);
+            body.flush();
+            byte[] payload = bytes.toByteArray();
+            if (payload.length > MAX_RECORD) {
+                throw new IOException("Change too large to record (" + payload.length + " bytes)");
+            }
+
+            crc.reset();
+            crc.update(payload);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeInt((int) crc.getValue());
+        }
+        out.flush();
+
+        ByteBuffer buf = ByteBuffer.wrap(frames.toByteArray());
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * Returns the current size of the journal in bytes.
+     *
+     * @return the size in bytes
+     * @throws IOException if the size cannot be read
+     */
+    long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Discards all records, typically right after a new snapshot has been written.
+     *
+     * @throws IOException if the file cannot be truncated
+     */
+    void reset() throws IOException {
+        channel.truncate(0);
+    }
+
+    /**
+     * Closes the underlying file.
+     *
+     * @throws IOException if closing fails
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Reads every intact record in the journal and passes those newer than
+     * {@code afterSeq} to the given consumer, in order. A torn or corrupt tail
+     * is cut off.
+     *
+     * @param file the journal file; a missing file has no records
+     * @param afterSeq the sequence number already contained in the snapshot
+     * @param sink receives each mutation to replay
+     * @return the highest sequence number seen, or {@code afterSeq} if none
+     * @throws IOException if the file cannot be read
+     */
+    static long replay(Path file, long afterSeq, Consumer<Mutation> sink) throws IOException {
+        if (!Files.exists(file)) return afterSeq;
+
+        long last = afterSeq;
+        long good = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                int len;
+                try {
+                    len = in.readInt();
+                } catch (EOFException end) {
+                    break;
+                }
+                if (len <= 8 || len > MAX_RECORD) break;
+
+                byte[] payload = new byte[len];
+                int crcValue;
+                try {
+                    in.readFully(payload);
+                    crcValue = in.readInt();
+                } catch (EOFException torn) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != crcValue) break;
+
+                DataInputStream body = new DataInputStream(new ByteArrayInputStream(payload));
+                long seq = body.readLong();
+                Mutation m = Mutation.read(body);
+                good += len + 8;
+                if (seq > last) {
+                    sink.accept(m);
+                    last = seq;
+                }
+            }
+        }
+
+        if (good < Files.size(file)) {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ch.truncate(good);
+            }
+        }
+        return last;
+    }
+}
@@ -0,0 +1,396 @@
+package photos.model;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Compact, versioned binary format for user shards and the user index.
+ *
+ * <p>A shard is laid out as follows (all integers are unsigned LEB128 varints
+ * unless noted):</p>
+ * <pre>
+ *   int32  magic "PHLB"        varint version
+ *   varint sequence number     string username
+ *   varint n, n strings        dictionary of tag names, tag values and directories
+ *   varint n, n photos         [dir id][file name][date delta][caption][tags]
+ *   varint n, n albums         [name][photo count][photo id deltas]
+ *   varint n, n smart albums   [name][query]
+ *   int32  crc32 of everything before it
+ * </pre>
+ *
+ * <p>Each photo is written once even if it appears in several albums; albums refer to
+ * photos by id, stored as differences to the previous id so runs of photos cost one
+ * byte each. Dates are stored as zig-zag encoded differences between consecutive
+ * epoch milliseconds. File names are front-coded: only the length of the prefix
+ * shared with the previous file name and the remaining suffix are written. Strings
+ * that repeat across many photos go through the dictionary and are shared again
+ * after loading.</p>
+ *
+ * <p>Smart albums store only their query; their photos are found again when the
+ * user is loaded. Version 1 files, written before smart albums existed, have no
+ * smart album section and are still read.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+final class LibraryCodec {
+    /** First four bytes of a shard written by this codec. */
+    static final int MAGIC = 0x50484C42;          // "PHLB"
+    /** First four bytes of an index written by this codec. */
+    static final int INDEX_MAGIC = 0x50484958;    // "PHIX"
+    /** First two bytes of a file written with {@code ObjectOutputStream}. */
+    static final int SERIALIZED_MAGIC = 0xACED;
+
+    static final int VERSION = 2;
+
+    private LibraryCodec() {}
+
+    /**
+     * Returns the first four bytes of a file as a big-endian int, used to tell the
+     * binary format apart from files written with Java serialization.
+     *
+     * @param data the file contents
+     * @return the magic number, or 0 if the file is shorter than four bytes
+     */
+    static int magicOf(byte[] data) {
+        if (data.length < 4) return 0;
+        return ((data[0] & 0xff) << 24) | ((data[1] & 0xff) << 16)
+                | ((data[2] & 0xff) << 8) | (data[3] & 0xff);
+    }
+
+    /**
+     * Encodes a user and all of their albums.
+     *
+     * @param u the user
+     * @param seq the sequence number of the last mutation contained in {@code u}
+     * @return the encoded shard
+     */
+    static byte[] encodeUser(User u, long seq) {
+        // number the photos in order of first appearance
+        Map<Photo, Integer> ids = new IdentityHashMap<>();
+        List<Photo> photos = new ArrayList<>();
+        for (Album a : u.albums) {
+            for (Photo p : a.photos) {
+                if (ids.putIfAbsent(p, photos.size()) == null) photos.add(p);
+            }
+        }
+
+        Dictionary dict = new Dictionary();
+        Out body = new Out(64 + photos.size() * 24);
+        body.varint(photos.size());
+        long prevDate = 0;
+        String prevName = "";
+        for (Photo p : photos) {
+            int cut = Math.max(p.path.lastIndexOf('/'), p.path.lastIndexOf('\\')) + 1;
+            body.varint(dict.id(p.path.substring(0, cut)));
+            String name = p.path.substring(cut);
+            int shared = sharedPrefix(prevName, name);
+            body.varint(shared);
+            body.string(name.substring(shared));
+            prevName = name;
+            long date = p.date.getTime();
+            body.varlong(zigzag(date - prevDate));
+            prevDate = date;
+            body.string(p.caption == null ? "" : p.caption);
+            body.varint(p.tags.size());
+            for (Tag t : p.tags) {
+                body.varint(dict.id(t.name));
+                body.varint(dict.id(t.value));
+            }
+        }
+        body.varint(u.albums.size());
+        for (Album a : u.albums) {
+            body.string(a.name);
+            body.varint(a.photos.size());
+            int prevId = -1;
+            for (Photo p : a.photos) {
+                int id = ids.get(p);
+                body.varlong(zigzag(id - prevId - 1));
+                prevId = id;
+            }
+        }
+        body.varint(u.smartAlbums.size());
+        for (SmartAlbum a : u.smartAlbums) {
+            body.string(a.name);
+            body.string(a.query);
+        }
+
+        Out out = new Out(body.size + dict.bytes + 64);
+        out.int32(MAGIC);
+        out.varint(VERSION);
+        out.varlong(seq);
+        out.string(u.username);
+        out.varint(dict.strings.size());
+        for (String s : dict.strings) out.string(s);
+        out.bytes(body.buf, body.size);
+        out.int32(crc(out.buf, out.size));
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a shard written by {@link #encodeUser} and adds its albums to {@code target}.
+     *
+     * @param data the encoded shard
+     * @param target the user to fill; its existing albums and smart albums are replaced
+     * @return the sequence number stored in the shard
+     * @throws IOException if the data is not a valid shard
+     */
+    static long decodeUser(byte[] data, User target) throws IOException {
+        In in = new In(data, MAGIC);
+        long seq = in.varlong();
+        String username = in.string();
+        if (!username.equals(target.username)) {
+            throw new IOException("Shard belongs to " + username + ", not " + target.username);
+        }
+
+        String[] dict = new String[in.count()];
+        for (int i = 0; i < dict.length; i++) dict[i] = in.string();
+
+        Photo[] photos = new Photo[in.count()];
+        long date = 0;
+        String name = "";
+        for (int i = 0; i < photos.length; i++) {
+            String dir = in.entry(dict);
+            int shared = in.count();
+            if (shared > name.length()) throw new IOException("Bad file name in data file");
+            name = name.substring(0, shared) + in.string();
+            date += unzigzag(in.varlong());
+            Photo p = new Photo(dir + name, new Date(date));
+            p.caption = in.string();
+            int tags = in.count();
+            for (int t = 0; t < tags; t++) {
+                p.tags.add(new Tag(in.entry(dict), in.entry(dict)));
+            }
+            photos[i] = p;
+        }
+
+        List<Album> albums = new ArrayList<>();
+        int albumCount = in.count();
+        for (int i = 0; i < albumCount; i++) {
+            Album a = new Album(in.string());
+            int n = in.count();
+            long id = -1;
+            for (int k = 0; k < n; k++) {
+                id += unzigzag(in.varlong()) + 1;
+                if (id < 0 || id >= photos.length) throw new IOException("Bad reference in data file");
+                a.photos.add(photos[(int) id]);
+            }
+            albums.add(a);
+        }
+        List<SmartAlbum> smartAlbums = new ArrayList<>();
+        int smartCount = in.version >= 2 ? in.count() : 0;
+        for (int i = 0; i < smartCount; i++) {
+            smartAlbums.add(new SmartAlbum(in.string(), in.string()));
+        }
+        in.end();
+
+        target.albums.clear();
+        target.albums.addAll(albums);
+        target.smartAlbums.clear();
+        target.smartAlbums.addAll(smartAlbums);
+        return seq;
+    }
+
+    /**
+     * Encodes the user index.
+     *
+     * @param stems username to shard file stem, in display order
+     * @param nextStem the next unused shard number
+     * @return the encoded index
+     */
+    static byte[] encodeIndex(Map<String, String> stems, int nextStem) {
+        Out out = new Out(64 + stems.size() * 16);
+        out.int32(INDEX_MAGIC);
+        out.varint(VERSION);
+        out.varint(nextStem);
+        out.varint(stems.size());
+        for (Map.Entry<String, String> e : stems.entrySet()) {
+            out.string(e.getKey());
+            out.string(e.getValue());
+        }
+        out.int32(crc(out.buf, out.size));
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes an index written by {@link #encodeIndex}.
+     *
+     * @param data the encoded index
+     * @param stems receives username to shard file stem, in display order
+     * @return the next unused shard number
+     * @throws IOException if the data is not a valid index
+     */
+    static int decodeIndex(byte[] data, Map<String, String> stems) throws IOException {
+        In in = new In(data, INDEX_MAGIC);
+        int next = in.count();
+        int n = in.count();
+        for (int i = 0; i < n; i++) {
+            stems.put(in.string(), in.string());
+        }
+        in.end();
+        return next;
+    }
+
+    private static int sharedPrefix(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < n && a.charAt(i) == b.charAt(i)) i++;
+        // never split a surrogate pair between prefix and suffix
+        if (i > 0 && Character.isHighSurrogate(b.charAt(i - 1))) i--;
+        return i;
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static int crc(byte[] buf, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(buf, 0, len);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Assigns small ids to strings in order of first use.
+     */
+    private static final class Dictionary {
+        final List<String> strings = new ArrayList<>();
+        final Map<String, Integer> ids = new HashMap<>();
+        int bytes;
+
+        int id(String s) {
+            Integer id = ids.get(s);
+            if (id == null) {
+                id = strings.size();
+                ids.put(s, id);
+                strings.add(s);
+                bytes += s.length() + 2;
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Growable byte buffer with varint helpers.
+     */
+    private static final class Out {
+        byte[] buf;
+        int size;
+
+        Out(int capacity) {
+            buf = new byte[Math.max(16, capacity)];
+        }
+
+        void ensure(int n) {
+            if (size + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+            }
+        }
+
+        void int32(int v) {
+            ensure(4);
+            buf[size++] = (byte) (v >>> 24);
+            buf[size++] = (byte) (v >>> 16);
+            buf[size++] = (byte) (v >>> 8);
+            buf[size++] = (byte) v;
+        }
+
+        void varint(int v) {
+            varlong(v & 0xffffffffL);
+        }
+
+        void varlong(long v) {
+            ensure(10);
+            while ((v & ~0x7fL) != 0) {
+                buf[size++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            buf[size++] = (byte) v;
+        }
+
+        void string(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            varint(b.length);
+            bytes(b, b.length);
+        }
+
+        void bytes(byte[] b, int len) {
+            ensure(len);
+            System.arraycopy(b, 0, buf, size, len);
+            size += len;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+    }
+
+    /**
+     * Reader over a complete encoded file. Checks magic, version and checksum up front;
+     * any version up to {@link #VERSION} is accepted.
+     */
+    private static final class In {
+        private final byte[] buf;
+        private final int limit;
+        private int pos;
+        final int version;
+
+        In(byte[] data, int magic) throws IOException {
+            if (data.length < 9 || magicOf(data) != magic) {
+                throw new IOException("Not a Photos data file");
+            }
+            limit = data.length - 4;
+            int stored = ((data[limit] & 0xff) << 24) | ((data[limit + 1] & 0xff) << 16)
+                    | ((data[limit + 2] & 0xff) << 8) | (data[limit + 3] & 0xff);
+            if (crc(data, limit) != stored) {
+                throw new IOException("Data file is corrupted (checksum mismatch)");
+            }
+            buf = data;
+            pos = 4;
+            version = count();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported data file version " + version);
+            }
+        }
+
+        long varlong() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= limit) throw new IOException("Unexpected end of data file");
+                byte b = buf[pos++];
+                v |= (long) (b & 0x7f) << shift;
+                if (b >= 0) return v;
+            }
+            throw new IOException("Malformed number in data file");
+        }
+
+        int count() throws IOException {
+            long v = varlong();
+            if (v > Integer.MAX_VALUE) throw new IOException("Malformed count in data file");
+            return (int) v;
+        }
+
+        <T> T entry(T[] table) throws IOException {
+            int i = count();
+            if (i >= table.length) throw new IOException("Bad reference in data file");
+            return table[i];
+        }
+
+        String string() throws IOException {
+            int len = count();
+            if (len > limit - pos) throw new IOException("Unexpected end of data file");
+            String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+
+        void end() throws IOException {
+            if (pos != limit) throw new IOException("Trailing bytes in data file");
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package photos.model;
+
+/**
+ * Receives the changes made to users' libraries, so that indexes over them can be
+ * kept up to date incrementally instead of being rebuilt.
+ *
+ * <p>Listeners are registered with {@link DataStore#addListener} and are called on
+ * the JavaFX thread right after each change has been applied. Edits replayed from
+ * the journal while a user is loaded are not reported; {@link #userLoaded} is called
+ * once loading is complete instead.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+public interface LibraryListener {
+
+    /**
+     * Called when a user's albums have been loaded.
+     *
+     * @param u the user
+     */
+    default void userLoaded(User u) {}
+
+    /**
+     * Called when a user has been deleted.
+     *
+     * @param u the user
+     */
+    default void userDeleted(User u) {}
+
+    /**
+     * Called when an album has been added. It may already contain photos.
+     *
+     * @param u the owning user
+     * @param a the album
+     */
+    default void albumAdded(User u, Album a) {}
+
+    /**
+     * Called when an album has been renamed.
+     *
+     * @param u the owning user
+     * @param a the album, with its new name
+     * @param oldName the previous name
+     */
+    default void albumRenamed(User u, Album a, String oldName) {}
+
+    /**
+     * Called when an album has been deleted. The album still lists the photos it held.
+     *
+     * @param u the owning user
+     * @param a the album
+     */
+    default void albumDeleted(User u, Album a) {}
+
+    /**
+     * Called when a smart album has been added. It has no photos yet.
+     *
+     * @param u the owning user
+     * @param a the smart album
+     */
+    default void smartAlbumAdded(User u, SmartAlbum a) {}
+
+    /**
+     * Called when a smart album has been deleted.
+     *
+     * @param u the owning user
+     * @param a the smart album
+     */
+    default void smartAlbumDeleted(User u, SmartAlbum a) {}
+
+    /**
+     * Called when a photo has been added to an album, either as a new photo or
+     * copied from another album.
+     *
+     * @param u the owning user
+     * @param a the album
+     * @param p the photo
+     */
+    default void photoAdded(User u, Album a, Photo p) {}
+
+    /**
+     * Called when a photo has been removed from an album. It may still be in others.
+     *
+     * @param u the owning user
+     * @param a the album
+     * @param p the photo
+     */
+    default void photoRemoved(User u, Album a, Photo p) {}
+
+    /**
+     * Called when the file of a photo has been edited or replaced on disk, so
+     * anything computed from its contents is out of date. A new date is reported
+     * separately through {@link #photoChanged}.
+     *
+     * @param u the owning user
+     * @param p the photo
+     */
+    default void photoFileChanged(User u, Photo p) {}
+
+    /**
+     * Called when a photo's caption or tags have changed.
+     *
+     * @param u the owning user
+     * @param p the photo
+     */
+    default void photoChanged(User u, Photo p) {}
+}
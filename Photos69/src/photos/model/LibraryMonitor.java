@@ -0,0 +1,349 @@
+package photos.model;
+
+import javafx.application.Platform;
+import photos.image.ImageCache;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Keeps the logged-in user's photos in step with their files while the user is
+ * logged in.
+ *
+ * <p>Every directory holding one of the user's photos is registered with a
+ * {@link WatchService}. When files in them are edited, replaced, moved or deleted,
+ * only the affected photos are looked at again: their dates are re-read and saved
+ * with a {@link Mutation#setDates} record, their cached images are dropped from the
+ * {@link ImageCache}, the indexes are told their contents changed and their
+ * {@link Photo#missing} flags are updated. Events are
+ * collected until the directories have been quiet for a moment, so copying a
+ * thousand files into a folder results in one batch rather than a thousand.</p>
+ *
+ * <p>When monitoring starts, each directory is listed once to flag photos whose
+ * files went away while the application was closed. A directory that is deleted
+ * or moved away stops being watched; while the folders are quiet, the monitor
+ * looks for such directories every {@value #RECHECK_MS} ms, watches
+ * them again once they are back, e.g. after a drive is remounted, and refreshes
+ * their photos.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+public final class LibraryMonitor implements LibraryListener {
+    private static final Logger LOG = Logger.getLogger(LibraryMonitor.class.getName());
+
+    /** Changes are handled once no new event has arrived for this long. */
+    private static final long QUIET_MS = Long.getLong("photos.watchQuietMs", 500);
+
+    /** Changes are handled after at most this long, even while events keep coming. */
+    private static final long MAX_DELAY_MS = 5000;
+
+    /** How often directories that are no longer watched are looked for while idle. */
+    private static final long RECHECK_MS = 30000;
+
+    private static LibraryMonitor current;
+    private static volatile Runnable onChange;
+
+    private final User user;
+    private final WatchService watcher;
+
+    // guarded by this
+    private final Map<Photo, Integer> refs = new IdentityHashMap<>();   // albums holding each photo
+    private final Map<String, List<Photo>> byPath = new HashMap<>();
+    private final Map<Path, Integer> photosIn = new HashMap<>();        // photos per watched directory
+    private final Map<Path, WatchKey> keys = new HashMap<>();
+
+    /**
+     * Starts monitoring the files of a user's photos, stopping any earlier monitor.
+     * Called on the JavaFX thread when the user logs in.
+     *
+     * @param u the user, already loaded
+     */
+    public static synchronized void start(User u) {
+        stop();
+        try {
+            current = new LibraryMonitor(u);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Cannot watch photo folders", e);
+        }
+    }
+
+    /**
+     * Stops monitoring, e.g. when the user logs out.
+     */
+    public static synchronized void stop() {
+        if (current == null) return;
+        DataStore.removeListener(current);
+        try {
+            current.watcher.close();   // ends the thread
+        } catch (IOException e) {
+            // nothing left to release
+        }
+        current = null;
+    }
+
+    /**
+     * Sets what to run on the JavaFX thread after photos have been updated, typically
+     * a refresh of the list showing them.
+     *
+     * @param r the action, or null
+     */
+    public static void setOnChange(Runnable r) {
+        onChange = r;
+    }
+
+    private LibraryMonitor(User u) throws IOException {
+        this.user = u;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        for (Album a : u.albums) albumAdded(u, a);
+        DataStore.addListener(this);
+
+        Thread thread = new Thread(this::run, "photos-watch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        try {
+            checkMissing();
+
+            Set<Path> changed = new HashSet<>();
+            Set<Path> lostDirs = new HashSet<>();   // overflowed or gone: check all their photos
+            long first = 0;
+            while (true) {
+                WatchKey key;
+                if (changed.isEmpty() && lostDirs.isEmpty()) {
+                    key = watcher.poll(RECHECK_MS, TimeUnit.MILLISECONDS);
+                    if (key == null) {
+                        Set<Path> back = rewatch();
+                        if (!back.isEmpty()) refresh(Collections.emptySet(), back);
+                        continue;
+                    }
+                    first = System.currentTimeMillis();
+                } else {
+                    long left = first + MAX_DELAY_MS - System.currentTimeMillis();
+                    key = left > 0 ? watcher.poll(Math.min(QUIET_MS, left), TimeUnit.MILLISECONDS) : null;
+                    if (key == null) {
+                        refresh(changed, lostDirs);
+                        changed.clear();
+                        lostDirs.clear();
+                        continue;
+                    }
+                }
+
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> e : key.pollEvents()) {
+                    if (e.kind() == OVERFLOW) {
+                        lostDirs.add(dir);
+                    } else {
+                        changed.add(dir.resolve((Path) e.context()));
+                    }
+                }
+                if (!key.reset()) {   // the directory itself was deleted or moved
+                    synchronized (this) {
+                        keys.remove(dir);
+                    }
+                    lostDirs.add(dir);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Flags the photos whose files no longer exist, listing each directory once
+     * instead of looking up every file.
+     */
+    private void checkMissing() {
+        Map<Path, List<Photo>> byDir = new HashMap<>();
+        synchronized (this) {
+            for (List<Photo> photos : byPath.values()) {
+                for (Photo p : photos) {
+                    Path dir = parentOf(p.path);
+                    if (dir != null) byDir.computeIfAbsent(dir, k -> new ArrayList<>()).add(p);
+                }
+            }
+        }
+
+        List<Photo> missing = new ArrayList<>();
+        for (Map.Entry<Path, List<Photo>> e : byDir.entrySet()) {
+            Set<String> names = new HashSet<>();
+            try (Stream<Path> files = Files.list(e.getKey())) {
+                files.forEach(f -> names.add(f.getFileName().toString()));
+            } catch (IOException ex) {
+                // unreadable or gone: all of its photos are missing
+            }
+            for (Photo p : e.getValue()) {
+                if (!names.contains(Paths.get(p.path).getFileName().toString())) missing.add(p);
+            }
+        }
+        if (missing.isEmpty()) return;
+        Platform.runLater(() -> {
+            for (Photo p : missing) p.missing = true;
+            changed();
+        });
+    }
+
+    /**
+     * Watches again the directories holding photos that are not watched, because
+     * they were deleted or moved away or could not be registered, if they exist now.
+     *
+     * @return the directories watched again
+     */
+    private Set<Path> rewatch() {
+        List<Path> unwatched;
+        synchronized (this) {
+            unwatched = new ArrayList<>(photosIn.keySet());
+            unwatched.removeAll(keys.keySet());
+        }
+        Set<Path> back = new HashSet<>();
+        for (Path dir : unwatched) {
+            if (!Files.isDirectory(dir)) continue;
+            synchronized (this) {
+                // photos may have been removed meanwhile
+                if (photosIn.containsKey(dir) && !keys.containsKey(dir) && register(dir)) back.add(dir);
+            }
+        }
+        if (!back.isEmpty()) LOG.fine(() -> "Watching " + back.size() + " folders again");
+        return back;
+    }
+
+    /**
+     * Looks at the photos of changed files again and applies the differences on the
+     * JavaFX thread: dates through the journal, missing flags and cached images directly,
+     * and new contents to the listeners of the {@link DataStore}.
+     *
+     * @param changed files that were created, modified or deleted
+     * @param lostDirs directories whose events were lost, or which are gone
+     */
+    private void refresh(Set<Path> changed, Set<Path> lostDirs) {
+        Set<Photo> affected = Collections.newSetFromMap(new IdentityHashMap<>());
+        synchronized (this) {
+            for (Path f : changed) {
+                List<Photo> photos = byPath.get(f.toString());
+                if (photos != null) affected.addAll(photos);
+            }
+            if (!lostDirs.isEmpty()) {
+                for (List<Photo> photos : byPath.values()) {
+                    for (Photo p : photos) {
+                        if (lostDirs.contains(parentOf(p.path))) affected.add(p);
+                    }
+                }
+            }
+        }
+        if (affected.isEmpty()) return;   // e.g. a file that is not in the library
+
+        Set<String> gone = new HashSet<>();
+        Map<String, Date> dates = new HashMap<>();
+        for (Photo p : affected) {
+            if (gone.contains(p.path) || dates.containsKey(p.path)) continue;
+            if (Files.exists(Paths.get(p.path))) {
+                dates.put(p.path, Photo.dateOf(p.path));
+                ImageCache.get().invalidate(p.path);
+            } else {
+                gone.add(p.path);
+            }
+        }
+        LOG.fine(() -> "Refreshing " + dates.size() + " changed and " + gone.size() + " missing files");
+
+        Platform.runLater(() -> {
+            synchronized (LibraryMonitor.class) {
+                if (current != this) return;   // logged out meanwhile
+            }
+            Map<String, Date> redated = new HashMap<>();
+            for (Photo p : affected) {
+                p.missing = gone.contains(p.path);
+                if (p.missing) continue;
+                p.revision++;
+                Date d = dates.get(p.path);
+                if (!d.equals(p.date)) redated.put(p.path, d);
+                if (redated.size() == Mutation.MAX_BATCH) {
+                    DataStore.apply(Mutation.setDates(user, redated));
+                    redated.clear();
+                }
+            }
+            if (!redated.isEmpty()) DataStore.apply(Mutation.setDates(user, redated));
+            for (Photo p : affected) {
+                if (!p.missing) DataStore.fileChanged(user, p);
+            }
+            changed();
+        });
+    }
+
+    private static void changed() {
+        Runnable r = onChange;
+        if (r != null) r.run();
+    }
+
+    @Override
+    public void albumAdded(User u, Album a) {
+        for (Photo p : a.photos) photoAdded(u, a, p);
+    }
+
+    @Override
+    public void albumDeleted(User u, Album a) {
+        for (Photo p : a.photos) photoRemoved(u, a, p);
+    }
+
+    @Override
+    public synchronized void photoAdded(User u, Album a, Photo p) {
+        if (u != user || refs.merge(p, 1, Integer::sum) > 1) return;
+        byPath.computeIfAbsent(p.path, k -> new ArrayList<>(1)).add(p);
+        Path dir = parentOf(p.path);
+        if (dir == null || photosIn.merge(dir, 1, Integer::sum) > 1) return;
+        register(dir);
+    }
+
+    /**
+     * Starts watching a directory. The caller must hold the lock on this monitor.
+     *
+     * @return true if the directory is watched
+     */
+    private boolean register(Path dir) {
+        try {
+            keys.put(dir, dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY));
+            return true;
+        } catch (IOException | ClosedWatchServiceException e) {
+            LOG.log(Level.FINE, "Cannot watch " + dir, e);   // e.g. the folder is already gone
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void photoRemoved(User u, Album a, Photo p) {
+        if (u != user) return;
+        Integer n = refs.get(p);
+        if (n == null) return;
+        if (n > 1) {
+            refs.put(p, n - 1);
+            return;
+        }
+        refs.remove(p);
+        List<Photo> photos = byPath.get(p.path);
+        photos.removeIf(x -> x == p);
+        if (photos.isEmpty()) byPath.remove(p.path);
+
+        Path dir = parentOf(p.path);
+        if (dir == null) return;
+        int left = photosIn.merge(dir, -1, Integer::sum);
+        if (left > 0) return;
+        photosIn.remove(dir);
+        WatchKey key = keys.remove(dir);
+        if (key != null) key.cancel();
+    }
+
+    private static Path parentOf(String path) {
+        try {
+            return Paths.get(path).getParent();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,609 @@
+package photos.model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A single edit to the application state, such as a caption change or a new tag.
+ *
+ * <p>Every change made through the UI is described by a {@code Mutation} and applied
+ * with {@link DataStore#apply(Mutation)}. The same object is appended to the journal
+ * as a small record, so replaying the journal on startup goes through exactly the
+ * same code path as the original edit.</p>
+ *
+ * <p>Users and albums are referred to by name and photos by their position in an
+ * album. Since each user's journal is replayed in order on top of the snapshot it was
+ * written against, these references always resolve to the same objects they did
+ * originally.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+public final class Mutation {
+
+    /**
+     * The kinds of edits that can be recorded.
+     */
+    public enum Kind {
+        ADD_USER, DELETE_USER,
+        ADD_ALBUM, RENAME_ALBUM, DELETE_ALBUM,
+        ADD_PHOTO, REMOVE_PHOTO, COPY_PHOTO,
+        SET_CAPTION, ADD_TAG, REMOVE_TAG,
+        ADD_PHOTOS, SET_DATES,
+        ADD_SMART_ALBUM, RENAME_SMART_ALBUM, DELETE_SMART_ALBUM
+    }
+
+    /** Largest number of photos in one {@code ADD_PHOTOS} or {@code SET_DATES} record, to keep journal records small. */
+    public static final int MAX_BATCH = 1000;
+
+    private static final Kind[] KINDS = Kind.values();
+
+    // Set in the kind byte of records whose strings are written as a length and UTF-8
+    // bytes; older records use writeUTF, which cannot hold more than 64 KB.
+    private static final int LONG_STRINGS = 0x80;
+
+    public final Kind kind;
+    public final String user;
+    public final String album;  // target album or smart album name, or null for user edits
+    public final int index;     // photo position in album, or -1
+    public final String arg;    // new name, path, caption, tag name, destination album or query
+    public final String arg2;   // tag value
+    public final long number;   // photo date or tag position
+    private final String[] paths;   // photos added by ADD_PHOTOS or redated by SET_DATES, else null
+    private final long[] dates;
+
+    // objects created by the caller, reused when applying live; null on replay
+    private transient User newUser;
+    private transient Album newAlbum;
+    private transient Photo newPhoto;
+    private transient Tag newTag;
+    private transient List<Photo> newPhotos;
+
+    private Mutation(Kind kind, String user, String album, int index,
+                     String arg, String arg2, long number) {
+        this(kind, user, album, index, arg, arg2, number, null, null);
+    }
+
+    private Mutation(Kind kind, String user, String album, int index,
+                     String arg, String arg2, long number, String[] paths, long[] dates) {
+        this.kind = kind;
+        this.user = user;
+        this.album = album;
+        this.index = index;
+        this.arg = arg;
+        this.arg2 = arg2;
+        this.number = number;
+        this.paths = paths;
+        this.dates = dates;
+    }
+
+    /**
+     * Creates a mutation that adds a new user.
+     *
+     * @param u the user to add
+     * @return the mutation
+     */
+    public static Mutation addUser(User u) {
+        Mutation m = new Mutation(Kind.ADD_USER, u.username, null, -1, null, null, 0);
+        m.newUser = u;
+        return m;
+    }
+
+    /**
+     * Creates a mutation that deletes a user and all of their albums.
+     *
+     * @param u the user to delete
+     * @return the mutation
+     */
+    public static Mutation deleteUser(User u) {
+        return new Mutation(Kind.DELETE_USER, u.username, null, -1, null, null, 0);
+    }
+
+    /**
+     * Creates a mutation that adds a new, empty album to a user.
+     *
+     * @param u the owning user
+     * @param a the album to add
+     * @return the mutation
+     */
+    public static Mutation addAlbum(User u, Album a) {
+        Mutation m = new Mutation(Kind.ADD_ALBUM, u.username, a.name, -1, null, null, 0);
+        m.newAlbum = a;
+        return m;
+    }
+
+    /**
+     * Creates a mutation that renames an album.
+     *
+     * @param u the owning user
+     * @param a the album to rename
+     * @param name the new album name
+     * @return the mutation
+     */
+    public static Mutation renameAlbum(User u, Album a, String name) {
+        return new Mutation(Kind.RENAME_ALBUM, u.username, a.name, -1, name, null, 0);
+    }
+
+    /**
+     * Creates a mutation that deletes an album.
+     *
+     * @param u the owning user
+     * @param a the album to delete
+     * @return the mutation
+     */
+    public static Mutation deleteAlbum(User u, Album a) {
+        return new Mutation(Kind.DELETE_ALBUM, u.username, a.name, -1, null, null, 0);
+    }
+
+    /**
+     * Creates a mutation that adds a new smart album to a user.
+     *
+     * @param u the owning user
+     * @param a the smart album to add
+     * @return the mutation
+     */
+    public static Mutation addSmartAlbum(User u, SmartAlbum a) {
+        Mutation m = new Mutation(Kind.ADD_SMART_ALBUM, u.username, a.name, -1, a.query, null, 0);
+        m.newAlbum = a;
+        return m;
+    }
+
+    /**
+     * Creates a mutation that renames a smart album.
+     *
+     * @param u the owning user
+     * @param a the smart album to rename
+     * @param name the new name
+     * @return the mutation
+     */
+    public static Mutation renameSmartAlbum(User u, SmartAlbum a, String name) {
+        return new Mutation(Kind.RENAME_SMART_ALBUM, u.username, a.name, -1, name, null, 0);
+    }
+
+    /**
+     * Creates a mutation that deletes a smart album. The photos it showed are kept.
+     *
+     * @param u the owning user
+     * @param a the smart album to delete
+     * @return the mutation
+     */
+    public static Mutation deleteSmartAlbum(User u, SmartAlbum a) {
+        return new Mutation(Kind.DELETE_SMART_ALBUM, u.username, a.name, -1, null, null, 0);
+    }
+
+    /**
+     * Creates a mutation that appends a new photo to an album.
+     *
+     * @param u the owning user
+     * @param a the album to add to
+     * @param p the photo to add
+     * @return the mutation
+     */
+    public static Mutation addPhoto(User u, Album a, Photo p) {
+        Mutation m = new Mutation(Kind.ADD_PHOTO, u.username, a.name, -1,
+                p.path, null, p.date.getTime());
+        m.newPhoto = p;
+        return m;
+    }
+
+    /**
+     * Creates a mutation that appends several new photos to an album at once,
+     * e.g. from a folder import.
+     *
+     * @param u the owning user
+     * @param a the album to add to
+     * @param photos the photos to add, at most {@link #MAX_BATCH}
+     * @return the mutation
+     */
+    public static Mutation addPhotos(User u, Album a, List<Photo> photos) {
+        if (photos.size() > MAX_BATCH) {
+            throw new IllegalArgumentException("Too many photos in one batch: " + photos.size());
+        }
+        String[] paths = new String[photos.size()];
+        long[] dates = new long[photos.size()];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = photos.get(i).path;
+            dates[i] = photos.get(i).date.getTime();
+        }
+        Mutation m = new Mutation(Kind.ADD_PHOTOS, u.username, a.name, -1, null, null, 0, paths, dates);
+        m.newPhotos = new ArrayList<>(photos);
+        return m;
+    }
+
+    /**
+     * Creates a mutation that sets the dates of all photos with the given paths, in
+     * every album, e.g. after their files were edited on disk.
+     *
+     * @param u the owning user
+     * @param dates the new date for each path, at most {@link #MAX_BATCH}
+     * @return the mutation
+     */
+    public static Mutation setDates(User u, Map<String, Date> dates) {
+        if (dates.size() > MAX_BATCH) {
+            throw new IllegalArgumentException("Too many photos in one batch: " + dates.size());
+        }
+        String[] paths = new String[dates.size()];
+        long[] times = new long[dates.size()];
+        int i = 0;
+        for (Map.Entry<String, Date> e : dates.entrySet()) {
+            paths[i] = e.getKey();
+            times[i++] = e.getValue().getTime();
+        }
+        return new Mutation(Kind.SET_DATES, u.username, null, -1, null, null, 0, paths, times);
+    }
+
+    /**
+     * Creates a mutation that removes a photo from an album.
+     *
+     * @param u the owning user
+     * @param a the album to remove from
+     * @param p the photo to remove
+     * @return the mutation
+     */
+    public static Mutation removePhoto(User u, Album a, Photo p) {
+        return new Mutation(Kind.REMOVE_PHOTO, u.username, a.name, indexOf(a, p), null, null, 0);
+    }
+
+    /**
+     * Creates a mutation that adds an existing photo to another album.
+     * Both albums share the same photo afterwards.
+     *
+     * @param u the owning user
+     * @param from the album currently holding the photo
+     * @param p the photo to copy
+     * @param to the destination album
+     * @return the mutation
+     */
+    public static Mutation copyPhoto(User u, Album from, Photo p, Album to) {
+        return copyPhoto(u, from, indexOf(from, p), to);
+    }
+
+    /**
+     * Creates a mutation that adds an existing photo to another album, for callers
+     * that already know where the photo is, so the album is not searched for it.
+     *
+     * @param u the owning user
+     * @param from the album currently holding the photo
+     * @param index the position of the photo in {@code from}
+     * @param to the destination album
+     * @return the mutation
+     */
+    public static Mutation copyPhoto(User u, Album from, int index, Album to) {
+        return new Mutation(Kind.COPY_PHOTO, u.username, from.name, index, to.name, null, 0);
+    }
+
+    /**
+     * Creates a mutation that sets the caption of a photo.
+     *
+     * @param u the owning user
+     * @param a an album holding the photo
+     * @param p the photo
+     * @param caption the new caption
+     * @return the mutation
+     */
+    public static Mutation setCaption(User u, Album a, Photo p, String caption) {
+        return new Mutation(Kind.SET_CAPTION, u.username, a.name, indexOf(a, p), caption, null, 0);
+    }
+
+    /**
+     * Creates a mutation that adds a tag to a photo.
+     *
+     * @param u the owning user
+     * @param a an album holding the photo
+     * @param p the photo
+     * @param t the tag to add
+     * @return the mutation
+     */
+    public static Mutation addTag(User u, Album a, Photo p, Tag t) {
+        Mutation m = new Mutation(Kind.ADD_TAG, u.username, a.name, indexOf(a, p), t.name, t.value, 0);
+        m.newTag = t;
+        return m;
+    }
+
+    /**
+     * Creates a mutation that removes a tag from a photo.
+     *
+     * @param u the owning user
+     * @param a an album holding the photo
+     * @param p the photo
+     * @param t the tag to remove
+     * @return the mutation
+     */
+    public static Mutation removeTag(User u, Album a, Photo p, Tag t) {
+        int pos = indexOfIdentity(p.tags, t);
+        return new Mutation(Kind.REMOVE_TAG, u.username, a.name, indexOf(a, p), null, null, pos);
+    }
+
+    /**
+     * Applies this mutation to the given application state.
+     * The user being edited must already be loaded.
+     *
+     * @param state the state to modify
+     * @throws IllegalStateException if a referenced user, album or photo does not exist
+     */
+    void apply(AppState state) {
+        if (kind == Kind.ADD_USER) {
+            state.users.add(newUser != null ? newUser : new User(user));
+            return;
+        }
+
+        User u = findUser(state);
+        if (kind == Kind.DELETE_USER) {
+            state.users.remove(u);
+            return;
+        }
+        apply(u);
+    }
+
+    /**
+     * Returns whether this mutation changes the list of users rather than one user's albums.
+     *
+     * @return true for {@code ADD_USER} and {@code DELETE_USER}
+     */
+    boolean isUserListChange() {
+        return kind == Kind.ADD_USER || kind == Kind.DELETE_USER;
+    }
+
+    /**
+     * Applies an album or photo edit to the user it belongs to.
+     *
+     * @param u the user named by {@link #user}
+     * @throws IllegalStateException if a referenced album or photo does not exist
+     */
+    void apply(User u) {
+        apply(u, null);
+    }
+
+    /**
+     * Applies an album or photo edit to the user it belongs to and reports the
+     * change to a listener.
+     *
+     * @param u the user named by {@link #user}
+     * @param l the listener to notify, or null
+     * @throws IllegalStateException if a referenced album or photo does not exist
+     */
+    void apply(User u, LibraryListener l) {
+        if (kind == Kind.ADD_ALBUM) {
+            Album added = newAlbum != null ? newAlbum : new Album(album);
+            u.albums.add(added);
+            if (l != null) l.albumAdded(u, added);
+            return;
+        }
+        if (kind == Kind.SET_DATES) {
+            setDates(u, l);
+            return;
+        }
+        if (kind == Kind.ADD_SMART_ALBUM || kind == Kind.RENAME_SMART_ALBUM || kind == Kind.DELETE_SMART_ALBUM) {
+            applySmart(u, l);
+            return;
+        }
+
+        Album a = findAlbum(u, album);
+        Photo p;
+        switch (kind) {
+            case RENAME_ALBUM:
+                a.name = arg;
+                if (l != null) l.albumRenamed(u, a, album);
+                break;
+            case DELETE_ALBUM:
+                u.albums.remove(a);
+                if (l != null) l.albumDeleted(u, a);
+                break;
+            case ADD_PHOTO:
+                p = newPhoto != null ? newPhoto : new Photo(arg, new Date(number));
+                a.add(p);
+                if (l != null) l.photoAdded(u, a, p);
+                break;
+            case ADD_PHOTOS:
+                int from = a.photos.size();
+                if (newPhotos != null) {
+                    a.addAll(newPhotos);
+                } else {
+                    for (int i = 0; i < paths.length; i++) {
+                        a.add(new Photo(paths[i], new Date(dates[i])));
+                    }
+                }
+                if (l != null) {
+                    for (Photo added : a.photos.subList(from, a.photos.size())) l.photoAdded(u, a, added);
+                }
+                break;
+            case REMOVE_PHOTO:
+                p = photoAt(a);
+                a.remove(index);
+                if (l != null) l.photoRemoved(u, a, p);
+                break;
+            case COPY_PHOTO:
+                p = photoAt(a);
+                Album dest = findAlbum(u, arg);
+                dest.add(p);
+                if (l != null) l.photoAdded(u, dest, p);
+                break;
+            case SET_CAPTION:
+                p = photoAt(a);
+                p.caption = arg;
+                if (l != null) l.photoChanged(u, p);
+                break;
+            case ADD_TAG:
+                p = photoAt(a);
+                p.tags.add(newTag != null ? newTag : new Tag(arg, arg2));
+                if (l != null) l.photoChanged(u, p);
+                break;
+            case REMOVE_TAG:
+                p = photoAt(a);
+                p.tags.remove((int) number);
+                if (l != null) l.photoChanged(u, p);
+                break;
+            default:
+                throw new IllegalStateException("Unhandled mutation " + kind);
+        }
+    }
+
+    private void applySmart(User u, LibraryListener l) {
+        if (kind == Kind.ADD_SMART_ALBUM) {
+            SmartAlbum added = newAlbum instanceof SmartAlbum ? (SmartAlbum) newAlbum : new SmartAlbum(album, arg);
+            u.smartAlbums.add(added);
+            if (l != null) l.smartAlbumAdded(u, added);
+            return;
+        }
+        SmartAlbum a = findSmartAlbum(u, album);
+        if (kind == Kind.RENAME_SMART_ALBUM) {
+            a.name = arg;   // the photos do not depend on the name
+        } else {
+            u.smartAlbums.remove(a);
+            if (l != null) l.smartAlbumDeleted(u, a);
+        }
+    }
+
+    private void setDates(User u, LibraryListener l) {
+        Map<String, Date> byPath = new HashMap<>();
+        for (int i = 0; i < paths.length; i++) byPath.put(paths[i], new Date(dates[i]));
+        Set<Photo> changed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Album a : u.albums) {
+            boolean touched = false;
+            for (Photo p : a.photos) {
+                Date d = byPath.get(p.path);
+                if (d == null) continue;
+                if (changed.add(p)) p.date = d;
+                touched = true;
+            }
+            if (touched) a.datesChanged();
+        }
+        if (l != null) {
+            for (Photo p : changed) l.photoChanged(u, p);
+        }
+    }
+
+    /**
+     * Writes this mutation as a compact binary record.
+     *
+     * @param out the output to write to
+     * @throws IOException if writing fails
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeByte(kind.ordinal() | LONG_STRINGS);
+        writeString(out, user);
+        writeNullable(out, album);
+        out.writeInt(index);
+        writeNullable(out, arg);
+        writeNullable(out, arg2);
+        out.writeLong(number);
+        if (paths != null) {
+            out.writeInt(paths.length);
+            for (int i = 0; i < paths.length; i++) {
+                writeString(out, paths[i]);
+                out.writeLong(dates[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads a mutation previously written by {@link #write(DataOutput)}.
+     *
+     * @param in the input to read from
+     * @return the mutation
+     * @throws IOException if reading fails or the record is malformed
+     */
+    static Mutation read(DataInput in) throws IOException {
+        int k = in.readUnsignedByte();
+        boolean longStrings = (k & LONG_STRINGS) != 0;
+        k &= ~LONG_STRINGS;
+        if (k >= KINDS.length) {
+            throw new IOException("Unknown mutation kind " + k);
+        }
+        Kind kind = KINDS[k];
+        String user = readString(in, longStrings);
+        String album = readNullable(in, longStrings);
+        int index = in.readInt();
+        String arg = readNullable(in, longStrings);
+        String arg2 = readNullable(in, longStrings);
+        long number = in.readLong();
+        if (kind != Kind.ADD_PHOTOS && kind != Kind.SET_DATES) {
+            return new Mutation(kind, user, album, index, arg, arg2, number);
+        }
+
+        int n = in.readInt();
+        if (n < 0 || n > MAX_BATCH) throw new IOException("Bad photo count " + n);
+        String[] paths = new String[n];
+        long[] dates = new long[n];
+        for (int i = 0; i < n; i++) {
+            paths[i] = readString(in, longStrings);
+            dates[i] = in.readLong();
+        }
+        return new Mutation(kind, user, album, index, arg, arg2, number, paths, dates);
+    }
+
+    private User findUser(AppState state) {
+        for (User u : state.users) {
+            if (u.username.equals(user)) return u;
+        }
+        throw new IllegalStateException("No such user: " + user);
+    }
+
+    private static Album findAlbum(User u, String name) {
+        for (Album a : u.albums) {
+            if (a.name.equals(name)) return a;
+        }
+        throw new IllegalStateException("No such album: " + name);
+    }
+
+    private static SmartAlbum findSmartAlbum(User u, String name) {
+        for (SmartAlbum a : u.smartAlbums) {
+            if (a.name.equals(name)) return a;
+        }
+        throw new IllegalStateException("No such smart album: " + name);
+    }
+
+    private Photo photoAt(Album a) {
+        if (index < 0 || index >= a.photos.size()) {
+            throw new IllegalStateException("No photo " + index + " in album " + a.name);
+        }
+        return a.photos.get(index);
+    }
+
+    private static int indexOf(Album a, Photo p) {
+        return indexOfIdentity(a.photos, p);
+    }
+
+    private static int indexOfIdentity(List<?> list, Object o) {
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == o) return i;
+        }
+        throw new IllegalArgumentException("Object is not in list");
+    }
+
+    private static void writeNullable(DataOutput out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) writeString(out, s);
+    }
+
+    private static String readNullable(DataInput in, boolean longStrings) throws IOException {
+        return in.readBoolean() ? readString(in, longStrings) : null;
+    }
+
+    private static void writeString(DataOutput out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInput in, boolean longStrings) throws IOException {
+        if (!longStrings) return in.readUTF();
+        int len = in.readInt();
+        if (len < 0 || len > Journal.MAX_RECORD) throw new IOException("Bad string length " + len);
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns a short description of this mutation, used in error messages.
+     *
+     * @return the description
+     */
+    @Override
+    public String toString() {
+        return kind + "(" + user + (album != null ? ", " + album : "") + ")";
+    }
+}
@@ -0,0 +1,272 @@
+package photos.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.application.Platform;
+import javafx.scene.control.Alert;
+
+/**
+ * Writes one user's edits to disk on the shared persistence thread, so the JavaFX
+ * thread never waits on I/O.
+ *
+ * <p>{@link DataStore#apply(Mutation)} hands every applied mutation to {@link #submit}.
+ * The first submission opens a debounce window; everything that arrives before the
+ * window closes is appended to the journal in one write. Full snapshots are written
+ * from an immutable copy of the users taken on the JavaFX thread, so serialization
+ * never races with later edits.</p>
+ *
+ * <p>If a batch cannot be appended to the journal, it is queued again and a snapshot
+ * is forced: the edits are already applied in memory, so the snapshot contains them,
+ * and once it is written the queued copies are dropped. Until then they are retried
+ * with the next flush.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+final class PersistenceWorker {
+    private static final Logger LOG = Logger.getLogger(PersistenceWorker.class.getName());
+
+    /**
+     * A piece of disk work run on the persistence thread, such as writing a snapshot.
+     */
+    interface IoTask {
+        /**
+         * Performs the work.
+         *
+         * @throws IOException if it fails
+         */
+        void run() throws IOException;
+    }
+
+    private final ScheduledExecutorService executor;
+    private final Journal journal;
+    private final long debounceMillis;
+    private final long compactThreshold;
+    private final Runnable snapshotRequest;
+
+    // guarded by this; filled on the FX thread, drained on the worker
+    private List<Journal.Entry> pending = new ArrayList<>();
+    private boolean flushScheduled;
+    private boolean snapshotWanted;
+    private boolean closed;
+
+    // worker thread only: records in the journal since the last snapshot
+    private List<Journal.Entry> journaled = new ArrayList<>();
+
+    // statistics
+    private volatile long flushes;
+    private volatile long coalesced;
+    private volatile long lastFlushNanos;
+
+    /**
+     * Creates a worker that appends to the given journal.
+     *
+     * @param executor the single persistence thread shared by all workers
+     * @param journal the journal to append to; owned by this worker from now on
+     * @param debounceMillis how long to wait after the first edit before writing
+     * @param compactThreshold journal size in bytes that triggers a new snapshot
+     * @param snapshotRequest called on the worker thread when a snapshot is due; expected
+     *                        to capture one on the FX thread and pass it to {@link #compact}
+     */
+    PersistenceWorker(ScheduledExecutorService executor, Journal journal,
+                      long debounceMillis, long compactThreshold, Runnable snapshotRequest) {
+        this.executor = executor;
+        this.journal = journal;
+        this.debounceMillis = debounceMillis;
+        this.compactThreshold = compactThreshold;
+        this.snapshotRequest = snapshotRequest;
+    }
+
+    /**
+     * Queues an applied mutation for writing. Cheap enough to call on every edit.
+     *
+     * @param seq the sequence number of the mutation
+     * @param m the mutation
+     */
+    synchronized void submit(long seq, Mutation m) {
+        if (closed) return;
+        pending.add(new Journal.Entry(seq, m));
+        scheduleFlush();
+    }
+
+    /**
+     * Marks the whole state as dirty so that a full snapshot is written after the
+     * debounce window. Repeated requests within the window are merged.
+     */
+    synchronized void requestSnapshot() {
+        if (closed) return;
+        if (snapshotWanted) coalesced++;
+        snapshotWanted = true;
+        scheduleFlush();
+    }
+
+    /**
+     * Writes a snapshot captured at {@code seq} and drops every journal record it contains.
+     *
+     * @param seq the sequence number of the last mutation contained in the snapshot
+     * @param task writes the snapshot
+     */
+    void compact(long seq, IoTask task) {
+        synchronized (this) {
+            if (closed) return;
+        }
+        executor.execute(() -> writeSnapshot(seq, task));
+    }
+
+    /**
+     * Queues a final snapshot and closes the journal afterwards. Further edits are ignored.
+     * The caller shuts down the shared executor to wait for the write.
+     *
+     * @param seq the sequence number of the last mutation contained in the snapshot
+     * @param task writes the snapshot
+     */
+    void close(long seq, IoTask task) {
+        synchronized (this) {
+            closed = true;
+            pending.clear();   // everything queued so far is part of the final snapshot
+        }
+        executor.execute(() -> {
+            writeSnapshot(seq, task);
+            closeJournal();
+            LOG.fine(this::stats);
+        });
+    }
+
+    /**
+     * Drops all queued edits, closes the journal and then runs {@code cleanup},
+     * e.g. to delete the files of a user that no longer exists.
+     *
+     * @param cleanup runs on the persistence thread after the journal is closed
+     */
+    void discard(IoTask cleanup) {
+        synchronized (this) {
+            closed = true;
+            pending.clear();
+        }
+        executor.execute(() -> {
+            closeJournal();
+            try {
+                cleanup.run();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed to remove user data", e);
+            }
+        });
+    }
+
+    /**
+     * Returns a one-line summary of the work done so far.
+     *
+     * @return flush count, number of coalesced writes and duration of the last flush
+     */
+    String stats() {
+        return String.format("%d flushes, %d writes coalesced, last flush %.2f ms",
+                flushes, coalesced, lastFlushNanos / 1e6);
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled) {
+            coalesced++;
+            return;
+        }
+        flushScheduled = true;
+        executor.schedule(this::flush, debounceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        List<Journal.Entry> batch;
+        boolean snapshot;
+        synchronized (this) {
+            batch = pending;
+            pending = new ArrayList<>();
+            snapshot = snapshotWanted;
+            snapshotWanted = false;
+            flushScheduled = false;
+            if (closed) return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            journal.append(batch);
+            journaled.addAll(batch);
+            if (journal.size() > compactThreshold) {
+                snapshot = true;
+            }
+        } catch (IOException e) {
+            requeue(batch);
+            snapshot = true;
+            report("Failed to record changes: " + e.getMessage());
+        }
+        lastFlushNanos = System.nanoTime() - start;
+        flushes++;
+        LOG.fine(() -> "Flushed " + batch.size() + " records; " + stats());
+
+        synchronized (this) {
+            if (!snapshot || closed) return;
+        }
+        snapshotRequest.run();
+    }
+
+    private void writeSnapshot(long seq, IoTask task) {
+        long start = System.nanoTime();
+        List<Journal.Entry> keep = null;
+        try {
+            task.run();
+
+            // records newer than the snapshot stay in the journal; queued records it
+            // contains, left over from a failed append, need not be written any more
+            keep = newer(journaled, seq);
+            synchronized (this) {
+                pending = newer(pending, seq);
+            }
+            journal.reset();
+            journal.append(keep);
+            journaled = keep;
+        } catch (IOException e) {
+            if (keep != null) {
+                // the journal may have been emptied; write the newer records again later
+                journaled = new ArrayList<>();
+                requeue(keep);
+            }
+            report("Failed to save user data: " + e.getMessage());
+        }
+        lastFlushNanos = System.nanoTime() - start;
+        flushes++;
+        LOG.fine(() -> "Wrote snapshot at #" + seq + "; " + stats());
+    }
+
+    private static List<Journal.Entry> newer(List<Journal.Entry> entries, long seq) {
+        List<Journal.Entry> keep = new ArrayList<>();
+        for (Journal.Entry e : entries) {
+            if (e.seq > seq) keep.add(e);
+        }
+        return keep;
+    }
+
+    /**
+     * Puts records that could not be written back in front of the queue, so they are
+     * written with the next flush.
+     */
+    private synchronized void requeue(List<Journal.Entry> entries) {
+        if (closed || entries.isEmpty()) return;
+        List<Journal.Entry> all = new ArrayList<>(entries);
+        all.addAll(pending);
+        pending = all;
+    }
+
+    private void closeJournal() {
+        try {
+            journal.close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to close journal", e);
+        }
+    }
+
+    private static void report(String msg) {
+        LOG.warning(msg);
+        Platform.runLater(() -> new Alert(Alert.AlertType.ERROR, msg).showAndWait());
+    }
+}
@@ -1,9 +1,16 @@
 package photos.model;
 
 import javafx.scene.image.Image;
+import photos.image.ExifReader;
+import photos.image.ImageCache;
+import photos.image.ImageDecoder;
+import photos.image.ThumbnailStore;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -17,32 +24,105 @@ import java.util.List;
 public class Photo implements Serializable {
     private static final long serialVersionUID = 1L;
 
+    /** Width and height of the box thumbnails are scaled to fit, in pixels. */
+    public static final int THUMB_SIZE = 140;
+
+    /** Width of the box photos are scaled to fit in the viewer, in pixels. */
+    public static final int VIEW_WIDTH = 1600;
+
+    /** Height of the box photos are scaled to fit in the viewer, in pixels. */
+    public static final int VIEW_HEIGHT = 900;
+
     public final String path;     // absolute file path
     public String caption = "";
-    public final Date date;       // file last-modified as proxy
+    public Date date;             // EXIF capture time, else file last-modified
     public final List<Tag> tags = new ArrayList<>();
 
+    // file state seen by the LibraryMonitor, not saved
+    public transient boolean missing;   // the file no longer exists
+    public transient int revision;      // bumped whenever the file changes on disk
+
     /**
      * Constructs a new Photo with the specified file path.
-     * The date is set to the file's last modified date.
+     * The date is the capture time from the file's EXIF block, or the file's last
+     * modified date if it has none.
      * 
      * @param path the absolute file path of the photo
      */
     public Photo(String path) {
+        this(path, dateOf(path));
+    }
+
+    /**
+     * Constructs a new Photo with a known date, e.g. when restoring it from the journal.
+     * 
+     * @param path the absolute file path of the photo
+     * @param date the date of the photo
+     */
+    public Photo(String path, Date date) {
         this.path = path;
-        File f = new File(path);
-        this.date = new Date(f.lastModified());
+        this.date = date;
+    }
+
+    /**
+     * Returns when a photo was taken, from its EXIF capture time if available,
+     * otherwise from the file's last modified date.
+     * 
+     * @param path the absolute file path of the photo
+     * @return the date
+     */
+    public static Date dateOf(String path) {
+        try {
+            ExifReader.Exif exif = ExifReader.read(Paths.get(path));
+            if (exif != null && exif.captureDate != null) return exif.captureDate;
+        } catch (IOException | InvalidPathException e) {
+            // fall back to the file date
+        }
+        return new Date(new File(path).lastModified());
     }
 
     /**
      * Loads a thumbnail image for the photo.
+     * Thumbnails are kept in memory by {@link ImageCache} and on disk by
+     * {@link ThumbnailStore}, so the original file is only decoded the first time
+     * or after it has changed.
      * 
      * @return the thumbnail image, or null if loading fails
      */
     public Image loadThumb() {
         try {
-            return new Image(new File(path).toURI().toString(),
-                    140, 140, true, true);
+            return ImageCache.get().image(path, THUMB_SIZE, THUMB_SIZE,
+                    () -> ThumbnailStore.get().thumbnail(path, THUMB_SIZE));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the thumbnail only if it can be had without decoding the original,
+     * i.e. from memory or from the {@link ThumbnailStore} pack.
+     * 
+     * @return the thumbnail image, or null if it is not cached
+     */
+    public Image cachedThumb() {
+        try {
+            return ImageCache.get().image(path, THUMB_SIZE, THUMB_SIZE,
+                    () -> ThumbnailStore.get().cached(path, THUMB_SIZE));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Loads the photo scaled to fit the viewer, through {@link ImageCache}.
+     * Large files are subsampled while decoding by {@link ImageDecoder}.
+     * 
+     * @return the image, or null if loading fails
+     */
+    public Image loadImage() {
+        try {
+            return ImageCache.get().image(path, VIEW_WIDTH, VIEW_HEIGHT,
+                    () -> ImageDecoder.decode(new File(path), VIEW_WIDTH, VIEW_HEIGHT));
         } catch (Exception e) {
             return null;
         }
@@ -0,0 +1,230 @@
+package photos.model;
+
+import photos.image.ThumbnailStore;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Imports every image under a folder, using all cores.
+ *
+ * <p>The import runs in three stages:</p>
+ * <ol>
+ *   <li>{@link #scan} walks the folder tree on a fork-join pool. Each directory is a
+ *       task that forks one task per subdirectory and one per chunk of
+ *       {@value #CHUNK} image files; a chunk task reads the metadata (EXIF capture
+ *       time or file date) of its files. Nothing is added to the library yet; the
+ *       caller drops the pictures the album already holds under another name
+ *       (see {@code DuplicateIndex.newTo}) while still in the background.</li>
+ *   <li>{@link #commit} adds the photos found to an album on the JavaFX thread, as
+ *       a few {@link Mutation#addPhotos batch mutations} that are written to the
+ *       journal together.</li>
+ *   <li>{@link #generateThumbnails} fills the thumbnail pack in the background, so
+ *       the album scrolls smoothly once the import is done.</li>
+ * </ol>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+public final class PhotoImporter {
+    /** Number of image files whose metadata is read by one task. */
+    static final int CHUNK = 64;
+
+    /**
+     * Reading metadata mostly waits for the disk, so use more threads than cores
+     * to keep enough requests in flight.
+     */
+    private static final ForkJoinPool POOL =
+            new ForkJoinPool(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+
+    private static final String[] EXTENSIONS = { ".png", ".jpg", ".jpeg", ".gif", ".bmp" };
+
+    private PhotoImporter() {}
+
+    /**
+     * Receives progress reports from the import stages, on the worker threads.
+     */
+    public interface Progress {
+        /**
+         * Reports progress.
+         *
+         * @param done the number of files handled so far
+         * @param total the number of files known so far, which can still grow while scanning
+         */
+        void update(int done, int total);
+    }
+
+    /**
+     * Returns whether a file name has one of the supported image extensions.
+     *
+     * @param name the file name
+     * @return true for BMP, GIF, JPEG and PNG files
+     */
+    public static boolean isImage(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        for (String ext : EXTENSIONS) {
+            if (lower.endsWith(ext)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Finds all images under a folder and reads their metadata in parallel.
+     *
+     * @param root the folder to import
+     * @param recursive whether to descend into subfolders
+     * @param progress receives the number of images read and found so far; may be null
+     * @param cancelled stops the scan early when set; may be null
+     * @return the photos found, sorted by path
+     * @throws IOException if the root folder cannot be read
+     */
+    public static List<Photo> scan(Path root, boolean recursive, Progress progress,
+                                   AtomicBoolean cancelled) throws IOException {
+        if (!Files.isDirectory(root)) throw new NoSuchFileException(root.toString());
+        Scan scan = new Scan(recursive, progress, cancelled);
+        POOL.invoke(scan.new Folder(root.toAbsolutePath()));
+        List<Photo> photos = new ArrayList<>(scan.found);
+        photos.sort(Comparator.comparing(p -> p.path));
+        return photos;
+    }
+
+    /**
+     * Adds scanned photos to an album, skipping those whose paths are already in it.
+     * Files with the same contents as a photo in the album are not detected here, so
+     * filter the photos through the duplicate index first. Must be called on the
+     * JavaFX thread.
+     *
+     * @param u the owning user
+     * @param a the album to add to
+     * @param photos the photos to add
+     * @return the photos actually added
+     */
+    public static List<Photo> commit(User u, Album a, List<Photo> photos) {
+        Set<String> present = new HashSet<>();
+        for (Photo p : a.photos) present.add(p.path);
+        List<Photo> added = new ArrayList<>();
+        for (Photo p : photos) {
+            if (present.add(p.path)) added.add(p);
+        }
+        for (int i = 0; i < added.size(); i += Mutation.MAX_BATCH) {
+            List<Photo> batch = added.subList(i, Math.min(added.size(), i + Mutation.MAX_BATCH));
+            DataStore.apply(Mutation.addPhotos(u, a, batch));
+        }
+        return added;
+    }
+
+    /**
+     * Generates the thumbnails of imported photos in the background, in parallel.
+     *
+     * @param photos the photos
+     * @param progress receives the number of thumbnails made so far; may be null
+     * @param cancelled stops generating when set; may be null
+     * @return a future completing when all thumbnails are done
+     */
+    public static CompletableFuture<Void> generateThumbnails(List<Photo> photos, Progress progress,
+                                                             AtomicBoolean cancelled) {
+        AtomicInteger done = new AtomicInteger();
+        CompletableFuture<?>[] parts = new CompletableFuture<?>[photos.size()];
+        for (int i = 0; i < parts.length; i++) {
+            final Photo p = photos.get(i);
+            parts[i] = CompletableFuture.runAsync(() -> {
+                if (cancelled != null && cancelled.get()) return;
+                ThumbnailStore.get().thumbnail(p.path, Photo.THUMB_SIZE);
+                int n = done.incrementAndGet();
+                if (progress != null && (n % CHUNK == 0 || n == parts.length)) {
+                    progress.update(n, parts.length);
+                }
+            }, POOL);
+        }
+        return CompletableFuture.allOf(parts);
+    }
+
+    /**
+     * State shared by the tasks of one scan.
+     */
+    private static final class Scan {
+        final boolean recursive;
+        final Progress progress;
+        final AtomicBoolean cancelled;
+        final Queue<Photo> found = new ConcurrentLinkedQueue<>();
+        final AtomicInteger total = new AtomicInteger();
+        final AtomicInteger read = new AtomicInteger();
+
+        Scan(boolean recursive, Progress progress, AtomicBoolean cancelled) {
+            this.recursive = recursive;
+            this.progress = progress;
+            this.cancelled = cancelled;
+        }
+
+        boolean cancelled() {
+            return cancelled != null && cancelled.get();
+        }
+
+        /**
+         * Lists one directory and forks tasks for its subdirectories and files.
+         */
+        final class Folder extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private final Path dir;
+
+            Folder(Path dir) {
+                this.dir = dir;
+            }
+
+            @Override
+            protected void compute() {
+                if (cancelled()) return;
+                List<RecursiveAction> tasks = new ArrayList<>();
+                List<Path> files = new ArrayList<>();
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                    for (Path entry : entries) {
+                        // image files are checked by the chunk tasks, so the listing
+                        // itself only stats entries that might be folders
+                        if (isImage(entry.getFileName().toString())) {
+                            files.add(entry);
+                            if (files.size() == CHUNK) {
+                                tasks.add(new FileChunk(files));
+                                files = new ArrayList<>();
+                            }
+                        } else if (recursive && Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                            tasks.add(new Folder(entry));
+                        }
+                    }
+                } catch (IOException | DirectoryIteratorException e) {
+                    // unreadable folders are skipped, like unreadable files
+                }
+                if (!files.isEmpty()) tasks.add(new FileChunk(files));
+                invokeAll(tasks);
+            }
+        }
+
+        /**
+         * Reads the metadata of a chunk of image files.
+         */
+        final class FileChunk extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private final List<Path> files;
+
+            FileChunk(List<Path> files) {
+                this.files = files;
+                int t = total.addAndGet(files.size());
+                if (progress != null) progress.update(read.get(), t);
+            }
+
+            @Override
+            protected void compute() {
+                for (Path f : files) {
+                    if (cancelled()) return;
+                    if (Files.isRegularFile(f)) found.add(new Photo(f.toString()));
+                    int n = read.incrementAndGet();
+                    if (progress != null && (n % CHUNK == 0 || n == total.get())) {
+                        progress.update(n, total.get());
+                    }
+                }
+            }
+        }
+    }
+}
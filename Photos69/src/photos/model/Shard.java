@@ -0,0 +1,230 @@
+package photos.model;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import javafx.application.Platform;
+
+/**
+ * The on-disk storage of a single user: a snapshot of their albums plus a journal
+ * of the edits made since.
+ *
+ * <p>Snapshots are written with {@link LibraryCodec}; shards still in the older
+ * Java serialization format are read once and rewritten in the background.</p>
+ *
+ * <p>Shards are only opened for users who actually log in, and an edit only ever
+ * touches the shard of the user it belongs to, so the cost of loading and saving
+ * does not grow with the number of accounts.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+final class Shard {
+    final User user;
+    private final Path snapshotFile;
+    private final Path journalFile;
+
+    private long seq;   // sequence number of the last applied mutation
+    private PersistenceWorker worker;
+
+    /**
+     * Creates the shard for a user, stored as {@code <stem>.dat} and {@code <stem>.journal}.
+     *
+     * @param user the user whose albums live in this shard
+     * @param dir the directory holding all shards
+     * @param stem the file name stem of this shard
+     */
+    Shard(User user, Path dir, String stem) {
+        this.user = user;
+        this.snapshotFile = dir.resolve(stem + ".dat");
+        this.journalFile = dir.resolve(stem + ".journal");
+    }
+
+    /**
+     * Reads the user's albums from the snapshot, replays the journal on top of them
+     * and starts accepting edits. A missing snapshot means the user has no albums yet.
+     *
+     * @param executor the shared persistence thread
+     * @throws IOException if the shard cannot be read
+     */
+    void load(ScheduledExecutorService executor) throws IOException {
+        boolean legacy = false;
+        if (Files.exists(snapshotFile)) {
+            byte[] data = Files.readAllBytes(snapshotFile);
+            if ((LibraryCodec.magicOf(data) >>> 16) == LibraryCodec.SERIALIZED_MAGIC) {
+                seq = readSerialized(data);
+                legacy = true;
+            } else {
+                seq = LibraryCodec.decodeUser(data, user);
+            }
+        }
+        seq = Journal.replay(journalFile, seq, m -> m.apply(user));
+        attach(executor);
+        if (legacy) {
+            requestSnapshot();   // rewrite once in the binary format
+        }
+    }
+
+    /**
+     * Reads a shard written with Java serialization by earlier versions.
+     *
+     * @param data the file contents
+     * @return the sequence number stored in the shard
+     * @throws IOException if the data cannot be read
+     */
+    private long readSerialized(byte[] data) throws IOException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            User stored = (User) ois.readObject();
+            user.albums.clear();
+            user.albums.addAll(stored.albums);
+            user.smartAlbums.clear();
+            user.smartAlbums.addAll(stored.smartAlbums);
+            return ois.readLong();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Starts accepting edits for a user whose albums are already in memory,
+     * e.g. a brand new user or one just written by {@link #writeNow()}.
+     *
+     * @param executor the shared persistence thread
+     * @throws IOException if the journal cannot be opened
+     */
+    void attach(ScheduledExecutorService executor) throws IOException {
+        worker = new PersistenceWorker(executor, new Journal(journalFile),
+                DataStore.DEBOUNCE_MILLIS, DataStore.COMPACT_THRESHOLD,
+                () -> Platform.runLater(this::compact));
+    }
+
+    /**
+     * Applies an edit to this user and queues it for the journal.
+     *
+     * @param m the edit, which must belong to this user
+     * @param l notified of the change, or null
+     */
+    void apply(Mutation m, LibraryListener l) {
+        m.apply(user, l);
+        seq++;
+        worker.submit(seq, m);
+    }
+
+    /**
+     * Asks for a full snapshot of this user to be written after the debounce window.
+     */
+    void requestSnapshot() {
+        worker.requestSnapshot();
+    }
+
+    /**
+     * Writes a final snapshot in the background and stops accepting edits.
+     */
+    void close() {
+        final long at = seq;
+        final User copy = copyUser();
+        worker.close(at, () -> write(copy, at));
+    }
+
+    /**
+     * Stops accepting edits and removes this shard's files.
+     */
+    void delete() {
+        PersistenceWorker.IoTask cleanup = () -> {
+            Files.deleteIfExists(snapshotFile);
+            Files.deleteIfExists(journalFile);
+        };
+        if (worker != null) {
+            worker.discard(cleanup);
+        } else {
+            try {
+                cleanup.run();
+            } catch (IOException ignored) {
+                // leftover files of a deleted user are harmless
+            }
+        }
+    }
+
+    /**
+     * Copies the shard's files to {@code .bad} siblings, so that data which failed to
+     * load is not lost when the shard is rewritten.
+     *
+     * @throws IOException if copying fails
+     */
+    void backUp() throws IOException {
+        for (Path f : new Path[] { snapshotFile, journalFile }) {
+            if (Files.exists(f)) {
+                Files.copy(f, f.resolveSibling(f.getFileName() + ".bad"),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot on the calling thread and removes the journal.
+     * Only used before the shard is attached to the persistence thread.
+     *
+     * @throws IOException if writing fails
+     */
+    void writeNow() throws IOException {
+        write(user, seq);
+        Files.deleteIfExists(journalFile);
+    }
+
+    /**
+     * Captures an immutable copy of the user on the JavaFX thread and hands it to
+     * the persistence thread, which writes it as the new snapshot.
+     */
+    private void compact() {
+        final long at = seq;
+        final User copy = copyUser();
+        worker.compact(at, () -> write(copy, at));
+    }
+
+    /**
+     * Encodes a user with {@link LibraryCodec} as the snapshot at sequence number
+     * {@code at}. The snapshot is written to a temporary file first so a crash never
+     * leaves a half-written shard behind.
+     *
+     * @param u the user to write
+     * @param at the sequence number of the last mutation contained in {@code u}
+     * @throws IOException if writing fails
+     */
+    private void write(User u, long at) throws IOException {
+        Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        Files.write(tmp, LibraryCodec.encodeUser(u, at));
+        Files.move(tmp, snapshotFile,
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Copies the user's albums and photos so the copy can be serialized on another
+     * thread while the originals keep changing. Photos shared between albums stay
+     * shared in the copy.
+     *
+     * @return the copied user
+     */
+    private User copyUser() {
+        Map<Photo, Photo> photos = new IdentityHashMap<>();
+        User uc = new User(user.username);
+        for (Album a : user.albums) {
+            Album ac = new Album(a.name);
+            for (Photo p : a.photos) {
+                ac.photos.add(photos.computeIfAbsent(p, Shard::copyPhoto));
+            }
+            uc.albums.add(ac);
+        }
+        for (SmartAlbum a : user.smartAlbums) {
+            uc.smartAlbums.add(new SmartAlbum(a.name, a.query));   // the photos are not saved
+        }
+        return uc;
+    }
+
+    private static Photo copyPhoto(Photo p) {
+        Photo c = new Photo(p.path, p.date);
+        c.caption = p.caption;
+        c.tags.addAll(p.tags);   // tags are immutable
+        return c;
+    }
+}
@@ -0,0 +1,32 @@
+package photos.model;
+
+/**
+ * An album defined by a search query instead of a hand-picked list of photos.
+ *
+ * <p>Only the name and the query text are saved. The photos are the user's photos
+ * that match the query; they are found once when the user is loaded or the album is
+ * created, and from then on kept up to date by the search indexes as photos are
+ * added, removed, tagged, captioned or redated. Smart albums are listed in
+ * {@link User#smartAlbums}, apart from the user's ordinary albums, so they never
+ * count as holding a photo. Photos cannot be added to or removed from a smart album
+ * directly; edits to its photos go through an ordinary album holding them.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+public class SmartAlbum extends Album {
+    private static final long serialVersionUID = 1L;
+
+    /** The search query whose matches are the album's photos, in query syntax. */
+    public final String query;
+
+    /**
+     * Constructs a new, not yet filled smart album.
+     *
+     * @param name the name of the album
+     * @param query the search query, in query syntax
+     */
+    public SmartAlbum(String name, String query) {
+        super(name);
+        this.query = query;
+    }
+}
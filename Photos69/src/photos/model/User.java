@@ -6,7 +6,7 @@ import java.util.List;
 
 /**
  * Represents a user in the Photos application.
- * Each user has a username and a list of albums.
+ * Each user has a username, a list of albums and a list of smart albums.
  * 
  * <p>Authors: Wilmer Joya, Kenneth Yan</p>
  */
@@ -15,6 +15,7 @@ public class User implements Serializable {
 
     public final String username;
     public final List<Album> albums = new ArrayList<>();
+    public final List<SmartAlbum> smartAlbums = new ArrayList<>();
 
     /**
      * Constructs a new User with the specified username.
@@ -25,6 +26,34 @@ public class User implements Serializable {
         this.username = username;
     }
 
+    /**
+     * Finds an album or smart album by name, ignoring case.
+     *
+     * @param name the name
+     * @return the album, or null if the user has none by that name
+     */
+    public Album findAlbum(String name) {
+        for (Album a : albums) {
+            if (a.name.equalsIgnoreCase(name)) return a;
+        }
+        for (SmartAlbum a : smartAlbums) {
+            if (a.name.equalsIgnoreCase(name)) return a;
+        }
+        return null;
+    }
+
+    /**
+     * Gives users saved before smart albums existed an empty list of them.
+     *
+     * @return this user, or a copy with the same albums
+     */
+    private Object readResolve() {
+        if (smartAlbums != null) return this;
+        User u = new User(username);
+        u.albums.addAll(albums);
+        return u;
+    }
+
     /**
      * Returns the username of the user.
      * 
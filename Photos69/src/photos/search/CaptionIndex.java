@@ -0,0 +1,437 @@
+package photos.search;
+
+import photos.model.Album;
+import photos.model.LibraryListener;
+import photos.model.Photo;
+import photos.model.User;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.Normalizer;
+import java.util.*;
+
+/**
+ * Full-text index of one user's photo captions.
+ *
+ * <p>Captions are split into words: letters and digits, lower case, with accents
+ * removed, so "Caf&eacute;" and "cafe" are the same word. Each word maps to a
+ * {@link CompactBitmap} of the photos whose caption has it. The words are kept in a
+ * sorted map so that the photos with any word starting with a prefix are the union
+ * of one contiguous range of entries. Matches are ranked by how rare the words they
+ * share with the search are, favouring whole words over prefixes and short
+ * captions over long ones.</p>
+ *
+ * <p>The index is saved next to the user's albums when the application closes, and
+ * read back instead of being rebuilt as long as the photos and their captions are
+ * still the ones it was saved for. It is kept up to date incrementally through
+ * {@link LibraryListener} events, and is thread-safe; all access is serialized on
+ * the {@link PhotoTable} it shares with the other indexes.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+public final class CaptionIndex implements LibraryListener {
+    private static final int MAGIC = 0x50484358;   // "PHCX"
+    private static final int VERSION = 1;          // bump when words are split differently
+    private static final String[] NO_WORDS = new String[0];
+
+    private final User user;
+    private final PhotoTable table;
+    private final Path file;   // where the index is saved, or null
+    private final TreeMap<String, CompactBitmap> byWord = new TreeMap<>();
+    private String[][] wordsOf = new String[256][];   // per ordinal, its caption's words in order
+    private boolean dirty;                             // changed since read or saved
+
+    /**
+     * Reads the index saved for a user's photos, or builds it if there is none or it
+     * is out of date.
+     *
+     * @param u the user
+     * @param table the user's photo ordinals
+     * @param file where the index is saved, or null to not save it
+     */
+    CaptionIndex(User u, PhotoTable table, Path file) {
+        this.user = u;
+        this.table = table;
+        this.file = file;
+        if (!read()) {
+            byWord.clear();
+            wordsOf = new String[256][];
+            table.all.forEach(id -> reindex(id, table.photo(id)));
+            dirty = true;
+        }
+    }
+
+    /**
+     * Splits text into normalized words.
+     *
+     * @param text the text, may be null
+     * @return the words, in order
+     */
+    public static String[] words(String text) {
+        if (text == null || text.isEmpty()) return NO_WORDS;
+        String s = Normalizer.normalize(text, Normalizer.Form.NFKD);
+        List<String> words = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) continue;   // accents
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(Character.toLowerCase(c));
+            } else if (sb.length() > 0) {
+                words.add(sb.toString());
+                sb.setLength(0);
+            }
+        }
+        if (sb.length() > 0) words.add(sb.toString());
+        return words.toArray(NO_WORDS);
+    }
+
+    /**
+     * Finds the photos whose caption has, for every searched word, a word starting
+     * with it, best matches first.
+     *
+     * @param text the words to search for
+     * @return the matching photos
+     */
+    public List<Photo> find(String text) {
+        String[] words = words(text);
+        if (words.length == 0) return Collections.emptyList();
+        synchronized (table) {
+            List<Photo> list = new ArrayList<>();
+            for (int id : rank(bitmap(words).toArray(), words)) list.add(table.photo(id));
+            return list;
+        }
+    }
+
+    /**
+     * Saves the index if it changed since it was read or last saved.
+     */
+    public void save() {
+        synchronized (table) {
+            if (!dirty || file == null) return;
+            try {
+                write();
+                dirty = false;
+            } catch (IOException e) {
+                // rebuilt on the next start instead
+            }
+        }
+    }
+
+    /**
+     * Deletes the saved index, e.g. when its user is deleted.
+     */
+    void delete() {
+        if (file == null) return;
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // a stale file is not trusted anyway
+        }
+    }
+
+    /**
+     * Returns the ordinals of the photos whose caption has, for every given word, a
+     * word starting with it. The caller must hold the lock on the table.
+     *
+     * @param words normalized words, at least one
+     * @return the ordinals, a new set
+     */
+    CompactBitmap bitmap(String[] words) {
+        CompactBitmap result = null;
+        for (String w : words) {
+            CompactBitmap b = new CompactBitmap();
+            for (CompactBitmap postings : prefixed(w).values()) b = CompactBitmap.or(b, postings);
+            result = result == null ? b : CompactBitmap.and(result, b);
+            if (result.isEmpty()) break;
+        }
+        return result != null ? result : new CompactBitmap();
+    }
+
+    /**
+     * Estimates the number of photos {@link #bitmap} finds, without producing the
+     * set: the fewest photos having any word with one of the prefixes. The caller
+     * must hold the lock on the table.
+     *
+     * @param words normalized words
+     * @return the estimate
+     */
+    int estimate(String[] words) {
+        int best = table.size();
+        for (String w : words) best = Math.min(best, entries(w));
+        return best;
+    }
+
+    /**
+     * Returns how many entries {@link #bitmap} merges: the photos of every word with
+     * one of the prefixes. The caller must hold the lock on the table.
+     *
+     * @param words normalized words
+     * @return the number of entries
+     */
+    int entries(String[] words) {
+        int n = 0;
+        for (String w : words) n += entries(w);
+        return n;
+    }
+
+    /**
+     * Checks whether a photo's caption has, for every given word, a word starting
+     * with it. The caller must hold the lock on the table.
+     *
+     * @param id the photo's ordinal
+     * @param words normalized words
+     * @return true if the caption matches
+     */
+    boolean matches(int id, String[] words) {
+        String[] caption = id < wordsOf.length && wordsOf[id] != null ? wordsOf[id] : NO_WORDS;
+        for (String w : words) {
+            boolean found = false;
+            for (String c : caption) {
+                if (c.startsWith(w)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Orders photos by how well their captions match some words, best first; ties
+     * keep their order. The caller must hold the lock on the table.
+     *
+     * @param ids the photos' ordinals
+     * @param words normalized words
+     * @return the ordinals, reordered in a new array
+     */
+    int[] rank(int[] ids, String[] words) {
+        if (words.length == 0) return ids;
+        Map<String, Double> idf = new HashMap<>();
+        double[] score = new double[ids.length];
+        Integer[] order = new Integer[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            order[i] = i;
+            String[] caption = ids[i] < wordsOf.length && wordsOf[ids[i]] != null ? wordsOf[ids[i]] : NO_WORDS;
+            double s = 0;
+            for (String w : words) {
+                for (String c : caption) {
+                    if (!c.startsWith(w)) continue;
+                    double weight = idf.computeIfAbsent(c, k -> Math.log(1 + (double) table.size() / df(k)));
+                    s += c.length() == w.length() ? weight : weight / 2;   // whole word or prefix
+                }
+            }
+            score[i] = caption.length == 0 ? 0 : s / Math.sqrt(caption.length);
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(score[b], score[a]));
+        int[] ranked = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) ranked[i] = ids[order[i]];
+        return ranked;
+    }
+
+    @Override
+    public void albumAdded(User u, Album a) {
+        for (Photo p : a.photos) photoAdded(u, a, p);
+    }
+
+    @Override
+    public void albumDeleted(User u, Album a) {
+        for (Photo p : a.photos) photoRemoved(u, a, p);
+    }
+
+    @Override
+    public void photoAdded(User u, Album a, Photo p) {
+        synchronized (table) {
+            int id = table.ordinal(p);
+            if (id >= 0) reindex(id, p);
+        }
+    }
+
+    @Override
+    public void photoRemoved(User u, Album a, Photo p) {
+        synchronized (table) {
+            if (!table.isLastRef(p)) return;
+            int id = table.ordinal(p);
+            if (id < wordsOf.length && wordsOf[id] != null) {
+                for (String w : wordsOf[id]) unindex(w, id);
+                wordsOf[id] = null;
+                dirty = true;
+            }
+        }
+    }
+
+    @Override
+    public void photoChanged(User u, Photo p) {
+        synchronized (table) {
+            int id = table.ordinal(p);
+            if (id >= 0) reindex(id, p);
+        }
+    }
+
+    /**
+     * Brings the entries of one photo in line with its current caption.
+     */
+    private void reindex(int id, Photo p) {
+        if (id >= wordsOf.length) wordsOf = Arrays.copyOf(wordsOf, Math.max(id + 1, wordsOf.length * 2));
+        String[] old = wordsOf[id] != null ? wordsOf[id] : NO_WORDS;
+        String[] now = words(p.caption);
+        if (Arrays.equals(old, now)) return;   // e.g. a tag or date change
+
+        for (String w : old) {
+            if (!contains(now, w)) unindex(w, id);
+        }
+        for (int i = 0; i < now.length; i++) now[i] = index(now[i], id);
+        wordsOf[id] = now;
+        dirty = true;
+    }
+
+    /**
+     * Adds a photo to a word's entry, returning the copy of the word the index
+     * already holds so each distinct word is only kept once.
+     */
+    private String index(String word, int id) {
+        Map.Entry<String, CompactBitmap> e = byWord.ceilingEntry(word);
+        if (e == null || !e.getKey().equals(word)) {
+            byWord.put(word, new CompactBitmap());
+            e = byWord.ceilingEntry(word);
+        }
+        e.getValue().add(id);
+        return e.getKey();
+    }
+
+    private void unindex(String word, int id) {
+        CompactBitmap b = byWord.get(word);
+        if (b != null && b.remove(id) && b.isEmpty()) byWord.remove(word);
+    }
+
+    private SortedMap<String, CompactBitmap> prefixed(String prefix) {
+        return byWord.subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    private int entries(String prefix) {
+        int n = 0;
+        for (CompactBitmap postings : prefixed(prefix).values()) n += postings.cardinality();
+        return n;
+    }
+
+    private int df(String word) {
+        CompactBitmap b = byWord.get(word);
+        return b == null ? 1 : Math.max(1, b.cardinality());
+    }
+
+    private static boolean contains(String[] words, String w) {
+        for (String x : words) {
+            if (x.equals(w)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Lists the user's distinct photos in the order their albums list them, which is
+     * also the order a freshly built {@link PhotoTable} numbers them in.
+     */
+    private static List<Photo> inOrder(User u) {
+        Set<Photo> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Photo> list = new ArrayList<>();
+        for (Album a : u.albums) {
+            for (Photo p : a.photos) {
+                if (seen.add(p)) list.add(p);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Hashes the paths and captions of photos in order, to tell whether a saved
+     * index still describes the library.
+     */
+    private static long checksum(List<Photo> photos) {
+        long h = photos.size();
+        for (Photo p : photos) {
+            h = h * 31 + p.path.hashCode();
+            h = h * 31 + Objects.hashCode(p.caption);
+        }
+        return h;
+    }
+
+    /**
+     * Writes the words of each captioned photo, as numbers into a list of the
+     * distinct words, with the photo's position in {@link #inOrder}.
+     */
+    private void write() throws IOException {
+        List<Photo> photos = inOrder(user);
+        Map<String, Integer> numbers = new HashMap<>();
+        List<String> dictionary = new ArrayList<>(byWord.keySet());
+        for (int i = 0; i < dictionary.size(); i++) numbers.put(dictionary.get(i), i);
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream o = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            o.writeInt(MAGIC);
+            o.writeInt(VERSION);
+            o.writeLong(checksum(photos));
+            o.writeInt(dictionary.size());
+            for (String w : dictionary) {
+                byte[] b = w.getBytes(StandardCharsets.UTF_8);
+                o.writeShort(b.length);
+                o.write(b);
+            }
+            for (int pos = 0; pos < photos.size(); pos++) {
+                int id = table.ordinal(photos.get(pos));
+                if (id < 0 || id >= wordsOf.length || wordsOf[id] == null || wordsOf[id].length == 0) continue;
+                o.writeInt(pos);
+                o.writeInt(wordsOf[id].length);
+                for (String w : wordsOf[id]) o.writeInt(numbers.get(w));
+            }
+            o.writeInt(-1);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the saved index, if it was saved for exactly the photos and captions in
+     * the library.
+     *
+     * @return true if the index was read
+     */
+    private boolean read() {
+        if (file == null || !Files.exists(file)) return false;
+        // a table that was just filled numbers the photos in album order, as inOrder lists them
+        List<Photo> photos = new ArrayList<>(table.size());
+        for (int id = 0; id < table.size(); id++) {
+            if (table.photo(id) == null) return false;
+            photos.add(table.photo(id));
+        }
+        try {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+            if (in.getInt() != MAGIC || in.getInt() != VERSION || in.getLong() != checksum(photos)) return false;
+            String[] dictionary = new String[in.getInt()];
+            CompactBitmap[] postings = new CompactBitmap[dictionary.length];
+            for (int i = 0; i < dictionary.length; i++) {
+                byte[] b = new byte[in.getShort() & 0xffff];
+                in.get(b);
+                dictionary[i] = new String(b, StandardCharsets.UTF_8);
+                postings[i] = new CompactBitmap();
+            }
+            for (int id = in.getInt(); id >= 0; id = in.getInt()) {
+                if (id >= photos.size()) return false;
+                String[] words = new String[in.getInt()];
+                for (int i = 0; i < words.length; i++) {
+                    int w = in.getInt();
+                    words[i] = dictionary[w];
+                    postings[w].add(id);
+                }
+                if (id >= wordsOf.length) wordsOf = Arrays.copyOf(wordsOf, Math.max(id + 1, wordsOf.length * 2));
+                wordsOf[id] = words;
+            }
+            for (int i = 0; i < dictionary.length; i++) {
+                if (!postings[i].isEmpty()) byWord.put(dictionary[i], postings[i]);
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            return false;   // unreadable; rebuilt instead
+        }
+    }
+}
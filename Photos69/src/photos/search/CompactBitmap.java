@@ -0,0 +1,479 @@
+package photos.search;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed set of non-negative ints, used by the indexes to hold sets of photo
+ * ordinals.
+ *
+ * <p>The ints are grouped by their upper 16 bits. Each group is stored either as a
+ * sorted array of the lower 16 bits, while it has at most {@value #ARRAY_MAX}
+ * members, or as a 65536-bit bitmap once it is denser than that, so a set never takes
+ * more than about two bytes per member or one bit per possible member, whichever is
+ * less. Intersections and unions work group by group, merging arrays or combining
+ * bitmap words, without looking at the members of groups the other set lacks.</p>
+ *
+ * <p>Not thread-safe.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+final class CompactBitmap {
+    /** Largest group kept as a sorted array; 4096 chars take as much room as the bitmap. */
+    private static final int ARRAY_MAX = 4096;
+    private static final int WORDS = 1024;   // longs in a bitmap group
+
+    private char[] keys = new char[4];        // upper 16 bits of each group, ascending
+    private Object[] groups = new Object[4];  // char[] sorted lower bits, or long[WORDS]
+    private int[] cards = new int[4];         // members in each group
+    private int n;                            // number of groups
+
+    /**
+     * Adds an int.
+     *
+     * @param x the int, not negative
+     * @return true if it was not in the set yet
+     */
+    boolean add(int x) {
+        char hi = (char) (x >>> 16);
+        char lo = (char) x;
+        int g = find(hi);
+        if (g < 0) {
+            g = -g - 1;
+            insertGroup(g, hi, new char[4], 0);
+        }
+        Object group = groups[g];
+        if (group instanceof long[]) {
+            long[] words = (long[]) group;
+            long bit = 1L << lo;
+            if ((words[lo >>> 6] & bit) != 0) return false;
+            words[lo >>> 6] |= bit;
+            cards[g]++;
+            return true;
+        }
+
+        char[] arr = (char[]) group;
+        int card = cards[g];
+        int i = Arrays.binarySearch(arr, 0, card, lo);
+        if (i >= 0) return false;
+        i = -i - 1;
+        if (card == ARRAY_MAX) {
+            long[] words = toWords(arr, card);
+            words[lo >>> 6] |= 1L << lo;
+            groups[g] = words;
+        } else {
+            if (card == arr.length) {
+                arr = Arrays.copyOf(arr, Math.min(ARRAY_MAX, card * 2));
+                groups[g] = arr;
+            }
+            System.arraycopy(arr, i, arr, i + 1, card - i);
+            arr[i] = lo;
+        }
+        cards[g]++;
+        return true;
+    }
+
+    /**
+     * Removes an int.
+     *
+     * @param x the int
+     * @return true if it was in the set
+     */
+    boolean remove(int x) {
+        int g = find((char) (x >>> 16));
+        if (g < 0) return false;
+        char lo = (char) x;
+        Object group = groups[g];
+        if (group instanceof long[]) {
+            long[] words = (long[]) group;
+            long bit = 1L << lo;
+            if ((words[lo >>> 6] & bit) == 0) return false;
+            words[lo >>> 6] &= ~bit;
+            if (--cards[g] == ARRAY_MAX) groups[g] = toArray(words, ARRAY_MAX);
+            return true;
+        }
+
+        char[] arr = (char[]) group;
+        int card = cards[g];
+        int i = Arrays.binarySearch(arr, 0, card, lo);
+        if (i < 0) return false;
+        System.arraycopy(arr, i + 1, arr, i, card - i - 1);
+        if (--cards[g] == 0) removeGroup(g);
+        return true;
+    }
+
+    /**
+     * Returns whether an int is in the set.
+     *
+     * @param x the int
+     * @return true if it is a member
+     */
+    boolean contains(int x) {
+        int g = find((char) (x >>> 16));
+        if (g < 0) return false;
+        char lo = (char) x;
+        Object group = groups[g];
+        if (group instanceof long[]) return (((long[]) group)[lo >>> 6] & (1L << lo)) != 0;
+        return Arrays.binarySearch((char[]) group, 0, cards[g], lo) >= 0;
+    }
+
+    /**
+     * Returns the number of ints in the set.
+     *
+     * @return the cardinality
+     */
+    int cardinality() {
+        int c = 0;
+        for (int g = 0; g < n; g++) c += cards[g];
+        return c;
+    }
+
+    /**
+     * Returns whether the set is empty.
+     *
+     * @return true if it has no members
+     */
+    boolean isEmpty() {
+        return n == 0;
+    }
+
+    /**
+     * Passes every int in the set to an action, in ascending order.
+     *
+     * @param action the action
+     */
+    void forEach(IntConsumer action) {
+        for (int g = 0; g < n; g++) {
+            int base = keys[g] << 16;
+            Object group = groups[g];
+            if (group instanceof long[]) {
+                long[] words = (long[]) group;
+                for (int w = 0; w < WORDS; w++) {
+                    long word = words[w];
+                    while (word != 0) {
+                        action.accept(base | (w << 6) | Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+            } else {
+                char[] arr = (char[]) group;
+                for (int i = 0, card = cards[g]; i < card; i++) action.accept(base | arr[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the ints in the set as an array, in ascending order.
+     *
+     * @return the members
+     */
+    int[] toArray() {
+        int[] out = new int[cardinality()];
+        int[] c = {0};
+        forEach(x -> out[c[0]++] = x);
+        return out;
+    }
+
+    /**
+     * Returns a copy of this set.
+     *
+     * @return the copy
+     */
+    CompactBitmap copy() {
+        CompactBitmap c = new CompactBitmap();
+        c.keys = Arrays.copyOf(keys, keys.length);
+        c.cards = Arrays.copyOf(cards, cards.length);
+        c.groups = new Object[groups.length];
+        for (int g = 0; g < n; g++) {
+            Object group = groups[g];
+            c.groups[g] = group instanceof long[] ? ((long[]) group).clone() : ((char[]) group).clone();
+        }
+        c.n = n;
+        return c;
+    }
+
+    /**
+     * Returns the ints that are in both sets.
+     *
+     * @param a a set
+     * @param b another set
+     * @return the intersection, a new set
+     */
+    static CompactBitmap and(CompactBitmap a, CompactBitmap b) {
+        CompactBitmap r = new CompactBitmap();
+        int i = 0, j = 0;
+        while (i < a.n && j < b.n) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (a.keys[i] > b.keys[j]) {
+                j++;
+            } else {
+                r.combine(a.keys[i], a.groups[i], a.cards[i], b.groups[j], b.cards[j], AND);
+                i++;
+                j++;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Returns the ints that are in either set.
+     *
+     * @param a a set
+     * @param b another set
+     * @return the union, a new set
+     */
+    static CompactBitmap or(CompactBitmap a, CompactBitmap b) {
+        CompactBitmap r = new CompactBitmap();
+        int i = 0, j = 0;
+        while (i < a.n || j < b.n) {
+            if (j == b.n || (i < a.n && a.keys[i] < b.keys[j])) {
+                r.appendCopy(a, i++);
+            } else if (i == a.n || a.keys[i] > b.keys[j]) {
+                r.appendCopy(b, j++);
+            } else {
+                r.combine(a.keys[i], a.groups[i], a.cards[i], b.groups[j], b.cards[j], OR);
+                i++;
+                j++;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Returns the ints that are in the first set but not in the second.
+     *
+     * @param a a set
+     * @param b the set to take away
+     * @return the difference, a new set
+     */
+    static CompactBitmap andNot(CompactBitmap a, CompactBitmap b) {
+        CompactBitmap r = new CompactBitmap();
+        int i = 0, j = 0;
+        while (i < a.n) {
+            if (j == b.n || a.keys[i] < b.keys[j]) {
+                r.appendCopy(a, i++);
+            } else if (a.keys[i] > b.keys[j]) {
+                j++;
+            } else {
+                r.combine(a.keys[i], a.groups[i], a.cards[i], b.groups[j], b.cards[j], AND_NOT);
+                i++;
+                j++;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Counts the ints that are in both sets, without building the intersection.
+     *
+     * @param a a set
+     * @param b another set
+     * @return the size of the intersection
+     */
+    static int andCardinality(CompactBitmap a, CompactBitmap b) {
+        int c = 0;
+        int i = 0, j = 0;
+        while (i < a.n && j < b.n) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (a.keys[i] > b.keys[j]) {
+                j++;
+            } else {
+                c += countBoth(a.groups[i], a.cards[i], b.groups[j], b.cards[j]);
+                i++;
+                j++;
+            }
+        }
+        return c;
+    }
+
+    private static int countBoth(Object x, int xCard, Object y, int yCard) {
+        if (x instanceof long[] && y instanceof long[]) {
+            long[] xw = (long[]) x, yw = (long[]) y;
+            int c = 0;
+            for (int w = 0; w < WORDS; w++) c += Long.bitCount(xw[w] & yw[w]);
+            return c;
+        }
+        if (x instanceof long[] || y instanceof long[]) {
+            char[] arr = (char[]) (x instanceof char[] ? x : y);
+            long[] words = (long[]) (x instanceof long[] ? x : y);
+            int card = x instanceof char[] ? xCard : yCard;
+            int c = 0;
+            for (int k = 0; k < card; k++) {
+                if ((words[arr[k] >>> 6] & (1L << arr[k])) != 0) c++;
+            }
+            return c;
+        }
+        char[] xa = (char[]) x, ya = (char[]) y;
+        if (xCard > yCard) return countBoth(y, yCard, x, xCard);
+        int c = 0;
+        if (xCard * 16 < yCard) {   // far smaller: look each one up, moving the start forward
+            int from = 0;
+            for (int i = 0; i < xCard && from < yCard; i++) {
+                int k = Arrays.binarySearch(ya, from, yCard, xa[i]);
+                if (k >= 0) {
+                    c++;
+                    from = k + 1;
+                } else {
+                    from = -k - 1;
+                }
+            }
+            return c;
+        }
+        int i = 0, j = 0;
+        while (i < xCard && j < yCard) {
+            if (xa[i] < ya[j]) {
+                i++;
+            } else if (xa[i] > ya[j]) {
+                j++;
+            } else {
+                c++;
+                i++;
+                j++;
+            }
+        }
+        return c;
+    }
+
+    private static final int AND = 0;
+    private static final int OR = 1;
+    private static final int AND_NOT = 2;
+
+    /**
+     * Combines two groups with the same key and appends the result, if not empty.
+     */
+    private void combine(char key, Object x, int xCard, Object y, int yCard, int op) {
+        if (x instanceof char[] && y instanceof char[]) {
+            char[] out = new char[op == OR ? Math.min(xCard + yCard, WORDS * 64) : xCard];
+            int c = mergeArrays((char[]) x, xCard, (char[]) y, yCard, out, op);
+            if (c > ARRAY_MAX) {
+                append(key, toWords(out, c), c);
+            } else if (c > 0) {
+                append(key, out, c);
+            }
+            return;
+        }
+        if (op == AND && x instanceof char[]) {   // keep the result in array form
+            filter(key, (char[]) x, xCard, (long[]) y, true);
+            return;
+        }
+        if (op == AND && y instanceof char[]) {
+            filter(key, (char[]) y, yCard, (long[]) x, true);
+            return;
+        }
+        if (op == AND_NOT && x instanceof char[]) {
+            filter(key, (char[]) x, xCard, (long[]) y, false);
+            return;
+        }
+
+        long[] xw = x instanceof long[] ? (long[]) x : toWords((char[]) x, xCard);
+        long[] yw = y instanceof long[] ? (long[]) y : toWords((char[]) y, yCard);
+        long[] out = new long[WORDS];
+        int c = 0;
+        for (int w = 0; w < WORDS; w++) {
+            long word = op == AND ? xw[w] & yw[w] : op == OR ? xw[w] | yw[w] : xw[w] & ~yw[w];
+            out[w] = word;
+            c += Long.bitCount(word);
+        }
+        if (c > ARRAY_MAX) {
+            append(key, out, c);
+        } else if (c > 0) {
+            append(key, toArray(out, c), c);
+        }
+    }
+
+    /**
+     * Appends the members of an array group that are (or are not) in a bitmap group.
+     */
+    private void filter(char key, char[] arr, int card, long[] words, boolean keep) {
+        char[] out = new char[card];
+        int c = 0;
+        for (int i = 0; i < card; i++) {
+            char v = arr[i];
+            if (((words[v >>> 6] & (1L << v)) != 0) == keep) out[c++] = v;
+        }
+        if (c > 0) append(key, out, c);
+    }
+
+    private static int mergeArrays(char[] x, int xn, char[] y, int yn, char[] out, int op) {
+        int i = 0, j = 0, c = 0;
+        while (i < xn && j < yn) {
+            char a = x[i], b = y[j];
+            if (a < b) {
+                if (op != AND) out[c++] = a;
+                i++;
+            } else if (a > b) {
+                if (op == OR) out[c++] = b;
+                j++;
+            } else {
+                if (op != AND_NOT) out[c++] = a;
+                i++;
+                j++;
+            }
+        }
+        if (op != AND) {
+            while (i < xn) out[c++] = x[i++];
+        }
+        if (op == OR) {
+            while (j < yn) out[c++] = y[j++];
+        }
+        return c;
+    }
+
+    private void appendCopy(CompactBitmap from, int g) {
+        Object group = from.groups[g];
+        append(from.keys[g], group instanceof long[] ? ((long[]) group).clone()
+                : Arrays.copyOf((char[]) group, from.cards[g]), from.cards[g]);
+    }
+
+    private void append(char key, Object group, int card) {
+        insertGroup(n, key, group, card);
+    }
+
+    private void insertGroup(int g, char key, Object group, int card) {
+        if (n == keys.length) {
+            keys = Arrays.copyOf(keys, n * 2);
+            groups = Arrays.copyOf(groups, n * 2);
+            cards = Arrays.copyOf(cards, n * 2);
+        }
+        System.arraycopy(keys, g, keys, g + 1, n - g);
+        System.arraycopy(groups, g, groups, g + 1, n - g);
+        System.arraycopy(cards, g, cards, g + 1, n - g);
+        keys[g] = key;
+        groups[g] = group;
+        cards[g] = card;
+        n++;
+    }
+
+    private void removeGroup(int g) {
+        System.arraycopy(keys, g + 1, keys, g, n - g - 1);
+        System.arraycopy(groups, g + 1, groups, g, n - g - 1);
+        System.arraycopy(cards, g + 1, cards, g, n - g - 1);
+        n--;
+        groups[n] = null;
+    }
+
+    private int find(char key) {
+        return Arrays.binarySearch(keys, 0, n, key);
+    }
+
+    private static long[] toWords(char[] arr, int card) {
+        long[] words = new long[WORDS];
+        for (int i = 0; i < card; i++) words[arr[i] >>> 6] |= 1L << arr[i];
+        return words;
+    }
+
+    private static char[] toArray(long[] words, int card) {
+        char[] arr = new char[card];
+        int c = 0;
+        for (int w = 0; w < WORDS; w++) {
+            long word = words[w];
+            while (word != 0) {
+                arr[c++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return arr;
+    }
+}
@@ -0,0 +1,141 @@
+package photos.search;
+
+import photos.model.Album;
+import photos.model.LibraryListener;
+import photos.model.Photo;
+import photos.model.User;
+
+import java.util.Arrays;
+
+/**
+ * Index of one user's photos by date, for the date terms of searches.
+ *
+ * <p>The index is a {@link SortedDates}: epoch milliseconds in a sorted
+ * {@code long[]} paired with photo ordinals, so a date range is found with two
+ * binary searches. Each album keeps its own earliest and latest dates, see
+ * {@link Album#earliestDate()}.</p>
+ *
+ * <p>The index is kept up to date incrementally through {@link LibraryListener}
+ * events, including date changes picked up from the files. It is thread-safe; all
+ * access is serialized on the {@link PhotoTable} it shares with the other indexes.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+public final class DateIndex implements LibraryListener {
+    private final PhotoTable table;
+    private final SortedDates all = new SortedDates();
+    private long[] timeOf = new long[256];   // per ordinal, the date it is indexed under
+
+    /**
+     * Builds the index over the photos already in a user's table.
+     *
+     * @param table the user's photo ordinals
+     */
+    DateIndex(PhotoTable table) {
+        this.table = table;
+        table.all.forEach(id -> {
+            long t = table.photo(id).date.getTime();
+            setTime(id, t);
+            all.add(t, id);
+        });
+    }
+
+    /**
+     * Returns the ordinals of the photos dated within a range. The caller must hold
+     * the lock on the table.
+     *
+     * @param lo the earliest date in epoch milliseconds, inclusive
+     * @param hi the latest date in epoch milliseconds, inclusive
+     * @return the ordinals
+     */
+    CompactBitmap bitmap(long lo, long hi) {
+        CompactBitmap b = new CompactBitmap();
+        for (int id : all.range(lo, hi)) b.add(id);
+        return b;
+    }
+
+    /**
+     * Returns the number of photos dated within a range, without listing them. The
+     * caller must hold the lock on the table.
+     *
+     * @param lo the earliest date in epoch milliseconds, inclusive
+     * @param hi the latest date in epoch milliseconds, inclusive
+     * @return the count
+     */
+    int count(long lo, long hi) {
+        return all.count(lo, hi);
+    }
+
+    /**
+     * Returns the date a photo is indexed under. The caller must hold the lock on
+     * the table.
+     *
+     * @param id the photo's ordinal
+     * @return the date in epoch milliseconds
+     */
+    long time(int id) {
+        return timeOf[id];
+    }
+
+    @Override
+    public void albumAdded(User u, Album a) {
+        synchronized (table) {
+            for (Photo p : a.photos) photoAdded(u, a, p);
+        }
+    }
+
+    @Override
+    public void albumDeleted(User u, Album a) {
+        synchronized (table) {
+            for (Photo p : a.photos) removeFromAll(p);
+        }
+    }
+
+    @Override
+    public void photoAdded(User u, Album a, Photo p) {
+        synchronized (table) {
+            int id = table.ordinal(p);
+            if (id < 0) return;
+            long t = p.date.getTime();
+            if (table.isLastRef(p)) {   // first album holding it
+                setTime(id, t);
+                all.add(t, id);
+            }
+        }
+    }
+
+    @Override
+    public void photoRemoved(User u, Album a, Photo p) {
+        synchronized (table) {
+            if (table.ordinal(p) < 0) return;
+            removeFromAll(p);
+        }
+    }
+
+    @Override
+    public void photoChanged(User u, Photo p) {
+        synchronized (table) {
+            int id = table.ordinal(p);
+            if (id < 0) return;
+            long old = timeOf[id];
+            long t = p.date.getTime();
+            if (t == old) return;   // e.g. a caption or tag change
+            all.remove(old, id);
+            all.add(t, id);
+            timeOf[id] = t;
+        }
+    }
+
+    private void removeFromAll(Photo p) {
+        if (table.isLastRef(p)) {
+            int id = table.ordinal(p);
+            all.remove(timeOf[id], id);
+        }
+    }
+
+    private void setTime(int id, long t) {
+        if (id >= timeOf.length) timeOf = Arrays.copyOf(timeOf, Math.max(id + 1, timeOf.length * 2));
+        timeOf[id] = t;
+    }
+
+}
@@ -0,0 +1,253 @@
+package photos.search;
+
+import photos.image.FingerprintStore;
+import photos.model.Album;
+import photos.model.LibraryListener;
+import photos.model.Photo;
+import photos.model.User;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Content-addressed index of all photos of one user, used to detect duplicates.
+ *
+ * <p>Every photo is indexed by its path and by the SHA-256 digest of its file, so
+ * the same picture is recognized even when it is stored under two paths. The index
+ * also remembers which albums each photo is in, which turns "is this picture already
+ * in that album" into a couple of hash lookups instead of a scan of the album.</p>
+ *
+ * <p>Digests are computed on a pool of background threads, from memory-mapped
+ * files, and remembered in the {@link FingerprintStore} so each file is only hashed
+ * once. Until a photo has been hashed it can only be matched by path;
+ * {@link #pending()} tells how many are still outstanding.</p>
+ *
+ * <p>The index is kept up to date incrementally through {@link LibraryListener}
+ * events. It is thread-safe.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+public final class DuplicateIndex implements LibraryListener {
+    private final Map<Photo, List<Album>> albumsOf = new IdentityHashMap<>();
+    private final Map<String, List<Photo>> byPath = new HashMap<>();
+    private final Map<ByteBuffer, List<Photo>> byDigest = new HashMap<>();
+    private final Map<Photo, ByteBuffer> digestOf = new IdentityHashMap<>();
+    private final Map<Photo, Long> hashing = new IdentityHashMap<>();   // latest digest requested for each photo
+    private long requests;
+    private int pending;
+
+    /**
+     * Builds the index over all albums of a user and starts hashing their photos.
+     *
+     * @param u the user
+     */
+    DuplicateIndex(User u) {
+        for (Album a : u.albums) albumAdded(u, a);
+    }
+
+    /**
+     * Returns the photo in an album that is the same picture as a file, either
+     * because it has the same path or the same contents.
+     *
+     * @param a the album
+     * @param path the absolute path of the file
+     * @return the matching photo, or null if the album has none
+     */
+    public Photo findInAlbum(Album a, String path) {
+        synchronized (this) {
+            Photo p = firstIn(a, byPath.get(path));
+            if (p != null) return p;
+        }
+        ByteBuffer digest = digest(path);
+        if (digest == null) return null;
+        synchronized (this) {
+            return firstIn(a, byDigest.get(digest));
+        }
+    }
+
+    /**
+     * Returns the photo in an album that is the same picture as a given photo.
+     *
+     * @param a the album
+     * @param p the photo, typically from another album
+     * @return the matching photo, or null if the album has none
+     */
+    public synchronized Photo findInAlbum(Album a, Photo p) {
+        Photo match = firstIn(a, byPath.get(p.path));
+        if (match != null) return match;
+        ByteBuffer digest = digestOf.get(p);
+        return digest == null ? null : firstIn(a, byDigest.get(digest));
+    }
+
+    /**
+     * Picks out the photos that would be new to an album: those it does not hold
+     * yet, by path or by contents, keeping only the first of several files with the
+     * same contents. The files are hashed in parallel on the calling thread, so call
+     * this off the JavaFX thread.
+     *
+     * @param a the album
+     * @param photos the photos about to be added
+     * @return the photos to add, in their original order
+     */
+    public List<Photo> newTo(Album a, List<Photo> photos) {
+        List<ByteBuffer> digests = photos.parallelStream()
+                .map(p -> digest(p.path))
+                .collect(Collectors.toList());
+        List<Photo> fresh = new ArrayList<>();
+        Set<ByteBuffer> seen = new HashSet<>();
+        synchronized (this) {
+            for (int i = 0; i < photos.size(); i++) {
+                Photo p = photos.get(i);
+                ByteBuffer digest = digests.get(i);
+                if (firstIn(a, byPath.get(p.path)) != null) continue;
+                if (digest != null && (!seen.add(digest) || firstIn(a, byDigest.get(digest)) != null)) continue;
+                fresh.add(p);
+            }
+        }
+        return fresh;
+    }
+
+    /**
+     * Returns the albums a photo is in.
+     *
+     * @param p the photo
+     * @return the albums, empty if the photo is not indexed
+     */
+    public synchronized List<Album> albumsOf(Photo p) {
+        List<Album> albums = albumsOf.get(p);
+        return albums == null ? Collections.emptyList() : new ArrayList<>(albums);
+    }
+
+    /**
+     * Finds the pictures the library holds more than once: groups of distinct photos
+     * whose files have the same contents, largest groups first.
+     *
+     * @return the groups of duplicates, each with at least two photos
+     */
+    public synchronized List<List<Photo>> duplicates() {
+        List<List<Photo>> groups = new ArrayList<>();
+        for (List<Photo> photos : byDigest.values()) {
+            if (photos.size() > 1) groups.add(new ArrayList<>(photos));
+        }
+        for (List<Photo> photos : byPath.values()) {
+            // the same file added to albums separately, not yet hashed
+            if (photos.size() > 1 && photos.stream().noneMatch(digestOf::containsKey)) {
+                groups.add(new ArrayList<>(photos));
+            }
+        }
+        groups.sort((x, y) -> y.size() - x.size());
+        return groups;
+    }
+
+    /**
+     * Returns the number of photos whose files have not been hashed yet.
+     *
+     * @return the number of pending digests
+     */
+    public synchronized int pending() {
+        return pending;
+    }
+
+    @Override
+    public void albumAdded(User u, Album a) {
+        for (Photo p : a.photos) photoAdded(u, a, p);
+    }
+
+    @Override
+    public void albumDeleted(User u, Album a) {
+        for (Photo p : a.photos) photoRemoved(u, a, p);
+    }
+
+    @Override
+    public void photoAdded(User u, Album a, Photo p) {
+        synchronized (this) {
+            List<Album> albums = albumsOf.get(p);
+            if (albums != null) {
+                albums.add(a);
+                return;
+            }
+            albums = new ArrayList<>(2);
+            albums.add(a);
+            albumsOf.put(p, albums);
+            byPath.computeIfAbsent(p.path, k -> new ArrayList<>(1)).add(p);
+        }
+        rehash(p);
+    }
+
+    @Override
+    public void photoFileChanged(User u, Photo p) {
+        synchronized (this) {
+            if (!albumsOf.containsKey(p)) return;
+            ByteBuffer digest = digestOf.remove(p);
+            if (digest != null) removeFrom(byDigest, digest, p);
+        }
+        rehash(p);
+    }
+
+    /**
+     * Computes the digest of a photo's file in the background. Only the latest
+     * request for a photo is kept, so an older digest finishing late is ignored.
+     */
+    private void rehash(Photo p) {
+        long request;
+        synchronized (this) {
+            request = ++requests;
+            hashing.put(p, request);
+            pending++;
+        }
+        LibraryIndex.BACKGROUND.execute(() -> hashed(p, request, digest(p.path)));
+    }
+
+    @Override
+    public synchronized void photoRemoved(User u, Album a, Photo p) {
+        List<Album> albums = albumsOf.get(p);
+        if (albums == null) return;
+        albums.remove(a);
+        if (!albums.isEmpty()) return;
+
+        albumsOf.remove(p);
+        hashing.remove(p);
+        removeFrom(byPath, p.path, p);
+        ByteBuffer digest = digestOf.remove(p);
+        if (digest != null) removeFrom(byDigest, digest, p);
+    }
+
+    private synchronized void hashed(Photo p, long request, ByteBuffer digest) {
+        pending--;
+        // removed meanwhile, or asked for again since
+        Long latest = hashing.get(p);
+        if (latest == null || latest != request) return;
+        hashing.remove(p);
+        if (digest == null) return;   // unreadable
+        digestOf.put(p, digest);
+        byDigest.computeIfAbsent(digest, k -> new ArrayList<>(1)).add(p);
+    }
+
+    private Photo firstIn(Album a, List<Photo> candidates) {
+        if (candidates == null) return null;
+        for (Photo c : candidates) {
+            if (albumsOf.get(c).contains(a)) return c;
+        }
+        return null;
+    }
+
+    private static <K> void removeFrom(Map<K, List<Photo>> map, K key, Photo p) {
+        List<Photo> list = map.get(key);
+        if (list == null) return;
+        list.removeIf(x -> x == p);
+        if (list.isEmpty()) map.remove(key);
+    }
+
+    private static ByteBuffer digest(String path) {
+        try {
+            return FingerprintStore.key(FingerprintStore.get()
+                    .fingerprint(FingerprintStore.SHA256, Paths.get(path), FingerprintStore::sha256));
+        } catch (IOException | InvalidPathException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package photos.search;
+
+import java.util.Arrays;
+
+/**
+ * Index of items by 64-bit hash, for finding all items whose hash differs from a
+ * query in at most a few bits without comparing against every item.
+ *
+ * <p>The hash is cut into four 16-bit chunks and each chunk has its own table from
+ * chunk value to items. Two hashes that differ in at most {@code r} bits differ in at
+ * most {@code r / 4} bits in at least one chunk, so a search only has to look up the
+ * chunk values within {@code r / 4} bits of the query's in each table and check the
+ * items found there. Up to a radius of 11 that is 137 lookups per table, each
+ * returning a handful of items even in a large library. Wider searches fall back to
+ * a scan of all hashes.</p>
+ *
+ * <p>A BK-tree was tried first, but with 64-bit hashes most distances are close to
+ * 32 and a search still had to visit most of the tree, which made it slower than
+ * the plain scan.</p>
+ *
+ * <p>Not thread-safe.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ *
+ * @param <T> the type of the items
+ */
+final class HammingIndex<T> {
+
+    /**
+     * Receives the items found by {@link #search}.
+     *
+     * @param <T> the type of the items
+     */
+    interface Visitor<T> {
+        void found(T item, int distance);
+    }
+
+    private static final int CHUNKS = 4;
+    private static final int CHUNK_BITS = 16;
+    /** Largest number of differing bits per chunk looked up before scanning instead. */
+    private static final int MAX_CHUNK_RADIUS = 2;
+
+    private long[] hashes = new long[64];
+    private Object[] items = new Object[64];
+    private int size;
+
+    /** Per chunk, per chunk value: the number of slots followed by the slots. */
+    private final int[][][] tables = new int[CHUNKS][1 << CHUNK_BITS][];
+
+    private int[] seen = new int[64];   // search stamp per slot, to report each item once
+    private int stamp;
+
+    /**
+     * Returns the Hamming distance between two hashes.
+     *
+     * @param a a hash
+     * @param b another hash
+     * @return the number of differing bits
+     */
+    static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    /**
+     * Adds an item.
+     *
+     * @param hash the item's hash
+     * @param item the item
+     */
+    void add(long hash, T item) {
+        if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, size * 2);
+            items = Arrays.copyOf(items, size * 2);
+            seen = Arrays.copyOf(seen, size * 2);
+        }
+        int slot = size++;
+        hashes[slot] = hash;
+        items[slot] = item;
+        for (int c = 0; c < CHUNKS; c++) {
+            int v = chunk(hash, c);
+            int[] b = tables[c][v];
+            if (b == null) {
+                b = tables[c][v] = new int[3];
+            } else if (b[0] + 1 == b.length) {
+                b = tables[c][v] = Arrays.copyOf(b, b.length * 2);
+            }
+            b[++b[0]] = slot;
+        }
+    }
+
+    /**
+     * Removes an item, compared by identity.
+     *
+     * @param hash the hash the item was added with
+     * @param item the item
+     * @return true if the item was in the index
+     */
+    boolean remove(long hash, T item) {
+        int[] b = tables[0][chunk(hash, 0)];
+        if (b == null) return false;
+        int slot = -1;
+        for (int i = 1; i <= b[0]; i++) {
+            if (items[b[i]] == item) {
+                slot = b[i];
+                break;
+            }
+        }
+        if (slot < 0) return false;
+
+        for (int c = 0; c < CHUNKS; c++) unlink(c, chunk(hash, c), slot);
+        int last = --size;
+        if (slot != last) {   // move the last item into the freed slot
+            long moved = hashes[last];
+            for (int c = 0; c < CHUNKS; c++) relink(c, chunk(moved, c), last, slot);
+            hashes[slot] = moved;
+            items[slot] = items[last];
+        }
+        items[last] = null;
+        return true;
+    }
+
+    /**
+     * Visits every item whose hash is within {@code radius} bits of {@code hash}.
+     *
+     * @param hash the query hash
+     * @param radius the largest distance to report
+     * @param v receives the items and their distances
+     */
+    @SuppressWarnings("unchecked")
+    void search(long hash, int radius, Visitor<T> v) {
+        int chunkRadius = radius / CHUNKS;
+        if (chunkRadius > MAX_CHUNK_RADIUS) {
+            for (int i = 0; i < size; i++) {
+                int d = distance(hash, hashes[i]);
+                if (d <= radius) v.found((T) items[i], d);
+            }
+            return;
+        }
+
+        if (++stamp == 0) {   // wrapped around; forget all old stamps
+            Arrays.fill(seen, 0);
+            stamp = 1;
+        }
+        for (int c = 0; c < CHUNKS; c++) {
+            int q = chunk(hash, c);
+            probe(c, q, hash, radius, v);
+            if (chunkRadius < 1) continue;
+            for (int i = 0; i < CHUNK_BITS; i++) {
+                int q1 = q ^ (1 << i);
+                probe(c, q1, hash, radius, v);
+                if (chunkRadius < 2) continue;
+                for (int j = i + 1; j < CHUNK_BITS; j++) probe(c, q1 ^ (1 << j), hash, radius, v);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of items in the index.
+     *
+     * @return the size
+     */
+    int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void probe(int c, int value, long hash, int radius, Visitor<T> v) {
+        int[] b = tables[c][value];
+        if (b == null) return;
+        for (int i = 1; i <= b[0]; i++) {
+            int slot = b[i];
+            if (seen[slot] == stamp) continue;
+            seen[slot] = stamp;
+            int d = distance(hash, hashes[slot]);
+            if (d <= radius) v.found((T) items[slot], d);
+        }
+    }
+
+    private void unlink(int c, int value, int slot) {
+        int[] b = tables[c][value];
+        for (int i = 1; i <= b[0]; i++) {
+            if (b[i] == slot) {
+                b[i] = b[b[0]--];
+                break;
+            }
+        }
+        if (b[0] == 0) tables[c][value] = null;
+    }
+
+    private void relink(int c, int value, int from, int to) {
+        int[] b = tables[c][value];
+        for (int i = 1; i <= b[0]; i++) {
+            if (b[i] == from) {
+                b[i] = to;
+                return;
+            }
+        }
+    }
+
+    private static int chunk(long hash, int c) {
+        return (int) (hash >>> (c * CHUNK_BITS)) & 0xffff;
+    }
+}
@@ -0,0 +1,361 @@
+package photos.search;
+
+import photos.model.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The indexes kept over one user's library while that user is loaded.
+ *
+ * <p>{@link #install()} registers a {@link LibraryListener} with the
+ * {@link DataStore}: an index is built when a user's albums are loaded and every
+ * later edit is forwarded to it, so lookups never have to scan the albums. It also
+ * keeps the photos of the user's smart albums up to date.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+public final class LibraryIndex implements LibraryListener {
+    /** Computes digests and hashes of photo files for the indexes, at low priority. */
+    static final ExecutorService BACKGROUND = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                Thread t = new Thread(r, "photos-indexing");
+                t.setDaemon(true);
+                t.setPriority(Thread.NORM_PRIORITY - 1);
+                return t;
+            });
+
+    private static final Map<String, LibraryIndex> indexes = new HashMap<>();
+    private static boolean installed;
+
+    /** Same pictures under different paths, and album membership. */
+    public final DuplicateIndex duplicates;
+
+    /** Pictures that look alike. */
+    public final SimilarityIndex similar;
+
+    /** Photos by tag. */
+    public final TagIndex tags;
+
+    /** Tag names and values to suggest while typing. */
+    public final TagCompleter completions;
+
+    /** Photos by date, per user and per album. */
+    public final DateIndex dates;
+
+    /** Photos by the words in their captions. */
+    public final CaptionIndex captions;
+
+    private final SmartAlbums smart;
+
+    private final User user;
+    private final PhotoTable table = new PhotoTable();
+    private final QueryCache cache = new QueryCache();
+    private final LibraryListener[] parts;
+
+    private LibraryIndex(User u) {
+        user = u;
+        synchronized (table) {
+            for (Album a : u.albums) {
+                for (Photo p : a.photos) table.add(p);
+            }
+        }
+        duplicates = new DuplicateIndex(u);
+        similar = new SimilarityIndex(u);
+        completions = new TagCompleter(table);
+        tags = new TagIndex(table, completions);
+        dates = new DateIndex(table);
+        captions = new CaptionIndex(u, table, DataStore.sidecar(u, ".captions"));
+        parts = new LibraryListener[] { duplicates, similar, tags, dates, captions };
+        synchronized (table) {
+            smart = new SmartAlbums(u, table, tags, dates, captions, duplicates);
+        }
+    }
+
+    /**
+     * Starts maintaining indexes for every user that is loaded from now on.
+     * Called once at startup, before any user logs in.
+     */
+    public static synchronized void install() {
+        if (installed) return;
+        installed = true;
+        DataStore.addListener(new LibraryListener() {
+            @Override
+            public void userLoaded(User u) {
+                synchronized (LibraryIndex.class) {
+                    indexes.put(u.username, new LibraryIndex(u));
+                }
+            }
+
+            @Override
+            public void userDeleted(User u) {
+                synchronized (LibraryIndex.class) {
+                    LibraryIndex i = indexes.remove(u.username);
+                    if (i != null) i.captions.delete();
+                }
+            }
+
+            @Override
+            public void albumAdded(User u, Album a) {
+                LibraryIndex i = of(u);
+                if (i != null) i.albumAdded(u, a);
+            }
+
+            @Override
+            public void albumRenamed(User u, Album a, String oldName) {
+                LibraryIndex i = of(u);
+                if (i != null) i.albumRenamed(u, a, oldName);
+            }
+
+            @Override
+            public void albumDeleted(User u, Album a) {
+                LibraryIndex i = of(u);
+                if (i != null) i.albumDeleted(u, a);
+            }
+
+            @Override
+            public void photoFileChanged(User u, Photo p) {
+                LibraryIndex i = of(u);
+                if (i != null) i.photoFileChanged(u, p);
+            }
+
+            @Override
+            public void smartAlbumAdded(User u, SmartAlbum a) {
+                LibraryIndex i = of(u);
+                if (i != null) i.smartAlbumAdded(u, a);
+            }
+
+            @Override
+            public void smartAlbumDeleted(User u, SmartAlbum a) {
+                LibraryIndex i = of(u);
+                if (i != null) i.smartAlbumDeleted(u, a);
+            }
+
+            @Override
+            public void photoAdded(User u, Album a, Photo p) {
+                LibraryIndex i = of(u);
+                if (i != null) i.photoAdded(u, a, p);
+            }
+
+            @Override
+            public void photoRemoved(User u, Album a, Photo p) {
+                LibraryIndex i = of(u);
+                if (i != null) i.photoRemoved(u, a, p);
+            }
+
+            @Override
+            public void photoChanged(User u, Photo p) {
+                LibraryIndex i = of(u);
+                if (i != null) i.photoChanged(u, p);
+            }
+        });
+    }
+
+    /**
+     * Saves the indexes of every loaded user that are kept on disk. Called when the
+     * application closes.
+     */
+    public static synchronized void saveAll() {
+        for (LibraryIndex i : indexes.values()) i.captions.save();
+    }
+
+    /**
+     * Gets the indexes of a loaded user.
+     *
+     * @param u the user
+     * @return the indexes, or null if the user is not loaded or indexing is not installed
+     */
+    public static synchronized LibraryIndex of(User u) {
+        return indexes.get(u.username);
+    }
+
+    /**
+     * Finds the photos matching a query. If it searches captions, the best matches
+     * come first.
+     *
+     * @param q the query
+     * @return the matching photos
+     */
+    public List<Photo> search(Query q) {
+        synchronized (table) {
+            int[] ids = result(q).ids;
+            List<Photo> list = new ArrayList<>(ids.length);
+            for (int id : ids) list.add(table.photo(id));
+            return list;
+        }
+    }
+
+    /**
+     * Returns the cached result of a query, evaluating and caching it if needed. The
+     * caller must hold the lock on the table.
+     */
+    private QueryCache.Entry result(Query q) {
+        QueryCache.Entry e = cache.get(q);
+        if (e != null) return e;
+        int[] ids = new QueryPlanner(user, table, tags, dates, captions, false).evaluate(q).toArray();
+        String[] words = q.captionWords();
+        if (words.length > 0) ids = captions.rank(ids, words);
+        e = cache.put(q, cache.generation(), ids);
+        return e != null ? e : new QueryCache.Entry(cache.generation(), ids);   // too large to keep
+    }
+
+    /**
+     * Starts finding the photos matching a query, a page at a time. Unlike
+     * {@link #search}, this does not find every match up front.
+     *
+     * @param q the query
+     * @return the matches, to be read with {@link SearchStream#next}
+     */
+    public SearchStream stream(Query q) {
+        return new SearchStream(user, table, tags, dates, captions, cache, q);
+    }
+
+    /**
+     * Finds the tags most common among the photos matching a query.
+     *
+     * @param q the query
+     * @param max the most tags to return
+     * @return the tags with the number of matching photos carrying each, most common first
+     */
+    public List<TagIndex.Facet> facets(Query q, int max) {
+        synchronized (table) {
+            QueryCache.Entry e = result(q);
+            if (e.facets == null || e.facetsMax < max) {
+                CompactBitmap b = new CompactBitmap();
+                for (int id : e.ids) b.add(id);
+                e.facets = tags.facets(b, max);
+                e.facetsMax = max;
+            }
+            return e.facets.subList(0, Math.min(max, e.facets.size()));
+        }
+    }
+
+    /**
+     * Finds the tags most common among some photos.
+     *
+     * @param photos the photos, e.g. search results
+     * @param max the most tags to return
+     * @return the tags with the number of the photos carrying each, most common first
+     */
+    public List<TagIndex.Facet> facets(Collection<Photo> photos, int max) {
+        synchronized (table) {
+            CompactBitmap b = new CompactBitmap();
+            for (Photo p : photos) {
+                int id = table.ordinal(p);
+                if (id >= 0) b.add(id);
+            }
+            return tags.facets(b, max);
+        }
+    }
+
+    /**
+     * Returns a one-line summary of the query cache.
+     *
+     * @return queries cached, hits and misses
+     */
+    public String cacheStats() {
+        synchronized (table) {
+            return cache.stats();
+        }
+    }
+
+    /**
+     * Evaluates a query and describes how: the order the terms were evaluated in,
+     * the strategy chosen for each, their estimated and actual number of photos, and
+     * the total work and time.
+     *
+     * @param q the query
+     * @return the plan, one step per line
+     */
+    public String explain(Query q) {
+        synchronized (table) {
+            QueryPlanner planner = new QueryPlanner(user, table, tags, dates, captions, true);
+            planner.evaluate(q);
+            return planner.plan();
+        }
+    }
+
+    // Photos are numbered before the parts hear of them and released after. Cached
+    // results are dropped once every part is up to date, so none are cached from
+    // half-updated indexes, and only then are the touched photos checked against
+    // the smart albums.
+
+    @Override
+    public void albumAdded(User u, Album a) {
+        synchronized (table) {
+            for (Photo p : a.photos) table.add(p);
+        }
+        for (LibraryListener l : parts) l.albumAdded(u, a);
+        changed(a.photos);
+    }
+
+    @Override
+    public void albumRenamed(User u, Album a, String oldName) {
+        for (LibraryListener l : parts) l.albumRenamed(u, a, oldName);
+        changed(a.photos);   // album: terms may now match them or not
+    }
+
+    @Override
+    public void albumDeleted(User u, Album a) {
+        for (LibraryListener l : parts) l.albumDeleted(u, a);
+        synchronized (table) {
+            for (Photo p : a.photos) table.release(p);
+        }
+        changed(a.photos);
+    }
+
+    @Override
+    public void photoAdded(User u, Album a, Photo p) {
+        synchronized (table) {
+            table.add(p);
+        }
+        for (LibraryListener l : parts) l.photoAdded(u, a, p);
+        changed(List.of(p));
+    }
+
+    @Override
+    public void photoRemoved(User u, Album a, Photo p) {
+        for (LibraryListener l : parts) l.photoRemoved(u, a, p);
+        synchronized (table) {
+            table.release(p);
+        }
+        changed(List.of(p));
+    }
+
+    @Override
+    public void photoChanged(User u, Photo p) {
+        for (LibraryListener l : parts) l.photoChanged(u, p);
+        changed(List.of(p));
+    }
+
+    @Override
+    public void photoFileChanged(User u, Photo p) {
+        for (LibraryListener l : parts) l.photoFileChanged(u, p);   // searches do not look at contents
+    }
+
+    @Override
+    public void smartAlbumAdded(User u, SmartAlbum a) {
+        synchronized (table) {
+            smart.add(a);
+        }
+    }
+
+    @Override
+    public void smartAlbumDeleted(User u, SmartAlbum a) {
+        synchronized (table) {
+            smart.remove(a);
+        }
+    }
+
+    private void changed(Collection<Photo> touched) {
+        synchronized (table) {
+            cache.bump();
+            smart.recheck(touched);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package photos.search;
+
+import photos.model.Photo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Numbers the distinct photos of one user, so that the indexes can hold sets of
+ * photos as {@link CompactBitmap}s of small ints.
+ *
+ * <p>A photo gets an ordinal when it is first added to one of the user's albums and
+ * gives it back when it is removed from the last one; freed ordinals are handed out
+ * again so the numbers stay dense.</p>
+ *
+ * <p>Not thread-safe; the indexes that use it synchronize on it.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+final class PhotoTable {
+    private final Map<Photo, Integer> ordinals = new IdentityHashMap<>();
+    private Photo[] photos = new Photo[256];
+    private int[] refs = new int[256];   // albums holding each photo
+    private int[] free = new int[16];
+    private int freeCount;
+    private int next;
+
+    /** The ordinals currently in use. */
+    final CompactBitmap all = new CompactBitmap();
+
+    /**
+     * Records that a photo was added to an album.
+     *
+     * @param p the photo
+     * @return the photo's ordinal
+     */
+    int add(Photo p) {
+        Integer id = ordinals.get(p);
+        if (id != null) {
+            refs[id]++;
+            return id;
+        }
+        int o = freeCount > 0 ? free[--freeCount] : next++;
+        if (o == photos.length) {
+            photos = Arrays.copyOf(photos, o * 2);
+            refs = Arrays.copyOf(refs, o * 2);
+        }
+        photos[o] = p;
+        refs[o] = 1;
+        ordinals.put(p, o);
+        all.add(o);
+        return o;
+    }
+
+    /**
+     * Records that a photo was removed from an album, freeing its ordinal if it is not
+     * in any other album.
+     *
+     * @param p the photo
+     */
+    void release(Photo p) {
+        Integer id = ordinals.get(p);
+        if (id == null || --refs[id] > 0) return;
+        ordinals.remove(p);
+        photos[id] = null;
+        all.remove(id);
+        if (freeCount == free.length) free = Arrays.copyOf(free, freeCount * 2);
+        free[freeCount++] = id;
+    }
+
+    /**
+     * Returns whether removing a photo from one album takes it out of the library,
+     * i.e. whether it is in only one album.
+     *
+     * @param p the photo
+     * @return true if this is its last album
+     */
+    boolean isLastRef(Photo p) {
+        Integer id = ordinals.get(p);
+        return id != null && refs[id] == 1;
+    }
+
+    /**
+     * Returns the ordinal of a photo.
+     *
+     * @param p the photo
+     * @return the ordinal, or -1 if the photo is not in any album
+     */
+    int ordinal(Photo p) {
+        Integer id = ordinals.get(p);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the photo with an ordinal.
+     *
+     * @param id the ordinal
+     * @return the photo, or null if the ordinal is not in use
+     */
+    Photo photo(int id) {
+        return id < photos.length ? photos[id] : null;
+    }
+
+    /**
+     * Returns the number of photos.
+     *
+     * @return the number of ordinals in use
+     */
+    int size() {
+        return ordinals.size();
+    }
+
+    /**
+     * Returns the photos in a set of ordinals, in ordinal order.
+     *
+     * @param ids the ordinals
+     * @return the photos
+     */
+    List<Photo> photos(CompactBitmap ids) {
+        List<Photo> list = new ArrayList<>(ids.cardinality());
+        ids.forEach(id -> list.add(photos[id]));
+        return list;
+    }
+}
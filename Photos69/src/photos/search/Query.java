@@ -0,0 +1,447 @@
+package photos.search;
+
+import photos.model.Tag;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A parsed photo search query.
+ *
+ * <p>A query combines terms with {@code AND}, {@code OR}, {@code NOT} and
+ * parentheses; terms written next to each other are ANDed, and {@code -term} is
+ * short for {@code NOT term}. The terms are:</p>
+ * <ul>
+ *   <li>{@code name=value} or {@code tag:name=value}: photos with that tag</li>
+ *   <li>{@code date:2024-01-01..2024-06-30}: photos taken in that range, inclusive;
+ *       either end may be left out, and {@code date:2024-01-01} means that day</li>
+ *   <li>{@code caption:word}, or just {@code word}: photos whose caption has a word
+ *       starting with it; {@code caption:"two words"} needs both</li>
+ *   <li>{@code album:name}: photos in that album</li>
+ * </ul>
+ * <p>Names, values and words with spaces are written in double quotes, e.g.
+ * {@code person="Ann Lee" AND NOT album:"Old Stuff"}. Keywords, tags, captions and
+ * album names are case-insensitive, and captions also ignore accents.</p>
+ *
+ * <p>Queries are evaluated by {@link LibraryIndex#search(Query)}.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+public final class Query {
+
+    /** A node of the query tree. */
+    abstract static class Node {
+    }
+
+    /** Photos with a tag. */
+    static final class TagTerm extends Node {
+        final String name;
+        final String value;
+
+        TagTerm(String name, String value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return quote(name.toLowerCase(Locale.ROOT)) + "=" + quote(value.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /** Photos dated within a range, in epoch milliseconds, inclusive. */
+    static final class DateTerm extends Node {
+        final long lo;
+        final long hi;
+
+        DateTerm(long lo, long hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        public String toString() {
+            SimpleDateFormat f = new SimpleDateFormat(DATE_FORMAT);
+            return "date:" + (lo == Long.MIN_VALUE ? "" : f.format(new Date(lo)))
+                    + ".." + (hi == Long.MAX_VALUE ? "" : f.format(new Date(hi)));
+        }
+    }
+
+    /** Photos whose caption has words starting with each of some words. */
+    static final class CaptionTerm extends Node {
+        final String text;      // lower case
+        final String[] words;   // normalized by the CaptionIndex, at least one
+
+        CaptionTerm(String text) {
+            this.text = text.toLowerCase(Locale.ROOT);
+            this.words = CaptionIndex.words(text);
+        }
+
+        @Override
+        public String toString() {
+            return "caption:" + quote(text);
+        }
+    }
+
+    /** Photos in an album. */
+    static final class AlbumTerm extends Node {
+        final String name;
+
+        AlbumTerm(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return "album:" + quote(name.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /** Photos matching every child. */
+    static final class And extends Node {
+        final List<Node> children;
+
+        And(List<Node> children) {
+            this.children = children;
+        }
+
+        @Override
+        public String toString() {
+            return join(children, " AND ");
+        }
+    }
+
+    /** Photos matching any child. */
+    static final class Or extends Node {
+        final List<Node> children;
+
+        Or(List<Node> children) {
+            this.children = children;
+        }
+
+        @Override
+        public String toString() {
+            return join(children, " OR ");
+        }
+    }
+
+    /** Photos not matching the child. */
+    static final class Not extends Node {
+        final Node child;
+
+        Not(Node child) {
+            this.child = child;
+        }
+
+        @Override
+        public String toString() {
+            return "NOT " + (child instanceof And || child instanceof Or ? "(" + child + ")" : child);
+        }
+    }
+
+    private static final String DATE_FORMAT = "yyyy-MM-dd";
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+    final Node root;
+    private final String text;
+
+    private Query(Node root) {
+        this.root = root;
+        this.text = root.toString();
+    }
+
+    /**
+     * Parses a query.
+     *
+     * @param s the query text
+     * @return the query
+     * @throws ParseException if the query is malformed; the error offset is where in
+     *         the text the problem was found
+     */
+    public static Query parse(String s) throws ParseException {
+        Parser p = new Parser(s);
+        Node root = p.or();
+        if (p.peek() != null) throw new ParseException("Unexpected '" + p.peek().text + "'", p.peek().pos);
+        return new Query(root);
+    }
+
+    /**
+     * Returns the query for photos with some or all of a list of tags.
+     *
+     * @param tags the tags, at least one
+     * @param all true for photos with every tag, false for photos with any of them
+     * @return the query
+     */
+    public static Query tags(List<Tag> tags, boolean all) {
+        List<Node> children = new ArrayList<>(tags.size());
+        for (Tag t : tags) children.add(new TagTerm(t.name, t.value));
+        if (children.size() == 1) return new Query(children.get(0));
+        return new Query(all ? new And(children) : new Or(children));
+    }
+
+    /**
+     * Returns the query for photos dated within a range of whole days, the same as
+     * {@code date:lo..hi}.
+     *
+     * @param lo a time on the first day, inclusive
+     * @param hi a time on the last day, inclusive
+     * @return the query
+     */
+    public static Query dates(Date lo, Date hi) {
+        return new Query(new DateTerm(startOfDay(lo), startOfDay(hi) + DAY_MS - 1));
+    }
+
+    private static long startOfDay(Date d) {
+        Calendar c = Calendar.getInstance();
+        c.setTime(d);
+        c.set(Calendar.HOUR_OF_DAY, 0);
+        c.set(Calendar.MINUTE, 0);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MILLISECOND, 0);
+        return c.getTimeInMillis();
+    }
+
+    /**
+     * Returns the query for photos matching both this query and another.
+     *
+     * @param other the other query
+     * @return the combined query
+     */
+    public Query and(Query other) {
+        List<Node> children = new ArrayList<>();
+        for (Node n : new Node[] { root, other.root }) {
+            if (n instanceof And) children.addAll(((And) n).children); else children.add(n);
+        }
+        return new Query(new And(children));
+    }
+
+    /**
+     * Returns the query in a normalized form: keywords in upper case, explicit AND
+     * and parentheses, terms in lower case where case does not matter. Two queries
+     * with the same normalized form find the same photos.
+     *
+     * @return the normalized query text
+     */
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    /**
+     * Returns the caption words the query searches for, outside of any NOT, which
+     * are what its matches are ranked by.
+     *
+     * @return the words, possibly none
+     */
+    String[] captionWords() {
+        List<String> words = new ArrayList<>();
+        collectCaptionWords(root, words);
+        return words.toArray(new String[0]);
+    }
+
+    private static void collectCaptionWords(Node n, List<String> words) {
+        if (n instanceof CaptionTerm) {
+            for (String w : ((CaptionTerm) n).words) words.add(w);
+        } else if (n instanceof And || n instanceof Or) {
+            for (Node c : n instanceof And ? ((And) n).children : ((Or) n).children) collectCaptionWords(c, words);
+        }
+    }
+
+    private static String join(List<Node> children, String op) {
+        StringBuilder sb = new StringBuilder();
+        for (Node c : children) {
+            if (sb.length() > 0) sb.append(op);
+            boolean group = c instanceof And || c instanceof Or;
+            sb.append(group ? "(" : "").append(c).append(group ? ")" : "");
+        }
+        return sb.toString();
+    }
+
+    private static String quote(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isWhitespace(c) || "()=:\"-".indexOf(c) >= 0) return '"' + s + '"';
+        }
+        return s.isEmpty() ? "\"\"" : s;
+    }
+
+    /** A word of the query text, with the positions of its unquoted '=' and ':'. */
+    private static final class Token {
+        final String text;
+        final int pos;
+        final boolean quoted;   // any part of it was in quotes
+        final int eq;           // index of the first unquoted '=' in text, or -1
+        final int colon;        // index of the first unquoted ':' in text, or -1
+
+        Token(String text, int pos, boolean quoted, int eq, int colon) {
+            this.text = text;
+            this.pos = pos;
+            this.quoted = quoted;
+            this.eq = eq;
+            this.colon = colon;
+        }
+
+        boolean is(String keyword) {
+            return !quoted && text.equalsIgnoreCase(keyword);
+        }
+    }
+
+    /** Recursive descent parser: or := and (OR and)*, and := unary (AND? unary)*. */
+    private static final class Parser {
+        private final List<Token> tokens = new ArrayList<>();
+        private int next;
+
+        Parser(String s) throws ParseException {
+            int i = 0;
+            while (i < s.length()) {
+                char c = s.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '(' || c == ')') {
+                    tokens.add(new Token(String.valueOf(c), i++, false, -1, -1));
+                } else if (c == '-' && (i + 1 < s.length()) && !Character.isWhitespace(s.charAt(i + 1))) {
+                    tokens.add(new Token("NOT", i++, false, -1, -1));
+                } else {
+                    i = word(s, i);
+                }
+            }
+        }
+
+        private int word(String s, int start) throws ParseException {
+            StringBuilder sb = new StringBuilder();
+            boolean quoted = false;
+            int eq = -1, colon = -1;
+            int i = start;
+            while (i < s.length()) {
+                char c = s.charAt(i);
+                if (c == '"') {
+                    int end = s.indexOf('"', i + 1);
+                    if (end < 0) throw new ParseException("Missing closing quote", i);
+                    sb.append(s, i + 1, end);
+                    quoted = true;
+                    i = end + 1;
+                } else if (Character.isWhitespace(c) || c == '(' || c == ')') {
+                    break;
+                } else {
+                    if (c == '=' && eq < 0) eq = sb.length();
+                    if (c == ':' && colon < 0 && eq < 0) colon = sb.length();
+                    sb.append(c);
+                    i++;
+                }
+            }
+            tokens.add(new Token(sb.toString(), start, quoted, eq, colon));
+            return i;
+        }
+
+        Token peek() {
+            return next < tokens.size() ? tokens.get(next) : null;
+        }
+
+        Node or() throws ParseException {
+            List<Node> children = new ArrayList<>();
+            children.add(and());
+            while (peek() != null && peek().is("OR")) {
+                next++;
+                children.add(and());
+            }
+            return children.size() == 1 ? children.get(0) : new Or(children);
+        }
+
+        Node and() throws ParseException {
+            List<Node> children = new ArrayList<>();
+            children.add(unary());
+            while (peek() != null && !peek().is("OR") && !isClose(peek())) {
+                if (peek().is("AND")) next++;
+                children.add(unary());
+            }
+            return children.size() == 1 ? children.get(0) : new And(children);
+        }
+
+        private static boolean isClose(Token t) {
+            return !t.quoted && t.text.equals(")");
+        }
+
+        Node unary() throws ParseException {
+            Token t = peek();
+            if (t == null) throw new ParseException("Query is incomplete", end());
+            next++;
+            if (t.is("NOT")) return new Not(unary());
+            if (!t.quoted && t.text.equals("(")) {
+                Node n = or();
+                Token close = peek();
+                if (close == null || !isClose(close)) {
+                    throw new ParseException("Missing ')'", close == null ? end() : close.pos);
+                }
+                next++;
+                return n;
+            }
+            if (t.is("AND") || t.is("OR") || isClose(t)) {
+                throw new ParseException("Unexpected '" + t.text + "'", t.pos);
+            }
+            return term(t);
+        }
+
+        private Node term(Token t) throws ParseException {
+            String field = t.colon >= 0 ? t.text.substring(0, t.colon).toLowerCase(Locale.ROOT) : "";
+            String arg = t.colon >= 0 ? t.text.substring(t.colon + 1) : t.text;
+            switch (field) {
+                case "date":
+                    return date(arg, t.pos);
+                case "caption":
+                    return caption(arg, t.pos);
+                case "album":
+                    return new AlbumTerm(arg);
+                case "tag":
+                case "":
+                    int eq = t.eq >= 0 && t.colon >= 0 ? t.eq - t.colon - 1 : t.eq;
+                    if (eq >= 0) {
+                        String name = arg.substring(0, eq).trim();
+                        String value = arg.substring(eq + 1).trim();
+                        if (name.isEmpty() || value.isEmpty()) {
+                            throw new ParseException("A tag needs a name and a value", t.pos);
+                        }
+                        return new TagTerm(name, value);
+                    }
+                    if (field.isEmpty()) return caption(arg, t.pos);
+                    throw new ParseException("Write tags as name=value", t.pos);
+                default:
+                    throw new ParseException("Unknown field '" + field + "'", t.pos);
+            }
+        }
+
+        private static Node caption(String arg, int pos) throws ParseException {
+            CaptionTerm t = new CaptionTerm(arg);
+            if (t.words.length == 0) throw new ParseException("Search captions for a word or number", pos);
+            return t;
+        }
+
+        private Node date(String arg, int pos) throws ParseException {
+            int dots = arg.indexOf("..");
+            String from = dots >= 0 ? arg.substring(0, dots) : arg;
+            String to = dots >= 0 ? arg.substring(dots + 2) : arg;
+            long lo = from.isEmpty() ? Long.MIN_VALUE : day(from, pos);
+            long hi = to.isEmpty() ? Long.MAX_VALUE : day(to, pos) + DAY_MS - 1;   // to the end of that day
+            if (lo > hi) throw new ParseException("The date range ends before it starts", pos);
+            return new DateTerm(lo, hi);
+        }
+
+        private static long day(String s, int pos) throws ParseException {
+            SimpleDateFormat f = new SimpleDateFormat(DATE_FORMAT);
+            f.setLenient(false);
+            try {
+                return f.parse(s).getTime();
+            } catch (ParseException e) {
+                throw new ParseException("Write dates as yyyy-MM-dd", pos);
+            }
+        }
+
+        private int end() {
+            return tokens.isEmpty() ? 0 : tokens.get(tokens.size() - 1).pos;
+        }
+    }
+}
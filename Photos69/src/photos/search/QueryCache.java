@@ -0,0 +1,117 @@
+package photos.search;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The results of one user's most recent queries, so that running a query again
+ * does not evaluate it again.
+ *
+ * <p>Entries are keyed by the normalized text of the query, so queries that differ
+ * only in case, spacing or redundant parentheses share an entry. Each entry is
+ * stamped with the library generation it was computed at: a counter the
+ * {@link LibraryIndex} bumps on every edit, which also drops every entry. A result
+ * finished after an edit it did not see carries the older generation and is not
+ * stored, so an entry is never older than the library.</p>
+ *
+ * <p>At most {@value #MAX_ENTRIES} queries and {@value #MAX_IDS} photos are kept;
+ * the least recently used entries go first. Not thread-safe; the
+ * {@link LibraryIndex} only uses it while holding the lock on its
+ * {@link PhotoTable}.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+final class QueryCache {
+    private static final int MAX_ENTRIES = 32;
+    private static final int MAX_IDS = 1 << 20;
+
+    /** The result of a query. */
+    static final class Entry {
+        final long generation;
+        final int[] ids;   // ordinals of the matches, in the order they are shown
+        List<TagIndex.Facet> facets;   // the most common tags, once asked for
+        int facetsMax;
+
+        Entry(long generation, int[] ids) {
+            this.generation = generation;
+            this.ids = ids;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long generation;
+    private int ids;   // ordinals held by all entries
+    private long hits;
+    private long misses;
+
+    /**
+     * Returns the current library generation.
+     *
+     * @return the generation
+     */
+    long generation() {
+        return generation;
+    }
+
+    /**
+     * Records an edit of the library, which makes every entry stale.
+     */
+    void bump() {
+        generation++;
+        if (!entries.isEmpty()) {
+            entries.clear();
+            ids = 0;
+        }
+    }
+
+    /**
+     * Looks up the result of a query.
+     *
+     * @param q the query
+     * @return the result, or null if it is not cached
+     */
+    Entry get(Query q) {
+        Entry e = entries.get(q.toString());
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e;
+    }
+
+    /**
+     * Stores the result of a query, unless the library changed since it was computed.
+     *
+     * @param q the query
+     * @param at the generation the result was computed at
+     * @param result the ordinals of the matches, in the order they are shown
+     * @return the entry, or null if the result is out of date or too large to keep
+     */
+    Entry put(Query q, long at, int[] result) {
+        if (at != generation || result.length > MAX_IDS / 4) return null;
+        Entry e = new Entry(at, result);
+        Entry old = entries.put(q.toString(), e);
+        if (old != null) ids -= old.ids.length;
+        ids += result.length;
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while ((entries.size() > MAX_ENTRIES || ids > MAX_IDS) && it.hasNext()) {
+            Entry lru = it.next().getValue();
+            if (lru == e) break;
+            ids -= lru.ids.length;
+            it.remove();
+        }
+        return e;
+    }
+
+    /**
+     * Returns a one-line summary of how well the cache works.
+     *
+     * @return entries held, hits and misses
+     */
+    String stats() {
+        return String.format("%d queries cached, %d hits, %d misses", entries.size(), hits, misses);
+    }
+}
@@ -0,0 +1,370 @@
+package photos.search;
+
+import photos.model.Album;
+import photos.model.Photo;
+import photos.model.User;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Evaluates a {@link Query} against one user's indexes.
+ *
+ * <p>Before evaluating an AND, the planner estimates how many photos each operand
+ * matches from the index statistics: exact counts for tags, albums and date ranges,
+ * an upper bound for caption words. Operands are then evaluated from the most selective
+ * to the least, and evaluation stops as soon as the intermediate result is empty.
+ * Each later operand is either evaluated to its own set and intersected, or checked
+ * photo by photo against the candidates left at that point, whichever touches fewer
+ * entries; so a caption word or a wide date range after a rare tag costs a few
+ * checks rather than a scan. Negated operands are subtracted last.</p>
+ *
+ * <p>When tracing, every step is recorded with its estimate, the strategy chosen
+ * and the actual number of photos, which is what the explain mode shows.</p>
+ *
+ * <p>The caller must hold the lock on the {@link PhotoTable}.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+final class QueryPlanner {
+    private final User user;
+    private final PhotoTable table;
+    private final TagIndex tags;
+    private final DateIndex dates;
+    private final CaptionIndex captions;
+    private final StringBuilder trace;   // null unless explaining
+    private final Map<Query.AlbumTerm, CompactBitmap> albums = new HashMap<>();
+    private int depth;
+    private long work;                   // photos and index entries touched
+
+    QueryPlanner(User user, PhotoTable table, TagIndex tags, DateIndex dates, CaptionIndex captions,
+                 boolean explain) {
+        this.user = user;
+        this.table = table;
+        this.tags = tags;
+        this.dates = dates;
+        this.captions = captions;
+        this.trace = explain ? new StringBuilder() : null;
+    }
+
+    /**
+     * Evaluates a query.
+     *
+     * @param q the query
+     * @return the ordinals of the matching photos
+     */
+    CompactBitmap evaluate(Query q) {
+        long start = System.nanoTime();
+        CompactBitmap result = eval(q.root);
+        if (trace != null) {
+            trace.append(String.format(Locale.ROOT, "%n%d photos of %d, %d entries examined, %.3f ms%n",
+                    result.cardinality(), table.size(), work, (System.nanoTime() - start) / 1e6));
+        }
+        return result;
+    }
+
+    /**
+     * Returns a set of photos that contains every match of a query and is cheap to
+     * produce, for checking the photos one by one with {@link #matches}: for an AND,
+     * the most selective operand that has an index; for anything else, the exact
+     * result if that costs less than a scan, or else all photos.
+     *
+     * @param q the query
+     * @return the candidates
+     */
+    CompactBitmap candidates(Query q) {
+        Query.Node n = q.root;
+        if (n instanceof Query.And) {
+            Query.Node best = null;
+            for (Query.Node c : ((Query.And) n).children) {
+                if (c instanceof Query.Not) continue;
+                if (best == null || estimate(c) < estimate(best)) best = c;
+            }
+            if (best != null && cost(best) < table.size()) return eval(best);
+            return table.all;
+        }
+        return cost(n) < table.size() ? eval(n) : table.all;
+    }
+
+    /**
+     * Returns the plan recorded by {@link #evaluate}, if tracing.
+     *
+     * @return the plan, or null
+     */
+    String plan() {
+        return trace == null ? null : trace.toString();
+    }
+
+    /**
+     * Estimates the number of photos a node matches.
+     */
+    private double estimate(Query.Node n) {
+        int all = table.size();
+        if (n instanceof Query.TagTerm) {
+            Query.TagTerm t = (Query.TagTerm) n;
+            return tags.bitmap(t.name, t.value).cardinality();
+        }
+        if (n instanceof Query.DateTerm) {
+            Query.DateTerm t = (Query.DateTerm) n;
+            return dates.count(t.lo, t.hi);
+        }
+        if (n instanceof Query.AlbumTerm) {
+            Album a = album((Query.AlbumTerm) n);
+            return a == null ? 0 : a.photos.size();
+        }
+        if (n instanceof Query.CaptionTerm) return captions.estimate(((Query.CaptionTerm) n).words);
+        if (n instanceof Query.Not) return all - estimate(((Query.Not) n).child);
+        if (n instanceof Query.Or) {
+            double sum = 0;
+            for (Query.Node c : ((Query.Or) n).children) sum += estimate(c);
+            return Math.min(all, sum);
+        }
+        double share = 1;   // AND: assume the operands are independent
+        for (Query.Node c : ((Query.And) n).children) share *= all == 0 ? 0 : estimate(c) / all;
+        return all * share;
+    }
+
+    /**
+     * Estimates how many entries producing a node's own set touches.
+     */
+    private double cost(Query.Node n) {
+        if (n instanceof Query.TagTerm) return 1;   // the set is stored
+        if (n instanceof Query.DateTerm || n instanceof Query.AlbumTerm) return estimate(n);
+        if (n instanceof Query.CaptionTerm) return captions.entries(((Query.CaptionTerm) n).words);
+        if (n instanceof Query.Not) return cost(((Query.Not) n).child) + table.size();
+        double sum = 0;
+        for (Query.Node c : n instanceof Query.And ? ((Query.And) n).children : ((Query.Or) n).children) {
+            sum += cost(c);
+        }
+        return sum;
+    }
+
+    /**
+     * Estimates how many entries checking one photo against a node touches.
+     */
+    private static int checkCost(Query.Node n) {
+        if (n instanceof Query.Not) return checkCost(((Query.Not) n).child);
+        if (n instanceof Query.CaptionTerm) return ((Query.CaptionTerm) n).words.length;
+        if (n instanceof Query.And || n instanceof Query.Or) {
+            int sum = 0;
+            for (Query.Node c : n instanceof Query.And ? ((Query.And) n).children : ((Query.Or) n).children) {
+                sum += checkCost(c);
+            }
+            return sum;
+        }
+        return 1;
+    }
+
+    private CompactBitmap eval(Query.Node n) {
+        if (n instanceof Query.And) return and(((Query.And) n).children);
+        if (n instanceof Query.Or) return or(((Query.Or) n).children);
+        if (n instanceof Query.Not) {
+            log("NOT  [complement]", estimate(n), -1);
+            depth++;
+            CompactBitmap child = eval(((Query.Not) n).child);
+            depth--;
+            work += table.size();
+            return CompactBitmap.andNot(table.all, child);
+        }
+        return term(n);
+    }
+
+    private CompactBitmap term(Query.Node n) {
+        CompactBitmap b;
+        String how;
+        if (n instanceof Query.TagTerm) {
+            Query.TagTerm t = (Query.TagTerm) n;
+            b = tags.bitmap(t.name, t.value);
+            how = "tag index lookup";
+            work++;
+        } else if (n instanceof Query.DateTerm) {
+            Query.DateTerm t = (Query.DateTerm) n;
+            b = dates.bitmap(t.lo, t.hi);
+            how = "date index range";
+            work += b.cardinality();
+        } else if (n instanceof Query.AlbumTerm) {
+            b = albumMembers((Query.AlbumTerm) n);
+            how = album((Query.AlbumTerm) n) == null ? "no such album" : "album members";
+        } else {
+            b = captions.bitmap(((Query.CaptionTerm) n).words);
+            how = "caption index prefix merge";
+            work += cost(n);
+        }
+        log(n + "  [" + how + "]", estimate(n), b.cardinality());
+        return b;
+    }
+
+    private CompactBitmap and(List<Query.Node> children) {
+        List<Query.Node> positive = new ArrayList<>();
+        List<Query.Node> negative = new ArrayList<>();
+        for (Query.Node c : children) {
+            if (c instanceof Query.Not) negative.add(((Query.Not) c).child); else positive.add(c);
+        }
+        // most selective first; among equals, the cheaper one
+        Comparator<Query.Node> order = Comparator.comparingDouble(this::estimate).thenComparingDouble(this::cost);
+        positive.sort(order);
+        negative.sort(order.reversed());   // the larger the set taken away, the sooner the result shrinks
+
+        log("AND", estimate(new Query.And(children)), -1);
+        depth++;
+        CompactBitmap result;
+        int i = 0;
+        if (positive.isEmpty()) {
+            log("all photos", table.size(), table.size());
+            result = table.all;
+        } else {
+            result = eval(positive.remove(0));
+        }
+
+        for (; i < positive.size() && !result.isEmpty(); i++) {
+            result = narrow(result, positive.get(i), true);
+        }
+        for (int k = 0; k < negative.size() && !result.isEmpty(); k++) {
+            result = narrow(result, negative.get(k), false);
+        }
+        if (result.isEmpty() && trace != null && i < positive.size()) {
+            log("(empty: remaining operands skipped)", -1, -1);
+        }
+        depth--;
+        return result;
+    }
+
+    /**
+     * Keeps the candidates that match (or do not match) a node, either by checking
+     * each candidate or by intersecting with the node's own set, whichever is cheaper.
+     */
+    private CompactBitmap narrow(CompactBitmap candidates, Query.Node n, boolean keep) {
+        int count = candidates.cardinality();
+        if ((double) count * checkCost(n) < cost(n)) {
+            CompactBitmap b = new CompactBitmap();
+            candidates.forEach(id -> {
+                if (matches(n, id) == keep) b.add(id);
+            });
+            work += count;
+            log((keep ? "" : "NOT ") + n + "  [check " + count + " candidates]", -1, b.cardinality());
+            return b;
+        }
+        if (!keep) {
+            log("AND NOT", -1, -1);
+            depth++;
+        }
+        CompactBitmap b = eval(n);
+        if (!keep) depth--;
+        work += Math.min(count, b.cardinality());
+        return keep ? CompactBitmap.and(candidates, b) : CompactBitmap.andNot(candidates, b);
+    }
+
+    private CompactBitmap or(List<Query.Node> children) {
+        log("OR", estimate(new Query.Or(children)), -1);
+        depth++;
+        CompactBitmap result = new CompactBitmap();
+        for (Query.Node c : children) {
+            result = CompactBitmap.or(result, eval(c));
+            if (result.cardinality() == table.size()) break;   // cannot grow any more
+        }
+        depth--;
+        return result;
+    }
+
+    /**
+     * Checks one photo against a node, without producing the node's set.
+     *
+     * @param n the node, e.g. the root of a query
+     * @param id the photo's ordinal
+     * @return true if the photo matches
+     */
+    boolean matches(Query.Node n, int id) {
+        return matches(n, id, null);
+    }
+
+    /**
+     * Checks one photo against a node, looking for album terms among the albums
+     * holding the photo. Cheaper than {@link #matches(Query.Node, int)} when only a
+     * few photos are checked, since the photos of the albums named in the query are
+     * not collected.
+     *
+     * @param n the node, e.g. the root of a query
+     * @param id the photo's ordinal
+     * @param holders the albums holding the photo, or null to collect the album photos
+     * @return true if the photo matches
+     */
+    boolean matches(Query.Node n, int id, List<Album> holders) {
+        if (n instanceof Query.TagTerm) {
+            Query.TagTerm t = (Query.TagTerm) n;
+            return tags.bitmap(t.name, t.value).contains(id);
+        }
+        if (n instanceof Query.DateTerm) {
+            long t = dates.time(id);
+            return t >= ((Query.DateTerm) n).lo && t <= ((Query.DateTerm) n).hi;
+        }
+        if (n instanceof Query.CaptionTerm) {
+            return captions.matches(id, ((Query.CaptionTerm) n).words);
+        }
+        if (n instanceof Query.AlbumTerm) {
+            if (holders == null) return albumMembers((Query.AlbumTerm) n).contains(id);
+            for (Album a : holders) {
+                if (a.name.equalsIgnoreCase(((Query.AlbumTerm) n).name)) return true;
+            }
+            return false;
+        }
+        if (n instanceof Query.Not) return !matches(((Query.Not) n).child, id, holders);
+        if (n instanceof Query.And) {
+            for (Query.Node c : ((Query.And) n).children) {
+                if (!matches(c, id, holders)) return false;
+            }
+            return true;
+        }
+        for (Query.Node c : ((Query.Or) n).children) {
+            if (matches(c, id, holders)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the ordinals of the photos in an album, computed once per query.
+     */
+    private CompactBitmap albumMembers(Query.AlbumTerm t) {
+        CompactBitmap b = albums.get(t);
+        if (b == null) {
+            b = new CompactBitmap();
+            Album a = album(t);
+            if (a != null) {
+                for (Photo p : a.photos) b.add(table.ordinal(p));
+                work += a.photos.size();
+            }
+            albums.put(t, b);
+        }
+        return b;
+    }
+
+    private Album album(Query.AlbumTerm t) {
+        for (Album a : user.albums) {
+            if (a.name.equalsIgnoreCase(t.name)) return a;
+        }
+        return null;
+    }
+
+    /**
+     * Records a step of the plan, if tracing.
+     *
+     * @param what the step
+     * @param estimate the estimated number of photos, or -1 if not estimated
+     * @param actual the actual number of photos, or -1 if the step has sub-steps
+     */
+    private void log(String what, double estimate, int actual) {
+        if (trace == null) return;
+        indent();
+        trace.append(what);
+        if (estimate >= 0) trace.append(String.format(Locale.ROOT, "  est %.0f", estimate));
+        if (actual >= 0) trace.append("  -> ").append(actual);
+        trace.append(String.format("%n"));
+    }
+
+    private void indent() {
+        for (int k = 0; k < depth; k++) trace.append("  ");
+    }
+}
@@ -0,0 +1,126 @@
+package photos.search;
+
+import photos.model.Photo;
+import photos.model.User;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The matches of a query, handed out a few at a time so the first ones can be shown
+ * before the rest are found.
+ *
+ * <p>The first call to {@link #next} asks the {@link QueryPlanner} for a cheap
+ * superset of the result, usually the photos of the query's most selective indexed
+ * term, and every later call checks the next candidates against the whole query.
+ * Getting the first page therefore costs one index lookup and as many checks as it
+ * takes to fill the page, however large the full result is. Queries that search
+ * captions are the exception: their matches are ranked by relevance, so they are
+ * all found and ranked by the first call.</p>
+ *
+ * <p>Results come from the {@link QueryCache} when the query ran before and the
+ * library has not changed since; then the candidates are the matches themselves and
+ * are not checked again unless the library changes while they are handed out. A
+ * stream that runs to the end stores its matches there in turn.</p>
+ *
+ * <p>The lock on the {@link PhotoTable} is only held for {@value #CHUNK} candidates
+ * at a time, so edits made while a search streams do not wait for it. The stream
+ * sees the library as it is when each chunk is checked; photos removed in the
+ * meantime are skipped. A stream stops early when its thread is interrupted.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+public final class SearchStream {
+    private static final int CHUNK = 4096;   // candidates checked per turn of the lock
+
+    private final PhotoTable table;
+    private final QueryPlanner planner;
+    private final CaptionIndex captions;
+    private final QueryCache cache;
+    private final Query query;
+    private int[] candidates;   // null until the first call
+    private int next;
+    private long exactAt = -1;  // generation at which the candidates were exactly the matches
+    private long startedAt;     // generation at which the candidates were found
+    private int[] matched;      // matches found so far, to cache; null if not collecting
+    private int matchedCount;
+
+    SearchStream(User u, PhotoTable table, TagIndex tags, DateIndex dates, CaptionIndex captions,
+                 QueryCache cache, Query q) {
+        this.table = table;
+        this.planner = new QueryPlanner(u, table, tags, dates, captions, false);
+        this.captions = captions;
+        this.cache = cache;
+        this.query = q;
+    }
+
+    /**
+     * Finds the next matches.
+     *
+     * @param out the list to add the matches to
+     * @param max the most matches to add
+     * @return the number of matches added; less than {@code max} only if the stream
+     *         is done or the thread was interrupted
+     */
+    public int next(List<Photo> out, int max) {
+        int found = 0;
+        while (found < max && !isDone() && !Thread.currentThread().isInterrupted()) {
+            synchronized (table) {
+                if (candidates == null) start();
+                boolean exact = exactAt == cache.generation();
+                int end = Math.min(candidates.length, next + CHUNK);
+                for (; next < end && found < max; next++) {
+                    int id = candidates[next];
+                    Photo p = table.photo(id);
+                    if (p != null && (exact || planner.matches(query.root, id))) {
+                        out.add(p);
+                        found++;
+                        if (matched != null) add(id);
+                    }
+                }
+                if (matched != null && next == candidates.length) {
+                    cache.put(query, startedAt, Arrays.copyOf(matched, matchedCount));
+                    matched = null;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Finds the candidates: the cached matches, the ranked matches of a caption
+     * search, or else a superset of the matches to check one by one.
+     */
+    private void start() {
+        startedAt = cache.generation();
+        QueryCache.Entry hit = cache.get(query);
+        if (hit != null) {
+            candidates = hit.ids;
+            exactAt = hit.generation;
+            return;
+        }
+        String[] words = query.captionWords();
+        if (words.length > 0) {
+            candidates = captions.rank(planner.evaluate(query).toArray(), words);
+            exactAt = startedAt;
+            cache.put(query, startedAt, candidates);
+        } else {
+            candidates = planner.candidates(query).toArray();
+            matched = new int[Math.min(candidates.length, 1024)];
+        }
+    }
+
+    private void add(int id) {
+        if (matchedCount == matched.length) matched = Arrays.copyOf(matched, Math.max(16, matchedCount * 2));
+        matched[matchedCount++] = id;
+    }
+
+    /**
+     * Returns whether every match has been handed out.
+     *
+     * @return true if {@link #next} will find nothing more
+     */
+    public boolean isDone() {
+        return candidates != null && next >= candidates.length;
+    }
+}
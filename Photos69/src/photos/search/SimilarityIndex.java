@@ -0,0 +1,217 @@
+package photos.search;
+
+import photos.image.PerceptualHash;
+import photos.model.Album;
+import photos.model.LibraryListener;
+import photos.model.Photo;
+import photos.model.User;
+
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Index of the perceptual hashes of one user's photos, for finding pictures that
+ * look alike: burst shots, resized or re-encoded copies, light edits.
+ *
+ * <p>Hashes are {@link PerceptualHash difference hashes} computed in the background
+ * and kept in a {@link HammingIndex}, so finding the photos within a few bits of a
+ * given one only looks at a small part of the library. Until a photo has been hashed it is
+ * not found; {@link #pending()} tells how many are still outstanding.</p>
+ *
+ * <p>The index is kept up to date incrementally through {@link LibraryListener}
+ * events. It is thread-safe.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+public final class SimilarityIndex implements LibraryListener {
+    /** Distance up to which two photos are considered near-duplicates by default. */
+    public static final int DEFAULT_RADIUS = 8;
+
+    private final Map<Photo, Integer> refs = new IdentityHashMap<>();   // albums holding each photo
+    private final Map<Photo, Long> hashOf = new IdentityHashMap<>();
+    private final HammingIndex<Photo> hashes = new HammingIndex<>();
+    private final Map<Photo, Long> hashing = new IdentityHashMap<>();   // latest hash requested for each photo
+    private long requests;
+    private int pending;
+
+    /**
+     * Builds the index over all albums of a user and starts hashing their photos.
+     *
+     * @param u the user
+     */
+    SimilarityIndex(User u) {
+        for (Album a : u.albums) albumAdded(u, a);
+    }
+
+    /**
+     * Finds the photos that look like a given image file, closest first.
+     *
+     * @param path the absolute path of the image
+     * @param radius the largest number of differing hash bits
+     * @return the similar photos, or an empty list if the file cannot be read
+     */
+    public List<Photo> similar(String path, int radius) {
+        try {
+            return similar(PerceptualHash.of(Paths.get(path)), radius);
+        } catch (IOException | InvalidPathException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Finds the photos whose hash is within {@code radius} bits of a hash, closest first.
+     *
+     * @param hash the hash to compare with
+     * @param radius the largest number of differing bits
+     * @return the similar photos
+     */
+    public List<Photo> similar(long hash, int radius) {
+        final List<Photo> found = new ArrayList<>();
+        final Map<Photo, Integer> dist = new IdentityHashMap<>();
+        synchronized (this) {
+            hashes.search(hash, radius, (p, d) -> {
+                found.add(p);
+                dist.put(p, d);
+            });
+        }
+        found.sort(Comparator.comparingInt(dist::get));
+        return found;
+    }
+
+    /**
+     * Groups all photos into clusters of pictures that look alike. Two photos are in
+     * the same cluster if they are within {@code radius} bits of each other, directly
+     * or through other photos of the cluster.
+     *
+     * @param radius the largest number of differing bits between neighbours
+     * @return the clusters with at least two photos, largest first
+     */
+    public synchronized List<List<Photo>> clusters(int radius) {
+        Map<Photo, Photo> parent = new IdentityHashMap<>();
+        for (Map.Entry<Photo, Long> e : hashOf.entrySet()) {
+            final Photo p = e.getKey();
+            hashes.search(e.getValue(), radius, (q, d) -> {
+                if (q != p) union(parent, p, q);
+            });
+        }
+
+        Map<Photo, List<Photo>> groups = new IdentityHashMap<>();
+        for (Photo p : parent.keySet()) {
+            groups.computeIfAbsent(find(parent, p), k -> new ArrayList<>()).add(p);
+        }
+        List<List<Photo>> clusters = new ArrayList<>();
+        for (List<Photo> g : groups.values()) {
+            if (g.size() > 1) clusters.add(g);
+        }
+        clusters.sort((x, y) -> y.size() - x.size());
+        return clusters;
+    }
+
+    /**
+     * Returns the number of photos that have not been hashed yet.
+     *
+     * @return the number of pending hashes
+     */
+    public synchronized int pending() {
+        return pending;
+    }
+
+    @Override
+    public void albumAdded(User u, Album a) {
+        for (Photo p : a.photos) photoAdded(u, a, p);
+    }
+
+    @Override
+    public void albumDeleted(User u, Album a) {
+        for (Photo p : a.photos) photoRemoved(u, a, p);
+    }
+
+    @Override
+    public void photoAdded(User u, Album a, Photo p) {
+        synchronized (this) {
+            if (refs.merge(p, 1, Integer::sum) > 1) return;
+        }
+        rehash(p);
+    }
+
+    @Override
+    public void photoFileChanged(User u, Photo p) {
+        synchronized (this) {
+            if (!refs.containsKey(p)) return;
+            Long hash = hashOf.remove(p);
+            if (hash != null) hashes.remove(hash, p);
+        }
+        rehash(p);
+    }
+
+    /**
+     * Computes the hash of a photo's file in the background. Only the latest request
+     * for a photo is kept, so an older hash finishing late is ignored.
+     */
+    private void rehash(Photo p) {
+        long request;
+        synchronized (this) {
+            request = ++requests;
+            hashing.put(p, request);
+            pending++;
+        }
+        LibraryIndex.BACKGROUND.execute(() -> {
+            Long hash;
+            try {
+                hash = PerceptualHash.of(Paths.get(p.path));
+            } catch (IOException | RuntimeException e) {   // unreadable or not an image
+                hash = null;
+            }
+            hashed(p, request, hash);
+        });
+    }
+
+    @Override
+    public synchronized void photoRemoved(User u, Album a, Photo p) {
+        Integer n = refs.get(p);
+        if (n == null) return;
+        if (n > 1) {
+            refs.put(p, n - 1);
+            return;
+        }
+        refs.remove(p);
+        hashing.remove(p);
+        Long hash = hashOf.remove(p);
+        if (hash != null) {
+            hashes.remove(hash, p);
+        }
+    }
+
+    private synchronized void hashed(Photo p, long request, Long hash) {
+        pending--;
+        // removed meanwhile, or asked for again since
+        Long latest = hashing.get(p);
+        if (latest == null || latest != request) return;
+        hashing.remove(p);
+        if (hash == null) return;
+        hashOf.put(p, hash);
+        hashes.add(hash, p);
+    }
+
+    private static Photo find(Map<Photo, Photo> parent, Photo p) {
+        Photo root = p;
+        Photo up;
+        while ((up = parent.get(root)) != null && up != root) root = up;
+        // path compression
+        while ((up = parent.get(p)) != null && up != root) {
+            parent.put(p, root);
+            p = up;
+        }
+        return root;
+    }
+
+    private static void union(Map<Photo, Photo> parent, Photo a, Photo b) {
+        parent.putIfAbsent(a, a);
+        parent.putIfAbsent(b, b);
+        Photo ra = find(parent, a);
+        Photo rb = find(parent, b);
+        if (ra != rb) parent.put(rb, ra);
+    }
+}
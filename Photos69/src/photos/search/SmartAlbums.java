@@ -0,0 +1,133 @@
+package photos.search;
+
+import photos.model.Album;
+import photos.model.Photo;
+import photos.model.SmartAlbum;
+import photos.model.User;
+
+import java.text.ParseException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the photos of one user's smart albums up to date.
+ *
+ * <p>A smart album's query is run once, when the user is loaded or the album is
+ * created. After that the {@link LibraryIndex} reports the photos touched by each
+ * edit, and only those are checked against each query: they join the albums they
+ * now match and leave the ones they no longer do. The albums widen their date
+ * ranges as photos join and find them again only after one leaves or is redated,
+ * so listing smart albums costs no more than listing ordinary ones.</p>
+ *
+ * <p>Not thread-safe; the {@link LibraryIndex} only uses it while holding the lock on
+ * its {@link PhotoTable}, after every other index has seen the edit.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+final class SmartAlbums {
+
+    /** A smart album with its parsed query. */
+    private static final class View {
+        final SmartAlbum album;
+        final Query query;   // null if the saved query no longer parses
+        final Map<Photo, Long> members = new IdentityHashMap<>();   // to the date each was counted with
+
+        View(SmartAlbum album, Query query) {
+            this.album = album;
+            this.query = query;
+        }
+    }
+
+    private final User user;
+    private final PhotoTable table;
+    private final TagIndex tags;
+    private final DateIndex dates;
+    private final CaptionIndex captions;
+    private final DuplicateIndex duplicates;   // for the albums holding each photo
+    private final Map<SmartAlbum, View> views = new IdentityHashMap<>();
+
+    SmartAlbums(User u, PhotoTable table, TagIndex tags, DateIndex dates, CaptionIndex captions,
+                DuplicateIndex duplicates) {
+        this.user = u;
+        this.table = table;
+        this.tags = tags;
+        this.dates = dates;
+        this.captions = captions;
+        this.duplicates = duplicates;
+        for (SmartAlbum a : u.smartAlbums) add(a);
+    }
+
+    /**
+     * Starts keeping a smart album up to date, filling it by running its query.
+     *
+     * @param a the smart album
+     */
+    void add(SmartAlbum a) {
+        Query q;
+        try {
+            q = Query.parse(a.query);
+        } catch (ParseException e) {
+            q = null;   // queries are saved in the form Query prints, so only a damaged file gets here
+        }
+        View v = new View(a, q);
+        views.put(a, v);
+        a.photos.clear();
+        if (q == null) return;
+        List<Photo> found = table.photos(planner().evaluate(q));
+        for (Photo p : found) v.members.put(p, p.date.getTime());
+        a.addAll(found);
+    }
+
+    /**
+     * Stops keeping a smart album up to date.
+     *
+     * @param a the smart album
+     */
+    void remove(SmartAlbum a) {
+        views.remove(a);
+    }
+
+    /**
+     * Checks photos that were just added, removed or changed against every smart
+     * album's query, and moves them into or out of the albums.
+     *
+     * @param photos the photos touched by an edit
+     */
+    void recheck(Collection<Photo> photos) {
+        if (views.isEmpty() || photos.isEmpty()) return;
+        QueryPlanner planner = planner();
+        Map<Photo, List<Album>> holders = new IdentityHashMap<>();
+        for (View v : views.values()) {
+            if (v.query == null) continue;
+            Set<Photo> left = null;
+            boolean redated = false;
+            for (Photo p : photos) {
+                int id = table.ordinal(p);
+                boolean match = id >= 0 && planner.matches(v.query.root, id,
+                        holders.computeIfAbsent(p, duplicates::albumsOf));
+                Long counted = v.members.get(p);
+                if (match && counted == null) {
+                    v.members.put(p, p.date.getTime());
+                    v.album.add(p);
+                } else if (!match && counted != null) {
+                    v.members.remove(p);
+                    if (left == null) left = Collections.newSetFromMap(new IdentityHashMap<>());
+                    left.add(p);
+                } else if (match && counted != p.date.getTime()) {
+                    v.members.put(p, p.date.getTime());
+                    redated = true;
+                }
+            }
+            if (left != null) v.album.photos.removeIf(left::contains);
+            if (left != null || redated) v.album.datesChanged();
+        }
+    }
+
+    private QueryPlanner planner() {
+        return new QueryPlanner(user, table, tags, dates, captions, false);
+    }
+}
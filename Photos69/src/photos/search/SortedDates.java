@@ -0,0 +1,171 @@
+package photos.search;
+
+import java.util.Arrays;
+
+/**
+ * Photo dates as epoch milliseconds, kept sorted in a primitive array next to the
+ * ordinals of their photos, for range queries by binary search.
+ *
+ * <p>New entries are appended. As long as they arrive in date order, e.g. when
+ * taking new pictures, the array stays sorted as it is; otherwise the unsorted tail
+ * is sorted and merged in by the next query, so a bulk import costs one sort of the
+ * imported dates instead of an insertion per photo.</p>
+ *
+ * <p>Not thread-safe.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+final class SortedDates {
+    private long[] times = new long[16];
+    private int[] ids = new int[16];
+    private int size;
+    private int sorted;   // length of the sorted prefix
+
+    /**
+     * Adds a photo.
+     *
+     * @param time the photo's date
+     * @param id the photo's ordinal
+     */
+    void add(long time, int id) {
+        if (size == times.length) {
+            times = Arrays.copyOf(times, size * 2);
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        times[size] = time;
+        ids[size] = id;
+        if (sorted == size && (size == 0 || times[size - 1] <= time)) sorted++;
+        size++;
+    }
+
+    /**
+     * Removes a photo.
+     *
+     * @param time the date the photo was added with
+     * @param id the photo's ordinal
+     * @return true if the photo was found
+     */
+    boolean remove(long time, int id) {
+        int i = -1;
+        for (int j = lowerBound(time); j < sorted && times[j] == time; j++) {
+            if (ids[j] == id) {
+                i = j;
+                break;
+            }
+        }
+        for (int j = sorted; i < 0 && j < size; j++) {
+            if (times[j] == time && ids[j] == id) i = j;
+        }
+        if (i < 0) return false;
+        System.arraycopy(times, i + 1, times, i, size - i - 1);
+        System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+        size--;
+        if (i < sorted) sorted--;
+        return true;
+    }
+
+    /**
+     * Returns the number of photos dated from {@code lo} to {@code hi}, inclusive.
+     *
+     * @param lo the earliest date
+     * @param hi the latest date
+     * @return the count
+     */
+    int count(long lo, long hi) {
+        sort();
+        return Math.max(0, upperBound(hi) - lowerBound(lo));
+    }
+
+    /**
+     * Returns the ordinals of the photos dated from {@code lo} to {@code hi},
+     * inclusive, in date order.
+     *
+     * @param lo the earliest date
+     * @param hi the latest date
+     * @return the ordinals
+     */
+    int[] range(long lo, long hi) {
+        sort();
+        int from = lowerBound(lo);
+        int to = upperBound(hi);
+        return from < to ? Arrays.copyOfRange(ids, from, to) : new int[0];
+    }
+
+    /** First position with a date of at least {@code t} in the sorted prefix. */
+    private int lowerBound(long t) {
+        int lo = 0, hi = sorted;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] < t) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    /** First position with a date after {@code t} in the sorted prefix. */
+    private int upperBound(long t) {
+        int lo = 0, hi = sorted;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] <= t) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Sorts the entries appended out of order and merges them into the sorted prefix.
+     */
+    private void sort() {
+        if (sorted == size) return;
+        int n = size - sorted;
+        long[] tailTimes = Arrays.copyOfRange(times, sorted, size);
+        int[] tailIds = Arrays.copyOfRange(ids, sorted, size);
+        mergeSort(tailTimes, tailIds, new long[n], new int[n], 0, n);
+
+        // merge from the back so the prefix can stay where it is
+        int i = sorted - 1, j = n - 1;
+        for (int k = size - 1; j >= 0; k--) {
+            if (i >= 0 && times[i] > tailTimes[j]) {
+                times[k] = times[i];
+                ids[k] = ids[i--];
+            } else {
+                times[k] = tailTimes[j];
+                ids[k] = tailIds[j--];
+            }
+        }
+        sorted = size;
+    }
+
+    private static void mergeSort(long[] t, int[] id, long[] tt, int[] tid, int from, int to) {
+        if (to - from < 16) {   // insertion sort for short runs
+            for (int i = from + 1; i < to; i++) {
+                long x = t[i];
+                int y = id[i];
+                int j = i - 1;
+                while (j >= from && t[j] > x) {
+                    t[j + 1] = t[j];
+                    id[j + 1] = id[j];
+                    j--;
+                }
+                t[j + 1] = x;
+                id[j + 1] = y;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(t, id, tt, tid, from, mid);
+        mergeSort(t, id, tt, tid, mid, to);
+        if (t[mid - 1] <= t[mid]) return;   // already in order
+        System.arraycopy(t, from, tt, from, to - from);
+        System.arraycopy(id, from, tid, from, to - from);
+        int i = from, j = mid;
+        for (int k = from; k < to; k++) {
+            if (j >= to || (i < mid && tt[i] <= tt[j])) {
+                t[k] = tt[i];
+                id[k] = tid[i++];
+            } else {
+                t[k] = tt[j];
+                id[k] = tid[j++];
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package photos.search;
+
+import java.util.*;
+
+/**
+ * Suggests completions for tag names and values as the user types them, most used
+ * first.
+ *
+ * <p>Tag names are kept in a prefix trie, and each name has a trie of its values.
+ * Every entry counts the photos carrying it, and every trie node remembers the
+ * highest count below it, so the most used completions of a prefix are found by
+ * walking down to the prefix and then visiting only the branches that can still
+ * beat the completions found so far. Names and values are matched ignoring case and
+ * suggested as they were first written.</p>
+ *
+ * <p>The counts are kept by the {@link TagIndex}, which reports each tag a photo
+ * gains or loses. Thread-safe; all access is serialized on the {@link PhotoTable}
+ * shared by the indexes.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+public final class TagCompleter {
+
+    /** A trie node: one character of a name or value. */
+    private static final class Node {
+        char[] keys = new char[0];   // children's characters, ascending
+        Node[] kids = new Node[0];
+        int count;                   // photos with the name or value ending here
+        int best;                    // highest count in this subtree
+        String text;                 // spelling to suggest, while count > 0
+        Node values;                 // for a name, the trie of its values
+
+        Node child(char c, boolean create) {
+            int i = Arrays.binarySearch(keys, c);
+            if (i >= 0) return kids[i];
+            if (!create) return null;
+            i = -i - 1;
+            keys = insert(keys, i, c);
+            Node[] k = new Node[kids.length + 1];
+            System.arraycopy(kids, 0, k, 0, i);
+            System.arraycopy(kids, i, k, i + 1, kids.length - i);
+            k[i] = new Node();
+            kids = k;
+            return k[i];
+        }
+
+        void updateBest() {
+            int b = count;
+            for (Node k : kids) b = Math.max(b, k.best);
+            best = b;
+        }
+
+        private static char[] insert(char[] a, int i, char c) {
+            char[] r = new char[a.length + 1];
+            System.arraycopy(a, 0, r, 0, i);
+            System.arraycopy(a, i, r, i + 1, a.length - i);
+            r[i] = c;
+            return r;
+        }
+    }
+
+    private final PhotoTable table;
+    private final Node names = new Node();
+
+    TagCompleter(PhotoTable table) {
+        this.table = table;
+    }
+
+    /**
+     * Returns the most used tag names starting with a prefix.
+     *
+     * @param prefix what has been typed so far
+     * @param max the most names to return
+     * @return the names, most used first
+     */
+    public List<String> names(String prefix, int max) {
+        synchronized (table) {
+            return top(find(names, prefix), max);
+        }
+    }
+
+    /**
+     * Returns the most used values of a tag name starting with a prefix.
+     *
+     * @param name the tag name
+     * @param prefix what has been typed of the value so far
+     * @param max the most values to return
+     * @return the values, most used first
+     */
+    public List<String> values(String name, String prefix, int max) {
+        synchronized (table) {
+            Node n = find(names, name);
+            if (n == null || n.values == null) return Collections.emptyList();
+            return top(find(n.values, prefix), max);
+        }
+    }
+
+    /**
+     * Counts one more photo with a tag. The caller must hold the lock on the table.
+     *
+     * @param name the tag name
+     * @param value the tag value
+     */
+    void add(String name, String value) {
+        Node n = add(names, name, 0, +1);
+        if (n.values == null) n.values = new Node();
+        add(n.values, value, 0, +1);
+    }
+
+    /**
+     * Counts one photo less with a tag. The caller must hold the lock on the table.
+     *
+     * @param name the tag name
+     * @param value the tag value
+     */
+    void remove(String name, String value) {
+        Node n = find(names, name);
+        Node v = n == null || n.values == null ? null : find(n.values, value);
+        if (v == null || v.count == 0) return;
+        add(n.values, value, 0, -1);
+        add(names, name, 0, -1);
+    }
+
+    /**
+     * Adds {@code delta} to the count of a word and fixes the highest counts on the
+     * way back up.
+     *
+     * @return the word's node
+     */
+    private static Node add(Node n, String word, int i, int delta) {
+        Node end;
+        if (i == word.length()) {
+            if (n.count == 0 && delta > 0) n.text = word;
+            n.count += delta;
+            if (n.count == 0) n.text = null;
+            end = n;
+        } else {
+            end = add(n.child(Character.toLowerCase(word.charAt(i)), true), word, i + 1, delta);
+        }
+        n.updateBest();
+        return end;
+    }
+
+    private static Node find(Node n, String word) {
+        for (int i = 0; n != null && i < word.length(); i++) {
+            n = n.child(Character.toLowerCase(word.charAt(i)), false);
+        }
+        return n;
+    }
+
+    /**
+     * Collects the {@code max} words with the highest counts below a node, visiting
+     * branches in order of their highest count and skipping those that cannot get
+     * into the result.
+     */
+    private static List<String> top(Node start, int max) {
+        if (start == null || start.best == 0 || max <= 0) return Collections.emptyList();
+        PriorityQueue<Node> found = new PriorityQueue<>(Comparator.comparingInt((Node x) -> x.count));
+        collect(start, max, found);
+        List<String> result = new ArrayList<>(found.size());
+        while (!found.isEmpty()) result.add(found.poll().text);
+        Collections.reverse(result);
+        return result;
+    }
+
+    private static void collect(Node n, int max, PriorityQueue<Node> found) {
+        if (found.size() == max && n.best <= found.peek().count) return;
+        if (n.count > 0) {
+            found.add(n);
+            if (found.size() > max) found.poll();
+        }
+        Node[] kids = n.kids.clone();
+        Arrays.sort(kids, (a, b) -> Integer.compare(b.best, a.best));
+        for (Node k : kids) {
+            if (found.size() == max && k.best <= found.peek().count) break;
+            collect(k, max, found);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package photos.search;
+
+import photos.model.Album;
+import photos.model.LibraryListener;
+import photos.model.Photo;
+import photos.model.Tag;
+import photos.model.User;
+
+import java.util.*;
+
+/**
+ * Inverted index from tags to the photos that have them, for one user.
+ *
+ * <p>Tags are compared ignoring case, as in the rest of the application. Each
+ * distinct {@code name=value} pair maps to a {@link CompactBitmap} of the ordinals
+ * of the photos carrying it, so a search for one tag is a single lookup and
+ * combining tags with AND or OR is a bitmap intersection or union.</p>
+ *
+ * <p>The index is kept up to date incrementally through {@link LibraryListener}
+ * events: when a photo changes, its current tags are compared with the ones it was
+ * indexed under and only the difference is applied, also to the usage counts of
+ * the {@link TagCompleter}. It is thread-safe; all
+ * access is serialized on the {@link PhotoTable} it shares with the other indexes.</p>
+ *
+ * <p>Authors: Wilmer Joya, Kenneth Yan</p>
+ */
+public final class TagIndex implements LibraryListener {
+
+    /** A tag and how many photos of a set carry it. */
+    public static final class Facet {
+        /** The tag, as first written. */
+        public final Tag tag;
+        /** The number of photos with the tag. */
+        public final int count;
+
+        Facet(Tag tag, int count) {
+            this.tag = tag;
+            this.count = count;
+        }
+
+        @Override
+        public String toString() {
+            return tag + " (" + count + ")";
+        }
+    }
+
+    private static final String[] NO_KEYS = new String[0];
+
+    private final PhotoTable table;
+    private final TagCompleter completer;
+    private final Map<String, CompactBitmap> byTag = new HashMap<>();
+    private final Map<String, Tag> shown = new HashMap<>();   // per key, the tag as first written
+    private String[][] keysOf = new String[256][];   // per ordinal, the keys it is indexed under
+    private long assignments;                          // photo-tag pairs indexed
+
+    /**
+     * Builds the index over the photos already in the table.
+     *
+     * @param table the user's photo ordinals
+     * @param completer the completions to keep the usage counts of
+     */
+    TagIndex(PhotoTable table, TagCompleter completer) {
+        this.table = table;
+        this.completer = completer;
+        table.all.forEach(id -> reindex(id, table.photo(id)));
+    }
+
+    /**
+     * Finds the photos with one tag.
+     *
+     * @param name the tag name
+     * @param value the tag value
+     * @return the photos with the tag
+     */
+    public List<Photo> find(String name, String value) {
+        synchronized (table) {
+            return table.photos(bitmap(name, value));
+        }
+    }
+
+    /**
+     * Finds the photos with all, or with any, of several tags.
+     *
+     * @param tags the tags to look for
+     * @param all true to require every tag (AND), false to require any one (OR)
+     * @return the matching photos
+     */
+    public List<Photo> find(List<Tag> tags, boolean all) {
+        if (tags.isEmpty()) return Collections.emptyList();
+        synchronized (table) {
+            List<CompactBitmap> sets = new ArrayList<>(tags.size());
+            for (Tag t : tags) sets.add(bitmap(t.name, t.value));
+            if (all) {   // intersect the smallest sets first; the result only shrinks
+                sets.sort(Comparator.comparingInt(CompactBitmap::cardinality));
+            }
+            CompactBitmap result = sets.get(0);
+            for (int i = 1; i < sets.size(); i++) {
+                result = all ? CompactBitmap.and(result, sets.get(i)) : CompactBitmap.or(result, sets.get(i));
+                if (all && result.isEmpty()) break;
+            }
+            return table.photos(result);
+        }
+    }
+
+    /**
+     * Returns the ordinals of the photos with a tag. The set belongs to the index and
+     * must not be modified. The caller must hold the lock on the table.
+     *
+     * @param name the tag name
+     * @param value the tag value
+     * @return the ordinals, possibly empty
+     */
+    CompactBitmap bitmap(String name, String value) {
+        CompactBitmap b = byTag.get(key(name, value));
+        return b != null ? b : new CompactBitmap();
+    }
+
+    /**
+     * Finds the tags most common among a set of photos, leaving out the ones every
+     * photo of the set has, since those cannot narrow it down. The caller must hold
+     * the lock on the table.
+     *
+     * <p>For a small set, the tags each photo is indexed under are counted. For a
+     * large one, each tag's photos are intersected with the set instead, from the
+     * most used tag down, until no remaining tag has enough photos in total to make
+     * the list; whichever touches fewer entries is used.</p>
+     *
+     * @param photos the ordinals of the photos
+     * @param max the most tags to return
+     * @return the tags with their counts, most common first
+     */
+    List<Facet> facets(CompactBitmap photos, int max) {
+        int total = photos.cardinality();
+        List<Map.Entry<String, CompactBitmap>> entries = new ArrayList<>(byTag.entrySet());
+        int[] sizes = new int[entries.size()];
+        long intersectCost = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = entries.get(i).getValue().cardinality();
+            intersectCost += Math.min(sizes[i], total);
+        }
+        // a hash map update per tag of each photo costs a few merge steps
+        long countCost = 4L * total * assignments / Math.max(1, table.size());
+
+        PriorityQueue<Facet> top = new PriorityQueue<>(Comparator.comparingInt((Facet f) -> f.count));
+        if (countCost < intersectCost) {
+            Map<String, int[]> counts = new HashMap<>();
+            photos.forEach(id -> {
+                String[] keys = keysOf[id] != null ? keysOf[id] : NO_KEYS;
+                for (int k = 0; k < keys.length; k++) {
+                    if (indexOf(keys, keys[k]) == k) counts.computeIfAbsent(keys[k], x -> new int[1])[0]++;
+                }
+            });
+            for (Map.Entry<String, int[]> e : counts.entrySet()) offer(top, max, e.getKey(), e.getValue()[0], total);
+        } else {
+            Integer[] order = new Integer[sizes.length];
+            for (int i = 0; i < order.length; i++) order[i] = i;
+            Arrays.sort(order, (a, b) -> Integer.compare(sizes[b], sizes[a]));
+            for (int i : order) {
+                if (top.size() == max && sizes[i] <= top.peek().count) break;   // cannot make the list any more
+                int c = CompactBitmap.andCardinality(photos, entries.get(i).getValue());
+                offer(top, max, entries.get(i).getKey(), c, total);
+            }
+        }
+        List<Facet> result = new ArrayList<>(top);
+        result.sort((a, b) -> a.count != b.count ? Integer.compare(b.count, a.count)
+                : a.tag.toString().compareToIgnoreCase(b.tag.toString()));
+        return result;
+    }
+
+    private void offer(PriorityQueue<Facet> top, int max, String key, int count, int total) {
+        if (count == 0 || count == total) return;
+        if (top.size() == max) {
+            if (count <= top.peek().count) return;
+            top.poll();
+        }
+        top.add(new Facet(shown.get(key), count));
+    }
+
+    @Override
+    public void albumAdded(User u, Album a) {
+        for (Photo p : a.photos) photoAdded(u, a, p);
+    }
+
+    @Override
+    public void albumDeleted(User u, Album a) {
+        for (Photo p : a.photos) photoRemoved(u, a, p);
+    }
+
+    @Override
+    public void photoAdded(User u, Album a, Photo p) {
+        synchronized (table) {
+            int id = table.ordinal(p);
+            if (id >= 0) reindex(id, p);
+        }
+    }
+
+    @Override
+    public void photoRemoved(User u, Album a, Photo p) {
+        synchronized (table) {
+            if (!table.isLastRef(p)) return;
+            int id = table.ordinal(p);
+            if (keysOf[id] != null) {
+                for (String k : keysOf[id]) unindex(k, id);
+            }
+            keysOf[id] = null;
+        }
+    }
+
+    @Override
+    public void photoChanged(User u, Photo p) {
+        synchronized (table) {
+            int id = table.ordinal(p);
+            if (id >= 0) reindex(id, p);
+        }
+    }
+
+    /**
+     * Brings the entries of one photo in line with its current tags.
+     */
+    private void reindex(int id, Photo p) {
+        if (id >= keysOf.length) keysOf = Arrays.copyOf(keysOf, Math.max(id + 1, keysOf.length * 2));
+        String[] old = keysOf[id] != null ? keysOf[id] : NO_KEYS;
+        String[] now = new String[p.tags.size()];
+        for (int i = 0; i < now.length; i++) now[i] = key(p.tags.get(i).name, p.tags.get(i).value);
+        if (Arrays.equals(old, now)) return;   // e.g. a caption or date change
+
+        for (String k : old) {
+            if (!contains(now, k)) unindex(k, id);
+        }
+        for (int i = 0; i < now.length; i++) {
+            CompactBitmap b = byTag.get(now[i]);
+            if (b == null) {
+                b = new CompactBitmap();
+                byTag.put(now[i], b);
+                shown.put(now[i], p.tags.get(i));
+            }
+            if (b.add(id)) {
+                assignments++;
+                completer.add(p.tags.get(i).name, p.tags.get(i).value);
+            }
+        }
+        keysOf[id] = now;
+    }
+
+    private void unindex(String key, int id) {
+        CompactBitmap b = byTag.get(key);
+        if (b == null || !b.remove(id)) return;
+        assignments--;
+        if (b.isEmpty()) {
+            byTag.remove(key);
+            shown.remove(key);
+        }
+        int sep = key.indexOf('\0');
+        completer.remove(key.substring(0, sep), key.substring(sep + 1));
+    }
+
+    private static boolean contains(String[] keys, String k) {
+        return indexOf(keys, k) >= 0;
+    }
+
+    private static int indexOf(String[] keys, String k) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i].equals(k)) return i;
+        }
+        return -1;
+    }
+
+    private static String key(String name, String value) {
+        return name.toLowerCase(Locale.ROOT) + '\0' + value.toLowerCase(Locale.ROOT);
+    }
+}